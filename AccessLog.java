@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.nio.file.*;
+
+/**
+ * Per-site access logs written by the generated configs, and byte-level
+ * field extraction shared by the live monitor and the log analyzer.
+ *
+ * Lines are parsed in place from a byte array; nothing is decoded to a
+ * String. nginx escapes '"' inside logged values as \x22, so a quoted
+ * field always ends at the next quote.
+ */
+final class AccessLog {
+
+    static final String DEFAULT_DIR = "/var/log/nginx";
+
+    private static volatile Path dir;
+
+    private AccessLog() {
+    }
+
+    static Path dir() {
+        if (dir == null) {
+            try {
+                dir = Paths.get(Settings.load().get("log.dir", DEFAULT_DIR));
+            } catch (IOException e) {
+                dir = Paths.get(DEFAULT_DIR);
+            }
+        }
+        return dir;
+    }
+
+    /** Log file of a site; nginx cannot create directories, so it lives directly in log.dir */
+    static Path path(String domain) {
+        return dir().resolve("fastnginx-" + domain.replaceAll("[^A-Za-z0-9._-]", "_") + ".access.log");
+    }
+
+    /** Index of the next '\n' in [from, to), or -1 */
+    static int nextLine(byte[] buf, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** HTTP status of a combined-format line: the number after the quoted request, or -1 */
+    static int status(byte[] buf, int start, int end) {
+        int open = indexOf(buf, (byte) '"', start, end);
+        if (open < 0) {
+            return -1;
+        }
+        int close = indexOf(buf, (byte) '"', open + 1, end);
+        if (close < 0 || close + 4 >= end || buf[close + 1] != ' ') {
+            return -1;
+        }
+        int status = 0;
+        for (int i = close + 2; i < close + 5; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            status = status * 10 + digit;
+        }
+        return status;
+    }
+
+    static int indexOf(byte[] buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.*;
+
+/**
+ * Per-site proxy cache profiles.
+ *
+ * Index fields:
+ *   cache=off|micro|standard|aggressive
+ *   cache_keys=100000      expected number of cached URLs, sizes the keys_zone
+ *   cache_max_size=1g      disk limit of the site's cache directory
+ *
+ * Every cached site gets its own zone, declared once in the shared http
+ * file; nginx keeps about 8000 keys in one megabyte of keys_zone.
+ */
+public final class CacheProfile {
+
+    static final String OFF = "off";
+    static final long KEYS_PER_MB = 8000;
+    static final String DEFAULT_ROOT = "/var/cache/nginx/fastnginx";
+
+    private static final long MB = 1024 * 1024;
+
+    /** Cache validity per status class plus the defaults a profile starts from */
+    record Profile(String name, String validOk, String validNotFound, String inactive,
+                   long keys, String maxSize) {
+    }
+
+    /** A proxy_cache_path declaration and what it costs */
+    record Zone(String name, String path, long keysZoneBytes, long maxSizeBytes, String inactive) {
+    }
+
+    static final Map<String, Profile> PROFILES = new LinkedHashMap<>();
+
+    static {
+        // micro: absorb bursts on dynamic pages while staying at most a second stale
+        PROFILES.put("micro", new Profile("micro", "1s", "1s", "10m", 10_000, "256m"));
+        PROFILES.put("standard", new Profile("standard", "10m", "1m", "60m", 100_000, "1g"));
+        PROFILES.put("aggressive", new Profile("aggressive", "1h", "5m", "1d", 500_000, "5g"));
+    }
+
+    private CacheProfile() {
+    }
+
+    static Set<String> names() {
+        Set<String> names = new LinkedHashSet<>();
+        names.add(OFF);
+        names.addAll(PROFILES.keySet());
+        return names;
+    }
+
+    /** Profile of a record, or null when caching is off */
+    static Profile of(Map<String, String> record) {
+        String name = record.get("cache");
+        return name == null ? null : PROFILES.get(name);
+    }
+
+    static String zoneName(String domain) {
+        return "fastnginx_cache_" + domain.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /** Zone declaration for a cached site, or null when caching is off */
+    static Zone zone(Map<String, String> record, String root) {
+        Profile profile = of(record);
+        if (profile == null) {
+            return null;
+        }
+        long keys = Long.parseLong(record.getOrDefault("cache_keys", String.valueOf(profile.keys())));
+        long zoneMb = Math.max(1, (keys + KEYS_PER_MB - 1) / KEYS_PER_MB);
+        String domain = record.get("domain");
+        return new Zone(zoneName(domain),
+                root + "/" + domain.replaceAll("[^A-Za-z0-9._-]", "_"),
+                zoneMb * MB,
+                parseSize(record.getOrDefault("cache_max_size", profile.maxSize())),
+                profile.inactive());
+    }
+
+    static String directive(Zone zone) {
+        return "proxy_cache_path " + zone.path() + " levels=1:2 keys_zone=" + zone.name() + ":"
+                + zone.keysZoneBytes() / MB + "m max_size=" + formatSize(zone.maxSizeBytes())
+                + " inactive=" + zone.inactive() + " use_temp_path=off;";
+    }
+
+    /** Returns an error message, or null when the record's cache fields are usable */
+    static String validate(Map<String, String> record) {
+        String name = record.get("cache");
+        if (name != null && !name.equals(OFF) && !PROFILES.containsKey(name)) {
+            return "Unknown cache profile: " + name;
+        }
+        String keys = record.get("cache_keys");
+        if (keys != null && !keys.matches("\\d+")) {
+            return "cache_keys must be a number: " + keys;
+        }
+        String maxSize = record.get("cache_max_size");
+        if (maxSize != null && !maxSize.matches("(?i)\\d+[kmg]?")) {
+            return "cache_max_size must look like 512m or 2g: " + maxSize;
+        }
+        return null;
+    }
+
+    /** Adds cache_* template variables; none are set when caching is off */
+    static void addVariables(Map<String, String> record, Map<String, String> vars) {
+        Profile profile = of(record);
+        if (profile == null) {
+            return;
+        }
+        vars.put("cache_profile", profile.name());
+        vars.put("cache_zone", zoneName(record.get("domain")));
+        vars.put("cache_valid_ok", profile.validOk());
+        vars.put("cache_valid_not_found", profile.validNotFound());
+    }
+
+    static long parseSize(String size) {
+        String s = size.trim().toLowerCase();
+        long unit = switch (s.charAt(s.length() - 1)) {
+            case 'k' -> 1024;
+            case 'm' -> MB;
+            case 'g' -> MB * 1024;
+            default -> 1;
+        };
+        String digits = unit == 1 ? s : s.substring(0, s.length() - 1);
+        return Long.parseLong(digits) * unit;
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes % (MB * 1024) == 0) {
+            return bytes / (MB * 1024) + "g";
+        }
+        if (bytes % MB == 0) {
+            return bytes / MB + "m";
+        }
+        if (bytes % 1024 == 0) {
+            return bytes / 1024 + "k";
+        }
+        return String.valueOf(bytes);
+    }
+}
@@ -0,0 +1,798 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Scriptable entry point: one subcommand per run, no prompts, no progress
+ * bars, and a single JSON object on stdout for the pipeline to parse.
+ *
+ * Every change is validated in isolation, written, and then reloaded right
+ * away instead of waiting out the interactive debounce; if the full nginx
+ * test rejects the result, the files are put back as they were. deploy is
+ * idempotent: a site whose rendered config and symlink already match is
+ * reported with "changed":false and nginx is not touched.
+ *
+ * Several runs may work on the index at once, e.g. a pipeline deploying
+ * from many agents. edit, toggle and deploy commit their record with a
+ * compare-and-set; one that lost to another writer starts over from the
+ * fresh record, up to COMMIT_ATTEMPTS times.
+ *
+ * Exit status: 0 done, 1 failed (see "error"), 2 usage.
+ */
+public final class Cli {
+
+    static final String USAGE = """
+            Usage: java FastNginx <command> [arguments]
+              list [--status active|inactive]
+              show <domain>
+              deploy <domain> key=value... [--hosts[=ip]] [--precompress]
+              edit <domain> key=value...         domain=<new> renames, key= clears a field
+              toggle <domain> [--status active|inactive]
+              delete <domain>
+              diag
+              import [--dry-run]                  adopt hand-written files from sites-available
+              reconcile <manifest> [--dry-run] [--prune]
+              probe [--deactivate]
+              analyze [files...] [--threads N]
+              daemon [--listen host:port]         serve these commands over local HTTP
+              dense [--dry-run]                   switch to the layout= setting, comparing both layouts
+              fleet [--node=a,b] [--dry-run]      push every site to the node.* inventory
+              helper [--socket path]              run as root: serve file, test and reload requests
+            Fields: type=proxy|static port= backends= lb= template= cache= cache_keys= cache_max_size=
+                    traffic= traffic_clients= root= ip= status= backend_host= keepalive= max_fails=
+                    fail_timeout=""";
+
+    private static final int COMMIT_ATTEMPTS = 5;
+
+    /** Index fields maintained by FastNginx itself; listen only describes an imported file */
+    private static final Set<String> RESERVED = Set.of("path", "created", "hash", "listen");
+
+    /** Fields a caller may set; anything else could reach a template unchecked */
+    private static final Set<String> FIELDS = Set.of("domain", "type", "status", "port", "ip", "root", "template",
+            "backends", "backend_host", "lb", "keepalive", "max_fails", "fail_timeout", "cache", "cache_keys",
+            "cache_max_size", "traffic", "traffic_clients");
+
+    /** Bad invocation; reported on stderr with exit status 2 */
+    @SuppressWarnings("serial")
+    static final class UsageException extends Exception {
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    /** A failed operation; reported as {"ok":false,...} with exit status 1 */
+    @SuppressWarnings("serial")
+    static final class Failure extends Exception {
+        final Map<String, Object> detail = new LinkedHashMap<>();
+
+        Failure(String message) {
+            super(message);
+        }
+
+        Failure with(String key, Object value) {
+            detail.put(key, value);
+            return this;
+        }
+    }
+
+    /** The record changed between reading it and committing; the command is run again */
+    @SuppressWarnings("serial")
+    static final class Conflict extends Exception {
+        Conflict(String domain) {
+            super("Site " + domain + " was changed by another writer");
+        }
+    }
+
+    @FunctionalInterface
+    private interface Attempt {
+        void run() throws UsageException, Failure, Conflict, IOException;
+    }
+
+    /** Positional arguments, key=value fields and --flags of one command */
+    private record Args(List<String> positional, Map<String, String> fields, Map<String, String> flags) {
+
+        String domain() throws UsageException {
+            if (positional.size() != 1) {
+                throw new UsageException("Expected exactly one domain");
+            }
+            return checkDomain(positional.get(0));
+        }
+    }
+
+    /**
+     * File changes of one operation, made through the privileged helper and reverted when nginx rejects
+     * them or the index changed underneath
+     */
+    static final class Undo {
+        // Previous content, or null when the file did not exist
+        private final Map<Path, byte[]> files = new LinkedHashMap<>();
+        // Previous link target, or null when the link did not exist
+        private final Map<Path, Path> links = new LinkedHashMap<>();
+
+        void write(Path file, String content) throws IOException {
+            write(file, content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void write(Path file, byte[] content) throws IOException {
+            files.putIfAbsent(file, Files.exists(file) ? Files.readAllBytes(file) : null);
+            PrivilegedHelper.write(file, content);
+        }
+
+        void delete(Path file) throws IOException {
+            if (Files.exists(file)) {
+                files.putIfAbsent(file, Files.readAllBytes(file));
+                PrivilegedHelper.unlink(file);
+            }
+        }
+
+        void link(Path link, Path target) throws IOException {
+            if (!Files.exists(link, LinkOption.NOFOLLOW_LINKS)) {
+                links.putIfAbsent(link, null);
+                PrivilegedHelper.symlink(link, target);
+            }
+        }
+
+        void unlink(Path link) throws IOException {
+            if (Files.isSymbolicLink(link)) {
+                links.putIfAbsent(link, Files.readSymbolicLink(link));
+                PrivilegedHelper.unlink(link);
+            }
+        }
+
+        boolean isEmpty() {
+            return files.isEmpty() && links.isEmpty();
+        }
+
+        void revert() throws IOException {
+            PrivilegedHelper.Batch batch = new PrivilegedHelper.Batch();
+            for (Map.Entry<Path, byte[]> e : files.entrySet()) {
+                if (e.getValue() == null) {
+                    batch.unlink(e.getKey());
+                } else {
+                    batch.write(e.getKey(), e.getValue());
+                }
+            }
+            for (Map.Entry<Path, Path> e : links.entrySet()) {
+                if (e.getValue() == null) {
+                    batch.unlink(e.getKey());
+                } else {
+                    batch.symlink(e.getKey(), e.getValue());
+                }
+            }
+            batch.run();
+        }
+    }
+
+    private Cli() {
+    }
+
+    static int run(String[] args) {
+        String command = args[0];
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+
+        // Commands with their own human-readable output
+        switch (command) {
+            case "reconcile" -> {
+                return Reconciler.run(rest);
+            }
+            case "probe" -> {
+                return FastNginx.probeBackends(false, Arrays.asList(rest).contains("--deactivate"));
+            }
+            case "analyze" -> {
+                return LogAnalyzer.run(rest);
+            }
+            case "daemon" -> {
+                return Daemon.run(rest);
+            }
+            case "dense" -> {
+                return DenseLayout.run(rest);
+            }
+            case "helper" -> {
+                return PrivilegedHelper.run(rest);
+            }
+            case "help", "--help", "-h" -> {
+                System.out.println(USAGE);
+                return 0;
+            }
+            default -> {
+            }
+        }
+
+        FastNginx.statusToStderr();
+        long start = System.nanoTime();
+        Map<String, Object> result;
+        try (ConfigJournal store = ConfigJournal.open(FastNginx.dataDirPath())) {
+            result = execute(store, command, rest);
+        } catch (UsageException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        } catch (IOException e) {
+            result = new LinkedHashMap<>();
+            result.put("ok", false);
+            result.put("command", command);
+            result.put("error", message(e));
+        }
+        result.put("elapsed_ms", (System.nanoTime() - start) / 1_000_000);
+        System.out.println(Json.write(result));
+        return Boolean.TRUE.equals(result.get("ok")) ? 0 : 1;
+    }
+
+    /** Runs one JSON command against an open index; shared by the command line and the daemon */
+    static Map<String, Object> execute(ConfigJournal store, String command, String[] rest) throws UsageException {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("ok", true);
+        result.put("command", command);
+        // Read-only commands record no phases, so only changes reach the metrics
+        try (Metrics.Operation op = Metrics.operation(command)) {
+            switch (command) {
+                case "list" -> list(store, parse(rest, Set.of("status")), result);
+                case "show" -> show(store, parse(rest, Set.of()), result);
+                case "deploy" -> {
+                    Args args = parse(rest, Set.of("hosts", "precompress"));
+                    retrying(result, () -> deploy(store, args, result, op));
+                }
+                case "edit" -> {
+                    Args args = parse(rest, Set.of());
+                    retrying(result, () -> edit(store, args, result, op));
+                }
+                case "toggle" -> {
+                    Args args = parse(rest, Set.of("status"));
+                    retrying(result, () -> toggle(store, args, result, op));
+                }
+                case "delete" -> {
+                    Args args = parse(rest, Set.of());
+                    retrying(result, () -> delete(store, args, result, op));
+                }
+                case "diag" -> diag(store, parse(rest, Set.of()), result);
+                case "import" -> importSites(store, parse(rest, Set.of("dry-run")), result, op);
+                case "fleet" -> fleet(store, parse(rest, Set.of("dry-run", "node")), result, op);
+                default -> throw new UsageException("Unknown command: " + command);
+            }
+            if (Boolean.TRUE.equals(result.get("ok"))) {
+                op.succeeded();
+            }
+        } catch (Failure e) {
+            result.put("ok", false);
+            result.put("error", e.getMessage());
+            result.putAll(e.detail);
+        } catch (IOException | RuntimeException e) {
+            result.put("ok", false);
+            result.put("error", message(e));
+        }
+        return result;
+    }
+
+    /**
+     * Runs a read-modify-write command again from a fresh read while its
+     * commit loses to another writer. A losing attempt has already put its
+     * files back (see {@link #lost}), so only the last attempt's changes count.
+     */
+    private static void retrying(Map<String, Object> result, Attempt attempt)
+            throws UsageException, Failure, IOException {
+        for (int i = 1; ; i++) {
+            try {
+                attempt.run();
+                return;
+            } catch (Conflict e) {
+                result.put("changed", false);
+                if (i == COMMIT_ATTEMPTS) {
+                    throw new Failure(e.getMessage() + ", gave up after " + i + " attempts");
+                }
+            }
+        }
+    }
+
+    private static String message(Exception e) {
+        if (e instanceof NoSuchFileException) {
+            return "No such file: " + e.getMessage();
+        }
+        return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+    }
+
+    private static Args parse(String[] args, Set<String> allowedFlags) throws UsageException {
+        List<String> positional = new ArrayList<>();
+        Map<String, String> fields = new LinkedHashMap<>();
+        Map<String, String> flags = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--")) {
+                String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+                if (!allowedFlags.contains(name)) {
+                    throw new UsageException("Unknown option: " + arg);
+                }
+                if (eq >= 0) {
+                    flags.put(name, arg.substring(eq + 1));
+                } else if (name.equals("status") && i + 1 < args.length) {
+                    flags.put(name, args[++i]);
+                } else {
+                    flags.put(name, "");
+                }
+            } else if (eq > 0) {
+                String key = arg.substring(0, eq);
+                String value = arg.substring(eq + 1);
+                if (key.equals("backends")) {
+                    value = String.join("|", value.split("[|,\\s]+"));
+                }
+                if (!FIELDS.contains(key)) {
+                    throw new UsageException("Field cannot be set: " + key);
+                }
+                // The index is one comma-separated line per site
+                if (value.contains(",") || value.contains("=") || value.contains("\n")) {
+                    throw new UsageException("Invalid value for " + key + ": " + value);
+                }
+                fields.put(key, value);
+            } else {
+                positional.add(arg);
+            }
+        }
+        return new Args(positional, fields, flags);
+    }
+
+    private static String checkDomain(String domain) throws UsageException {
+        if (!isValidDomain(domain)) {
+            throw new UsageException("Invalid domain: " + domain);
+        }
+        return domain;
+    }
+
+    /** True for fields that may appear in an index line or manifest */
+    static boolean isKnownField(String key) {
+        return FIELDS.contains(key) || RESERVED.contains(key);
+    }
+
+    /** A domain that is safe to use as a file name under sites-available/sites-enabled */
+    static boolean isValidDomain(String domain) {
+        return domain.matches("[A-Za-z0-9*_.-]+") && !domain.contains("..");
+    }
+
+    // --- read-only commands ------------------------------------------------------------
+
+    private static void list(ConfigJournal store, Args args, Map<String, Object> result) throws UsageException {
+        if (!args.positional().isEmpty()) {
+            throw new UsageException("list takes no domain");
+        }
+        String status = args.flags().get("status");
+        List<Map<String, String>> sites = new ArrayList<>();
+        store.forEach(row -> {
+            if (status == null || row.status().equals(status)) {
+                sites.add(row.toMap());
+            }
+        });
+        result.put("count", sites.size());
+        result.put("sites", sites);
+    }
+
+    private static void show(ConfigJournal store, Args args, Map<String, Object> result)
+            throws UsageException, Failure, IOException {
+        String domain = args.domain();
+        Map<String, String> site = existing(store, domain);
+        result.put("site", site);
+        result.put("enabled", Files.exists(FastNginx.enabledPath(site), LinkOption.NOFOLLOW_LINKS));
+        HealthProbe.State health = HealthProbe.load(FastNginx.dataDirPath()).get(domain);
+        if (health != null) {
+            Map<String, Object> h = new LinkedHashMap<>();
+            h.put("history", health.history());
+            h.put("up", health.lastUp());
+            h.put("checked_at", health.checkedAt());
+            h.put("detail", health.detail());
+            result.put("health", h);
+        }
+    }
+
+    private static void diag(ConfigJournal store, Args args, Map<String, Object> result)
+            throws UsageException, IOException {
+        if (!args.positional().isEmpty()) {
+            throw new UsageException("diag takes no arguments");
+        }
+        List<Map<String, String>> findings = new ArrayList<>();
+        boolean errors = false;
+        for (Diagnostics.Finding f : Diagnostics.run(store, Settings.load())) {
+            findings.add(Map.of("status", f.status(), "message", f.message()));
+            errors |= f.status().equals("error");
+        }
+        result.put("ok", !errors);
+        result.put("findings", findings);
+    }
+
+    // --- changes -----------------------------------------------------------------------
+
+    private static void fleet(ConfigJournal store, Args args, Map<String, Object> result, Metrics.Operation op)
+            throws UsageException, Failure, IOException {
+        if (!args.positional().isEmpty() || !args.fields().isEmpty()) {
+            throw new UsageException("fleet takes no arguments");
+        }
+        String nodes = args.flags().getOrDefault("node", "");
+        Set<String> only = nodes.isEmpty() ? Set.of() : new LinkedHashSet<>(Arrays.asList(nodes.split(",")));
+        boolean dryRun = args.flags().containsKey("dry-run");
+        result.put("dry_run", dryRun);
+        Fleet.push(store, only, dryRun, result, op);
+    }
+
+    private static void importSites(ConfigJournal store, Args args, Map<String, Object> result,
+            Metrics.Operation op) throws UsageException, IOException {
+        if (!args.positional().isEmpty() || !args.fields().isEmpty()) {
+            throw new UsageException("import takes no arguments");
+        }
+        SiteImporter.Report report = SiteImporter.scan(store);
+        op.lap("scan");
+        boolean dryRun = args.flags().containsKey("dry-run");
+        if (!dryRun) {
+            store.putAll(report.imported());
+            op.lap("index");
+        }
+
+        List<Map<String, String>> failed = new ArrayList<>();
+        for (SiteImporter.Outcome o : report.failed()) {
+            failed.add(Map.of("file", o.file().toString(), "problem", o.problem()));
+        }
+        result.put("dry_run", dryRun);
+        result.put("files", report.files());
+        result.put("already_indexed", report.alreadyIndexed());
+        result.put("imported", report.imported().stream().map(e -> e.get("domain")).toList());
+        result.put("failed", failed);
+        result.put("scan_ms", report.nanos() / 1_000_000);
+    }
+
+    private static void deploy(ConfigJournal store, Args args, Map<String, Object> result, Metrics.Operation op)
+            throws UsageException, Failure, Conflict, IOException {
+        String domain = args.domain();
+        Map<String, String> previous = store.latest(domain);
+
+        Map<String, String> site = new LinkedHashMap<>();
+        site.put("domain", domain);
+        site.putAll(args.fields());
+        site.putIfAbsent("status", "active");
+        site.putIfAbsent("ip", previous != null ? previous.getOrDefault("ip", "127.0.0.1") : "127.0.0.1");
+        normalize(site);
+
+        String hostsIp = args.flags().get("hosts");
+        if (hostsIp != null) {
+            if (hostsIp.isEmpty()) {
+                hostsIp = site.get("ip");
+            } else if (!hostsIp.matches("[0-9A-Fa-f:.]+")) {
+                throw new UsageException("Invalid --hosts address: " + hostsIp);
+            }
+            site.put("ip", hostsIp);
+        }
+        apply(store, previous, site, hostsIp, result, op);
+
+        if (args.flags().containsKey("precompress") && site.get("root") != null) {
+            Precompressor.Stats stats = Precompressor.run(Paths.get(site.get("root")));
+            op.lap("precompress");
+            Map<String, Object> p = new LinkedHashMap<>();
+            p.put("compressed", stats.compressed());
+            p.put("skipped", stats.skipped());
+            p.put("failed", stats.failed());
+            p.put("bytes_in", stats.bytesIn());
+            p.put("bytes_out", stats.bytesOut());
+            result.put("precompress", p);
+        }
+    }
+
+    private static void edit(ConfigJournal store, Args args, Map<String, Object> result, Metrics.Operation op)
+            throws UsageException, Failure, Conflict, IOException {
+        String domain = args.domain();
+        if (args.fields().isEmpty()) {
+            throw new UsageException("Nothing to change");
+        }
+        Map<String, String> previous = existing(store, domain);
+
+        Map<String, String> site = new LinkedHashMap<>(previous);
+        site.keySet().removeAll(RESERVED);
+        args.fields().forEach((key, value) -> {
+            if (value.isEmpty()) {
+                site.remove(key);
+            } else {
+                site.put(key, value);
+            }
+        });
+        String newDomain = checkDomain(site.getOrDefault("domain", ""));
+        if (!newDomain.equals(domain) && store.contains(newDomain)) {
+            throw new Failure("Domain already exists: " + newDomain);
+        }
+        normalize(site);
+        apply(store, previous, site, null, result, op);
+    }
+
+    private static void toggle(ConfigJournal store, Args args, Map<String, Object> result, Metrics.Operation op)
+            throws UsageException, Failure, Conflict, IOException {
+        String domain = args.domain();
+        Map<String, String> site = existing(store, domain);
+        String current = site.getOrDefault("status", "active");
+        String status = args.flags().getOrDefault("status", current.equals("active") ? "inactive" : "active");
+        if (!status.equals("active") && !status.equals("inactive")) {
+            throw new UsageException("Invalid status: " + status);
+        }
+
+        Path enabled = FastNginx.enabledPath(site);
+        Undo undo = new Undo();
+        if (status.equals("active")) {
+            undo.link(enabled, Paths.get(site.get("path")));
+        } else {
+            undo.unlink(enabled);
+        }
+        op.lap("write");
+        reloadOrRevert(undo, result);
+        op.lap("reload");
+        result.put("changed", !undo.isEmpty());
+        if (!status.equals(current)) {
+            Map<String, String> updated = new LinkedHashMap<>(site);
+            updated.put("status", status);
+            if (!store.replace(domain, site, updated)) {
+                throw lost(store, undo, domain);
+            }
+        }
+        op.lap("index");
+        result.put("domain", domain);
+        result.put("status", status);
+        result.put("changed", !undo.isEmpty() || !status.equals(current));
+    }
+
+    private static void delete(ConfigJournal store, Args args, Map<String, Object> result, Metrics.Operation op)
+            throws UsageException, Failure, Conflict, IOException {
+        String domain = args.domain();
+        Map<String, String> site = existing(store, domain);
+
+        Undo undo = new Undo();
+        undo.unlink(FastNginx.enabledPath(site));
+        undo.delete(Paths.get(site.getOrDefault("path", FastNginx.SITES_AVAILABLE.resolve(domain).toString())));
+        op.lap("write");
+        if (site.get("cache") != null || site.get("traffic") != null) {
+            Map<String, Map<String, String>> pending = new HashMap<>();
+            pending.put(domain, null);
+            SharedConfig.sync(store, pending);
+            op.lap("shared_config");
+        }
+        try {
+            reloadOrRevert(undo, result);
+        } catch (Failure e) {
+            SharedConfig.sync(store, Map.of());
+            throw e;
+        }
+        op.lap("reload");
+
+        // Only the record this run read: a site edited meanwhile gets its files back
+        if (!store.replace(domain, site, null)) {
+            throw lost(store, undo, domain);
+        }
+        op.lap("index");
+        HostsFile hosts = HostsFile.load();
+        if (hosts.remove(domain)) {
+            hosts.save();
+        }
+        op.lap("hosts");
+        result.put("domain", domain);
+        result.put("changed", true);
+    }
+
+    /**
+     * Brings one site's files, index record and hosts entry in line with
+     * {@code site}. previous is the current record (null for a new site) and
+     * may have another domain, in which case the old files are renamed away.
+     */
+    private static void apply(ConfigJournal store, Map<String, String> previous, Map<String, String> site,
+            String hostsIp, Map<String, Object> result, Metrics.Operation op) throws Failure, Conflict, IOException {
+        String domain = site.get("domain");
+        String oldDomain = previous == null ? null : previous.get("domain");
+        boolean renamed = oldDomain != null && !oldDomain.equals(domain);
+
+        SiteTemplate.Rendered rendered = Templates.render(site);
+        op.lap("render");
+        Path available = FastNginx.SITES_AVAILABLE.resolve(domain);
+        Path enabled = FastNginx.SITES_ENABLED.resolve(domain);
+        boolean active = site.get("status").equals("active");
+        // Renamed, or an imported file whose name is not the domain: the old file and link go away
+        boolean moved = previous != null && !available.toString().equals(previous.get("path"));
+
+        boolean fileCurrent = previous != null && !moved && rendered.hash().equals(previous.get("hash"))
+                && Files.exists(available);
+        boolean linkCurrent = active == Files.exists(enabled, LinkOption.NOFOLLOW_LINKS);
+
+        Undo undo = new Undo();
+        if (!fileCurrent || !linkCurrent) {
+            // Shared http file first: the site may reference a cache zone declared there
+            Map<String, Map<String, String>> pending = new HashMap<>();
+            if (renamed) {
+                pending.put(oldDomain, null);
+            }
+            pending.put(domain, site);
+            SharedConfig.sync(store, pending);
+            op.lap("shared_config");
+
+            SiteValidator.Outcome check = SiteValidator.validate(domain, rendered.content());
+            op.lap("validate");
+            if (!check.passed()) {
+                SharedConfig.sync(store, Map.of());
+                throw new Failure("Site validation failed").with("output", check.output());
+            }
+
+            if (!fileCurrent) {
+                undo.write(available, rendered.content());
+            }
+            if (active) {
+                undo.link(enabled, available);
+            } else {
+                undo.unlink(enabled);
+            }
+            if (moved) {
+                undo.unlink(FastNginx.enabledPath(previous));
+                undo.delete(Paths.get(previous.getOrDefault("path",
+                        FastNginx.SITES_AVAILABLE.resolve(oldDomain).toString())));
+            }
+            op.lap("write");
+            try {
+                reloadOrRevert(undo, result);
+            } catch (Failure e) {
+                SharedConfig.sync(store, Map.of());
+                throw e;
+            }
+            op.lap("reload");
+        }
+
+        String now = String.valueOf(System.currentTimeMillis());
+        site.put("path", available.toString());
+        site.put("created", previous != null ? previous.getOrDefault("created", now) : now);
+        site.put("hash", rendered.hash());
+        boolean indexChanged = !site.equals(previous);
+        result.put("changed", !fileCurrent || !linkCurrent);
+        // previous is what this run started from; if another writer moved it on, start again from theirs
+        if (indexChanged && !store.replace(renamed ? oldDomain : domain, previous, site)) {
+            throw lost(store, undo, domain);
+        }
+        op.lap("index");
+
+        // Hosts entry follows a rename; --hosts adds or updates it
+        if (renamed || hostsIp != null) {
+            HostsFile hosts = HostsFile.load();
+            if (renamed && hosts.get(oldDomain) != null) {
+                hosts.rename(oldDomain, domain, site.get("ip"));
+            }
+            if (hostsIp != null) {
+                hosts.put(domain, hostsIp);
+            }
+            result.put("hosts_updated", hosts.save());
+            op.lap("hosts");
+        }
+
+        result.put("domain", domain);
+        if (renamed) {
+            result.put("renamed_from", oldDomain);
+        }
+        result.put("changed", !fileCurrent || !linkCurrent || indexChanged);
+        result.put("site", site);
+    }
+
+    /** Fills in defaults and checks a site record; throws on the first problem */
+    private static void normalize(Map<String, String> site) throws Failure {
+        String domain = site.get("domain");
+        String type = site.getOrDefault("type", "proxy");
+        site.put("type", type);
+        String status = site.getOrDefault("status", "active");
+        if (!status.equals("active") && !status.equals("inactive")) {
+            throw new Failure("Invalid status: " + status);
+        }
+        if (TrafficProfile.OFF.equals(site.get("traffic"))) {
+            site.remove("traffic");
+        }
+        String trafficError = TrafficProfile.validate(site);
+        if (trafficError != null) {
+            throw new Failure(trafficError);
+        }
+        String ip = site.get("ip");
+        if (ip != null && !ip.matches("[0-9A-Fa-f:.]+")) {
+            throw new Failure("Invalid ip: " + ip);
+        }
+
+        if (type.equals("static")) {
+            site.putIfAbsent("template", "static");
+            String root = site.get("root");
+            if (root == null) {
+                throw new Failure("Missing root for static site " + domain);
+            }
+            Path rootPath = Paths.get(root).toAbsolutePath().normalize();
+            if (!Templates.isPlainArgument(rootPath.toString())) {
+                throw new Failure("Document root cannot contain spaces, quotes or ;{}$#: " + rootPath);
+            }
+            if (!Files.isDirectory(rootPath)) {
+                throw new Failure("Document root does not exist: " + rootPath);
+            }
+            site.put("root", rootPath.toString());
+        } else if (type.equals("proxy")) {
+            site.putIfAbsent("template", Templates.DEFAULT);
+            if (site.get("template").equals("static")) {
+                throw new Failure("Template static needs type=static");
+            }
+            String error = Upstream.validate(site);
+            if (error != null) {
+                throw new Failure(error);
+            }
+            String backends = site.get("backends");
+            if (backends != null) {
+                site.put("backends", String.join("|", backends.split("[|,\\s]+")));
+                site.putIfAbsent("port", Upstream.primaryPort(backends));
+            }
+            String port = site.get("port");
+            if (!Upstream.validPort(port)) {
+                throw new Failure("Valid port number required for " + domain);
+            }
+            String lb = site.get("lb");
+            if (lb != null && !Upstream.BALANCERS.contains(lb)) {
+                throw new Failure("Unknown load balancing method: " + lb);
+            }
+            if (CacheProfile.OFF.equals(site.get("cache"))) {
+                site.remove("cache");
+            }
+            String cacheError = CacheProfile.validate(site);
+            if (cacheError != null) {
+                throw new Failure(cacheError);
+            }
+        } else {
+            throw new Failure("Unknown service type: " + type);
+        }
+
+        if (!Templates.names().contains(site.get("template"))) {
+            throw new Failure("Unknown template: " + site.get("template"));
+        }
+    }
+
+    private static Map<String, String> existing(ConfigJournal store, String domain) throws Failure, IOException {
+        Map<String, String> site = store.latest(domain);
+        if (site == null) {
+            throw new Failure("No such site: " + domain);
+        }
+        return site;
+    }
+
+    /**
+     * An attempt's commit lost to another writer after its files went live:
+     * puts them and the shared file back to what the index now says and
+     * reloads, so nginx never serves a change the index does not have.
+     */
+    private static Conflict lost(ConfigJournal store, Undo undo, String domain) throws IOException {
+        if (!undo.isEmpty()) {
+            undo.revert();
+            SharedConfig.sync(store, Map.of());
+            ReloadScheduler scheduler = ReloadScheduler.shared();
+            CompletableFuture<ReloadScheduler.Result> pending = scheduler.request();
+            scheduler.drain();
+            pending.join();
+        }
+        return new Conflict(domain);
+    }
+
+    /**
+     * Reloads nginx now; a one-shot run has nothing to coalesce with, so the
+     * debounce is skipped. Rejected configurations are reverted and fail.
+     */
+    private static void reloadOrRevert(Undo undo, Map<String, Object> result) throws Failure, IOException {
+        if (undo.isEmpty()) {
+            return;
+        }
+        ReloadScheduler scheduler = ReloadScheduler.shared();
+        CompletableFuture<ReloadScheduler.Result> pending = scheduler.request();
+        scheduler.drain();
+        ReloadScheduler.Result reload = pending.join();
+
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("validated", reload.validated());
+        r.put("exit_code", reload.exitCode());
+        if (!reload.ok()) {
+            r.put("output", reload.output().trim());
+        }
+        result.put("reload", r);
+
+        if (!reload.validated()) {
+            undo.revert();
+            throw new Failure("Configuration test failed, changes reverted");
+        }
+        if (reload.exitCode() != 0) {
+            // The configuration is valid and stays; only the reload itself failed
+            result.put("ok", false);
+            result.put("error", "Nginx reload failed with exit code " + reload.exitCode());
+        }
+    }
+}
@@ -0,0 +1,654 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Journaled front end for the configuration index.
+ *
+ * Every mutation is a single fsync'd append to config_index.wal and is kept
+ * in an in-memory overlay, so its cost does not depend on how many sites are
+ * registered. config_index.db (see ConfigStore) is the checkpoint: on open the
+ * log tail after the checkpoint's sequence number is replayed on top of it,
+ * and once the log grows past a threshold a background thread folds the
+ * overlay into the checkpoint and truncates the log.
+ *
+ * Entry: [int length][int crc32][long seq][byte op][payload]
+ * where length and crc cover seq, op and payload. A torn or corrupt tail
+ * left by a crash is detected by the checksum and cut off on replay.
+ *
+ * Several processes can share one index. Each write takes config_index.lock
+ * for just the append: it first reads whatever the others appended, so its
+ * sequence number is the next one and it lands at the real end of the log.
+ * The last sequence number doubles as the index version. Compaction builds
+ * a new checkpoint file and moves it in, so other processes keep reading
+ * their old mapping until they next catch up. Nothing holds the lock while
+ * waiting on a person: interactive edits read a record, let the operator
+ * think, and commit with replace(), which fails if the record moved on.
+ */
+public class ConfigJournal implements Closeable {
+
+    static final String WAL_FILE_NAME = "config_index.wal";
+    static final String LOCK_FILE_NAME = "config_index.lock";
+    static final long DEFAULT_COMPACT_BYTES = 1024 * 1024;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_STATUS = 2;
+    private static final byte OP_REMOVE = 3;
+
+    // File locks belong to the whole process, so journals in one JVM queue here first
+    private static final Map<Path, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path dataDir;
+    private final FileChannel wal;
+    private final FileChannel lockFile;
+    private final ReentrantLock processLock;
+    private final long compactBytes;
+    private ConfigStore store;
+
+    // domain -> latest record, or null when removed since the checkpoint
+    private final Map<String, Map<String, String>> overlay = new LinkedHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "fastnginx-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long walSize;
+    private long lastSeq;
+    private int size;
+    private boolean compactionPending;
+
+    private ConfigJournal(Path dataDir, FileChannel wal, FileChannel lockFile, long compactBytes) {
+        this.dataDir = dataDir;
+        this.wal = wal;
+        this.lockFile = lockFile;
+        this.processLock = PROCESS_LOCKS.computeIfAbsent(dataDir.toAbsolutePath().normalize(),
+                dir -> new ReentrantLock());
+        this.compactBytes = compactBytes;
+    }
+
+    public static ConfigJournal open(Path dataDir) throws IOException {
+        return open(dataDir, DEFAULT_COMPACT_BYTES);
+    }
+
+    public static ConfigJournal open(Path dataDir, long compactBytes) throws IOException {
+        FileChannel wal = FileChannel.open(dataDir.resolve(WAL_FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel lockFile;
+        try {
+            lockFile = FileChannel.open(dataDir.resolve(LOCK_FILE_NAME), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            wal.close();
+            throw e;
+        }
+        ConfigJournal journal = new ConfigJournal(dataDir, wal, lockFile, compactBytes);
+        try {
+            journal.exclusive(() -> {
+                journal.load();
+                return null;
+            });
+        } catch (IOException | RuntimeException e) {
+            lockFile.close();
+            wal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /** (Re)reads checkpoint and log from scratch; the caller holds the lock file */
+    private void load() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+        store = ConfigStore.open(dataDir);
+        overlay.clear();
+        replay();
+    }
+
+    private void replay() throws IOException {
+        size = store.size();
+        lastSeq = store.checkpointSeq();
+
+        // The log is bounded by the compaction threshold, so it is read whole
+        ByteBuffer log = ByteBuffer.allocate(Math.toIntExact(wal.size()));
+        while (log.hasRemaining()) {
+            if (wal.read(log, log.position()) < 0) {
+                break;
+            }
+        }
+        log.flip();
+
+        int good = applyLog(log, false);
+        if (good < wal.size()) {
+            FastNginx.printStatus("Discarded torn journal tail (" + (wal.size() - good) + " bytes)", "warning");
+            wal.truncate(good);
+            wal.force(true);
+        }
+        walSize = good;
+    }
+
+    /**
+     * Applies the entries in log, which starts on an entry boundary, and
+     * returns the length of the intact prefix. With contiguous set, every
+     * entry must follow lastSeq directly and -1 is returned when one does not.
+     */
+    private int applyLog(ByteBuffer log, boolean contiguous) throws IOException {
+        int good = 0;
+        while (log.limit() - good >= 8) {
+            int length = log.getInt(good);
+            int crc = log.getInt(good + 4);
+            if (length < 9 || good + 8 + length > log.limit()) {
+                break;
+            }
+            byte[] body = new byte[length];
+            log.get(good + 8, body);
+            if (crc32(body) != crc) {
+                if (contiguous) {
+                    return -1;
+                }
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            long seq = in.readLong();
+            byte op = in.readByte();
+            if (contiguous && seq != lastSeq + 1) {
+                return -1;
+            }
+            if (seq > lastSeq) {
+                applyEntry(op, in);
+                lastSeq = seq;
+            }
+            good += 8 + length;
+        }
+        return good;
+    }
+
+    /**
+     * Picks up changes other processes made since this journal last read or
+     * wrote the index, reloading it when another process compacted it.
+     */
+    public void refresh() throws IOException {
+        exclusive(() -> null);
+    }
+
+    /**
+     * Runs action with the lock file held, once this journal has caught up
+     * with every entry other processes appended. Keep actions short: other
+     * processes' writes wait for the lock.
+     */
+    private <T> T exclusive(IoAction<T> action) throws IOException {
+        processLock.lock();
+        try {
+            FileLock held = lockFile.lock();
+            lock.writeLock().lock();
+            try {
+                if (store != null) {
+                    catchUp();
+                }
+                return action.run();
+            } finally {
+                lock.writeLock().unlock();
+                held.release();
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    private void catchUp() throws IOException {
+        long size = wal.size();
+        if (size < walSize || !store.isCurrent()) {
+            load();
+            return;
+        }
+        if (size > walSize) {
+            ByteBuffer tail = ByteBuffer.allocate(Math.toIntExact(size - walSize));
+            while (tail.hasRemaining()) {
+                if (wal.read(tail, walSize + tail.position()) < 0) {
+                    break;
+                }
+            }
+            tail.flip();
+            int good = applyLog(tail, true);
+            if (good < 0) {
+                load();
+                return;
+            }
+            walSize += good;
+        }
+        // No writer can be mid-append while the lock is held, so anything left is a crashed one's torn entry
+        if (size > walSize) {
+            wal.truncate(walSize);
+            wal.force(true);
+        }
+    }
+
+    private void applyEntry(byte op, DataInputStream in) throws IOException {
+        switch (op) {
+            case OP_PUT -> {
+                int fields = in.readUnsignedShort();
+                Map<String, String> entry = new LinkedHashMap<>();
+                for (int i = 0; i < fields; i++) {
+                    entry.put(in.readUTF(), in.readUTF());
+                }
+                applyPut(entry);
+            }
+            case OP_STATUS -> applyStatus(in.readUTF(), in.readUTF());
+            case OP_REMOVE -> applyRemove(in.readUTF());
+            default -> throw new IOException("Unknown journal op " + op);
+        }
+    }
+
+    private void applyPut(Map<String, String> entry) {
+        entry.values().removeIf(Objects::isNull);
+        String domain = entry.get("domain");
+        if (lookup(domain) == null) {
+            size++;
+        }
+        overlay.put(domain, entry);
+    }
+
+    private boolean applyStatus(String domain, String status) {
+        Map<String, String> current = lookup(domain);
+        if (current == null) {
+            return false;
+        }
+        current.put("status", status);
+        overlay.put(domain, current);
+        return true;
+    }
+
+    private boolean applyRemove(String domain) {
+        if (lookup(domain) == null) {
+            return false;
+        }
+        size--;
+        overlay.put(domain, null);
+        return true;
+    }
+
+    /** Current record for a domain; the returned map is owned by the caller's view */
+    private Map<String, String> lookup(String domain) {
+        if (overlay.containsKey(domain)) {
+            Map<String, String> entry = overlay.get(domain);
+            return entry == null ? null : new LinkedHashMap<>(entry);
+        }
+        return store.get(domain);
+    }
+
+    // ---- reads ----
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String domain) {
+        return get(domain) != null;
+    }
+
+    public Map<String, String> get(String domain) {
+        lock.readLock().lock();
+        try {
+            return lookup(domain);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Visits live records, overlay changes included; updated records may move to the end */
+    public void forEach(ConfigStore.RowVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            Set<String> seen = new HashSet<>();
+            store.forEach(row -> {
+                if (overlay.isEmpty()) {
+                    visitor.visit(row);
+                    return;
+                }
+                String domain = row.domain();
+                if (!overlay.containsKey(domain)) {
+                    visitor.visit(row);
+                } else {
+                    seen.add(domain);
+                    Map<String, String> entry = overlay.get(domain);
+                    if (entry != null) {
+                        visitor.visit(new MapRecord(entry));
+                    }
+                }
+            });
+            overlay.forEach((domain, entry) -> {
+                if (entry != null && !seen.contains(domain)) {
+                    visitor.visit(new MapRecord(entry));
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> domains() {
+        List<String> domains = new ArrayList<>(size());
+        forEach(record -> domains.add(record.domain()));
+        return domains;
+    }
+
+    /**
+     * Latest record for a domain, changes by other processes included.
+     * Read-modify-write callers start from this and commit with replace().
+     */
+    public Map<String, String> latest(String domain) throws IOException {
+        refresh();
+        return get(domain);
+    }
+
+    /** Whether record is still the latest for domain, for a cheap check before starting slow work */
+    public boolean isLatest(String domain, Map<String, String> record) throws IOException {
+        return sameRecord(latest(domain), record);
+    }
+
+    /**
+     * Index version: the sequence number of the last change. It only grows,
+     * across processes and compactions alike.
+     */
+    public long version() {
+        lock.readLock().lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ---- mutations ----
+
+    public void put(Map<String, String> entry) throws IOException {
+        putAll(List.of(entry));
+    }
+
+    /** Appends all entries with one write and one fsync */
+    public void putAll(Collection<Map<String, String>> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        for (Map<String, String> entry : entries) {
+            if (entry.get("domain") == null || entry.get("domain").isEmpty()) {
+                throw new IllegalArgumentException("Entry has no domain");
+            }
+        }
+        exclusive(() -> {
+            // lastSeq only advances once the entries are in the log
+            long seq = lastSeq;
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (Map<String, String> entry : entries) {
+                batch.write(encodePut(++seq, entry));
+            }
+            appendToLog(batch.toByteArray());
+            lastSeq = seq;
+            for (Map<String, String> entry : entries) {
+                applyPut(new LinkedHashMap<>(entry));
+            }
+            return null;
+        });
+        maybeCompact();
+    }
+
+    /**
+     * Compare-and-set: writes update, or removes the record when update is
+     * null, only if the record for domain still equals expected (null for
+     * no record). An update under another domain renames the site and also
+     * needs that domain to be free. Returns false without writing anything
+     * when another writer changed the record first.
+     */
+    public boolean replace(String domain, Map<String, String> expected, Map<String, String> update)
+            throws IOException {
+        String target = update == null ? domain : update.get("domain");
+        if (target == null || target.isEmpty()) {
+            throw new IllegalArgumentException("Entry has no domain");
+        }
+        boolean committed = exclusive(() -> {
+            Map<String, String> current = lookup(domain);
+            if (!sameRecord(current, expected)) {
+                return false;
+            }
+            boolean renamed = !target.equals(domain);
+            if (renamed && lookup(target) != null) {
+                return false;
+            }
+            boolean removed = current != null && (update == null || renamed);
+            long seq = lastSeq;
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            if (removed) {
+                batch.write(encode(++seq, OP_REMOVE, out -> out.writeUTF(domain)));
+            }
+            if (update != null) {
+                batch.write(encodePut(++seq, update));
+            }
+            if (batch.size() > 0) {
+                appendToLog(batch.toByteArray());
+                lastSeq = seq;
+            }
+            if (removed) {
+                applyRemove(domain);
+            }
+            if (update != null) {
+                applyPut(new LinkedHashMap<>(update));
+            }
+            return true;
+        });
+        if (committed) {
+            maybeCompact();
+        }
+        return committed;
+    }
+
+    /** Record equality as the checkpoint stores it: status is active unless inactive, null fields dropped */
+    private static boolean sameRecord(Map<String, String> a, Map<String, String> b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return normalized(a).equals(normalized(b));
+    }
+
+    private static Map<String, String> normalized(Map<String, String> entry) {
+        Map<String, String> copy = new HashMap<>(entry);
+        copy.values().removeIf(Objects::isNull);
+        copy.put("status", "inactive".equals(entry.get("status")) ? "inactive" : "active");
+        return copy;
+    }
+
+    public boolean setStatus(String domain, String status) throws IOException {
+        boolean found = exclusive(() -> {
+            if (lookup(domain) == null) {
+                return false;
+            }
+            appendToLog(encode(lastSeq + 1, OP_STATUS, out -> {
+                out.writeUTF(domain);
+                out.writeUTF(status);
+            }));
+            lastSeq++;
+            return applyStatus(domain, status);
+        });
+        maybeCompact();
+        return found;
+    }
+
+    public boolean remove(String domain) throws IOException {
+        boolean found = exclusive(() -> {
+            if (lookup(domain) == null) {
+                return false;
+            }
+            appendToLog(encode(lastSeq + 1, OP_REMOVE, out -> out.writeUTF(domain)));
+            lastSeq++;
+            return applyRemove(domain);
+        });
+        maybeCompact();
+        return found;
+    }
+
+    private void appendToLog(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = walSize;
+        while (buffer.hasRemaining()) {
+            position += wal.write(buffer, position);
+        }
+        wal.force(false);
+        walSize = position;
+    }
+
+    // ---- compaction ----
+
+    private void maybeCompact() {
+        lock.writeLock().lock();
+        try {
+            if (walSize < compactBytes || compactionPending) {
+                return;
+            }
+            compactionPending = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                FastNginx.printStatus("Journal compaction failed: " + e.getMessage(), "warning");
+            }
+        });
+    }
+
+    /**
+     * Folds the overlay into a copy of the checkpoint, moves the copy in and
+     * truncates the log. The copy carries the new checkpoint sequence, so a
+     * crash at any point leaves either the old checkpoint with the intact
+     * log, or the new one with log entries it already covers.
+     */
+    public void compact() throws IOException {
+        exclusive(() -> {
+            compactionPending = false;
+            if (walSize == 0) {
+                return null;
+            }
+            Path next = dataDir.resolve(ConfigStore.FILE_NAME + ".next");
+            try (ConfigStore copy = store.copyTo(next)) {
+                for (Map.Entry<String, Map<String, String>> e : overlay.entrySet()) {
+                    if (e.getValue() == null) {
+                        copy.delete(e.getKey());
+                    } else {
+                        copy.append(e.getValue());
+                    }
+                }
+                copy.setCheckpointSeq(lastSeq);
+                copy.flush();
+            }
+            Files.move(next, dataDir.resolve(ConfigStore.FILE_NAME), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            store.close();
+            store = ConfigStore.open(dataDir);
+
+            wal.truncate(0);
+            wal.force(true);
+            walSize = 0;
+            overlay.clear();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wal.close();
+        lockFile.close();
+        store.close();
+    }
+
+    // ---- encoding ----
+
+    @FunctionalInterface
+    private interface IoAction<T> {
+        T run() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(long seq, byte op, PayloadWriter payload) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(64);
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        body.writeLong(seq);
+        body.writeByte(op);
+        payload.write(body);
+        byte[] bodyArray = bodyBytes.toByteArray();
+
+        ByteBuffer entry = ByteBuffer.allocate(8 + bodyArray.length);
+        entry.putInt(bodyArray.length);
+        entry.putInt(crc32(bodyArray));
+        entry.put(bodyArray);
+        return entry.array();
+    }
+
+    /** Null values are skipped, as in the checkpoint */
+    private static byte[] encodePut(long seq, Map<String, String> entry) throws IOException {
+        return encode(seq, OP_PUT, out -> {
+            out.writeShort((int) entry.values().stream().filter(Objects::nonNull).count());
+            for (Map.Entry<String, String> e : entry.entrySet()) {
+                if (e.getValue() != null) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue());
+                }
+            }
+        });
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /** Record view over an overlay entry */
+    private record MapRecord(Map<String, String> entry) implements ConfigStore.Record {
+        @Override
+        public String domain() {
+            return entry.get("domain");
+        }
+
+        @Override
+        public String status() {
+            return entry.getOrDefault("status", "active");
+        }
+
+        @Override
+        public String get(String key) {
+            return key.equals("status") ? status() : entry.get(key);
+        }
+
+        @Override
+        public Map<String, String> toMap() {
+            return new LinkedHashMap<>(entry);
+        }
+    }
+}
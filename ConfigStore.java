@@ -0,0 +1,554 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Memory-mapped binary configuration index keyed by domain.
+ *
+ * Layout of config_index.db:
+ *   [header 64 bytes][slot table: capacity x long record offset][record heap]
+ *
+ * The slot table is an open-addressing hash table (linear probing) so a
+ * lookup touches one or two slots regardless of how many sites exist.
+ * Records are appended to the heap; an update appends a new record and
+ * repoints the slot, a status flip rewrites a single byte in place.
+ *
+ * Record: [int length][int hash][byte status][byte flags][short fieldCount]
+ *         then fieldCount x ([ushort keyLen][key][ushort valueLen][value])
+ */
+public class ConfigStore implements Closeable {
+
+    static final String FILE_NAME = "config_index.db";
+    static final String LEGACY_FILE_NAME = "config_index";
+
+    private static final int MAGIC = 0x464E4758; // "FNGX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_HEADER = 12;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_HEAP = 64 * 1024;
+
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_COUNT = 8;
+    private static final int OFF_CAPACITY = 12;
+    private static final int OFF_HEAP_END = 16;
+    private static final int OFF_GARBAGE = 24;
+    private static final int OFF_TOMBSTONES = 32;
+    private static final int OFF_CHECKPOINT_SEQ = 40;
+
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    private static final byte FLAG_DEAD = 1;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    // Identity of the file this mapping belongs to, to notice a swap by another process
+    private Object fileKey;
+
+    private ConfigStore(Path file, FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.fileKey = fileKey(file);
+    }
+
+    private static Object fileKey(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Opens the index in the given data directory, creating it and migrating
+     * the legacy comma-separated config_index on first use.
+     */
+    public static ConfigStore open(Path dataDir) throws IOException {
+        Path file = dataDir.resolve(FILE_NAME);
+        boolean fresh = !Files.exists(file);
+
+        ConfigStore store = fresh ? create(file, INITIAL_CAPACITY) : map(file);
+
+        Path legacy = dataDir.resolve(LEGACY_FILE_NAME);
+        if (fresh && Files.exists(legacy)) {
+            store.migrate(legacy);
+        }
+        return store;
+    }
+
+    private static ConfigStore create(Path file, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long size = HEADER_SIZE + (long) capacity * 8 + INITIAL_HEAP;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.putInt(OFF_MAGIC, MAGIC);
+        buffer.putInt(OFF_VERSION, VERSION);
+        buffer.putInt(OFF_COUNT, 0);
+        buffer.putInt(OFF_CAPACITY, capacity);
+        buffer.putLong(OFF_HEAP_END, HEADER_SIZE + (long) capacity * 8);
+        buffer.putLong(OFF_GARBAGE, 0);
+        buffer.putInt(OFF_TOMBSTONES, 0);
+        return new ConfigStore(file, channel, buffer);
+    }
+
+    private static ConfigStore map(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(OFF_MAGIC) != MAGIC) {
+            channel.close();
+            throw new IOException("Not a FastNginx index: " + file);
+        }
+        if (buffer.getInt(OFF_VERSION) != VERSION) {
+            channel.close();
+            throw new IOException("Unsupported index version " + buffer.getInt(OFF_VERSION) + ": " + file);
+        }
+        return new ConfigStore(file, channel, buffer);
+    }
+
+    private void migrate(Path legacy) throws IOException {
+        int migrated = 0;
+        for (String line : Files.readAllLines(legacy)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            Map<String, String> entry = FastNginx.parseConfigLine(line);
+            if (entry.get("domain") != null) {
+                append(entry);
+                migrated++;
+            }
+        }
+        buffer.force();
+        Files.move(legacy, legacy.resolveSibling(LEGACY_FILE_NAME + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+        FastNginx.printStatus("Migrated " + migrated + " entries to binary index", "info");
+    }
+
+    /** Number of registered sites */
+    public int size() {
+        return buffer.getInt(OFF_COUNT);
+    }
+
+    public boolean contains(String domain) {
+        return find(domain.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    /** Returns a copy of the record for a domain, or null */
+    public Map<String, String> get(String domain) {
+        int slot = find(domain.getBytes(StandardCharsets.UTF_8));
+        if (slot < 0) {
+            return null;
+        }
+        Row row = new Row();
+        row.at(slotValue(slot));
+        return row.toMap();
+    }
+
+    /** Inserts or replaces the record keyed by its "domain" field */
+    public void put(Map<String, String> entry) throws IOException {
+        append(entry);
+        buffer.force();
+    }
+
+    /** Inserts or replaces many records with a single flush to disk */
+    public void putAll(Collection<Map<String, String>> entries) throws IOException {
+        for (Map<String, String> entry : entries) {
+            append(entry);
+        }
+        buffer.force();
+    }
+
+    void append(Map<String, String> entry) throws IOException {
+        String domain = entry.get("domain");
+        if (domain == null || domain.isEmpty()) {
+            throw new IllegalArgumentException("Entry has no domain");
+        }
+        byte[] key = domain.getBytes(StandardCharsets.UTF_8);
+        byte[] record = encode(entry, hash(key));
+
+        ensureSlotCapacity();
+        ensureHeap(record.length);
+
+        long offset = buffer.getLong(OFF_HEAP_END);
+        buffer.put(Math.toIntExact(offset), record);
+        buffer.putLong(OFF_HEAP_END, offset + record.length);
+
+        int slot = find(key);
+        if (slot >= 0) {
+            kill(slotValue(slot));
+            setSlot(slot, offset);
+        } else {
+            setSlot(insertionSlot(key), offset);
+            buffer.putInt(OFF_COUNT, size() + 1);
+        }
+        maybeCompact();
+    }
+
+    /** Flips the status byte of a record in place */
+    public boolean setStatus(String domain, String status) {
+        boolean found = flip(domain, status);
+        buffer.force();
+        return found;
+    }
+
+    boolean flip(String domain, String status) {
+        int slot = find(domain.getBytes(StandardCharsets.UTF_8));
+        if (slot < 0) {
+            return false;
+        }
+        int offset = Math.toIntExact(slotValue(slot));
+        buffer.put(offset + 8, "active".equals(status) ? (byte) 1 : (byte) 0);
+        return true;
+    }
+
+    public boolean remove(String domain) throws IOException {
+        boolean found = delete(domain);
+        buffer.force();
+        return found;
+    }
+
+    boolean delete(String domain) throws IOException {
+        int slot = find(domain.getBytes(StandardCharsets.UTF_8));
+        if (slot < 0) {
+            return false;
+        }
+        kill(slotValue(slot));
+        setSlot(slot, TOMBSTONE);
+        buffer.putInt(OFF_COUNT, size() - 1);
+        buffer.putInt(OFF_TOMBSTONES, buffer.getInt(OFF_TOMBSTONES) + 1);
+        maybeCompact();
+        return true;
+    }
+
+    /** Sequence number of the last journal entry folded into this file */
+    long checkpointSeq() {
+        return buffer.getLong(OFF_CHECKPOINT_SEQ);
+    }
+
+    void setCheckpointSeq(long seq) {
+        buffer.putLong(OFF_CHECKPOINT_SEQ, seq);
+    }
+
+    /** Flushes staged changes to disk */
+    void flush() {
+        buffer.force();
+    }
+
+    /** Copies the index to target and opens the copy, which can be edited and swapped in later */
+    ConfigStore copyTo(Path target) throws IOException {
+        buffer.force();
+        Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+        return map(target);
+    }
+
+    /** False once another file has been moved in at this index's path, e.g. by a compaction */
+    boolean isCurrent() throws IOException {
+        try {
+            return fileKey == null || fileKey.equals(fileKey(file));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Visits every live record in heap order. The same Row instance is
+     * reused for each record, so callers must not keep it past the callback.
+     */
+    public void forEach(RowVisitor visitor) {
+        Row row = new Row();
+        long end = buffer.getLong(OFF_HEAP_END);
+        long offset = HEADER_SIZE + (long) capacity() * 8;
+        while (offset < end) {
+            int length = buffer.getInt(Math.toIntExact(offset));
+            if ((buffer.get(Math.toIntExact(offset) + 9) & FLAG_DEAD) == 0) {
+                row.at(offset);
+                visitor.visit(row);
+            }
+            offset += length;
+        }
+    }
+
+    /** Domains of all live records in insertion order */
+    public List<String> domains() {
+        List<String> domains = new ArrayList<>(size());
+        forEach(row -> domains.add(row.domain()));
+        return domains;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    @FunctionalInterface
+    public interface RowVisitor {
+        void visit(Record record);
+    }
+
+    /** Read-only view of one site record */
+    public interface Record {
+        String domain();
+
+        String status();
+
+        String get(String key);
+
+        Map<String, String> toMap();
+    }
+
+    /** Flyweight view over one record in the mapped file */
+    public class Row implements Record {
+        private int offset;
+
+        private void at(long offset) {
+            this.offset = Math.toIntExact(offset);
+        }
+
+        @Override
+        public String status() {
+            return buffer.get(offset + 8) == 1 ? "active" : "inactive";
+        }
+
+        @Override
+        public String domain() {
+            return get("domain");
+        }
+
+        /** Value of a field, decoded without materialising the rest of the record */
+        @Override
+        public String get(String key) {
+            if (key.equals("status")) {
+                return status();
+            }
+            int fields = buffer.getShort(offset + 10) & 0xFFFF;
+            int pos = offset + RECORD_HEADER;
+            for (int i = 0; i < fields; i++) {
+                int keyLen = buffer.getShort(pos) & 0xFFFF;
+                int valuePos = pos + 2 + keyLen;
+                int valueLen = buffer.getShort(valuePos) & 0xFFFF;
+                if (keyEquals(pos + 2, keyLen, key)) {
+                    return decode(valuePos + 2, valueLen);
+                }
+                pos = valuePos + 2 + valueLen;
+            }
+            return null;
+        }
+
+        @Override
+        public Map<String, String> toMap() {
+            Map<String, String> map = new LinkedHashMap<>();
+            int fields = buffer.getShort(offset + 10) & 0xFFFF;
+            int pos = offset + RECORD_HEADER;
+            for (int i = 0; i < fields; i++) {
+                int keyLen = buffer.getShort(pos) & 0xFFFF;
+                String key = decode(pos + 2, keyLen);
+                pos += 2 + keyLen;
+                int valueLen = buffer.getShort(pos) & 0xFFFF;
+                map.put(key, decode(pos + 2, valueLen));
+                pos += 2 + valueLen;
+            }
+            map.put("status", status());
+            return map;
+        }
+
+        private boolean keyEquals(int pos, int len, String key) {
+            if (len != key.length()) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (buffer.get(pos + i) != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String decode(int pos, int len) {
+            byte[] bytes = new byte[len];
+            buffer.get(pos, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // ---- hash table ----
+
+    private int capacity() {
+        return buffer.getInt(OFF_CAPACITY);
+    }
+
+    private long slotValue(int slot) {
+        return buffer.getLong(HEADER_SIZE + slot * 8);
+    }
+
+    private void setSlot(int slot, long value) {
+        buffer.putLong(HEADER_SIZE + slot * 8, value);
+    }
+
+    /** Slot index holding the domain, or -1 */
+    private int find(byte[] key) {
+        int capacity = capacity();
+        int hash = hash(key);
+        int mask = capacity - 1;
+        for (int i = hash & mask, probes = 0; probes < capacity; i = (i + 1) & mask, probes++) {
+            long offset = slotValue(i);
+            if (offset == EMPTY) {
+                return -1;
+            }
+            if (offset != TOMBSTONE && buffer.getInt(Math.toIntExact(offset) + 4) == hash
+                    && domainEquals(offset, key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int insertionSlot(byte[] key) {
+        int mask = capacity() - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            long offset = slotValue(i);
+            if (offset == EMPTY) {
+                return i;
+            }
+            if (offset == TOMBSTONE) {
+                buffer.putInt(OFF_TOMBSTONES, buffer.getInt(OFF_TOMBSTONES) - 1);
+                return i;
+            }
+        }
+    }
+
+    private boolean domainEquals(long recordOffset, byte[] key) {
+        // "domain" is always encoded as the first field
+        int pos = Math.toIntExact(recordOffset) + RECORD_HEADER;
+        int keyLen = buffer.getShort(pos) & 0xFFFF;
+        int valuePos = pos + 2 + keyLen;
+        if ((buffer.getShort(valuePos) & 0xFFFF) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(valuePos + 2 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void kill(long recordOffset) {
+        int offset = Math.toIntExact(recordOffset);
+        buffer.put(offset + 9, (byte) (buffer.get(offset + 9) | FLAG_DEAD));
+        buffer.putLong(OFF_GARBAGE, buffer.getLong(OFF_GARBAGE) + buffer.getInt(offset));
+    }
+
+    static int hash(byte[] key) {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for (byte b : key) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // ---- growth and compaction ----
+
+    private void ensureSlotCapacity() throws IOException {
+        int used = size() + buffer.getInt(OFF_TOMBSTONES) + 1;
+        if (used * 10L >= capacity() * 7L) {
+            int capacity = capacity();
+            while (size() * 2L >= capacity) {
+                capacity <<= 1;
+            }
+            rebuild(Math.max(capacity, INITIAL_CAPACITY));
+        }
+    }
+
+    private void ensureHeap(int bytes) throws IOException {
+        long needed = buffer.getLong(OFF_HEAP_END) + bytes;
+        if (needed <= buffer.capacity()) {
+            return;
+        }
+        long size = buffer.capacity();
+        while (size < needed) {
+            size *= 2;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Configuration index exceeds 2 GB");
+        }
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void maybeCompact() throws IOException {
+        long heapStart = HEADER_SIZE + (long) capacity() * 8;
+        long heapUsed = buffer.getLong(OFF_HEAP_END) - heapStart;
+        long garbage = buffer.getLong(OFF_GARBAGE);
+        if (garbage > INITIAL_HEAP && garbage * 2 > heapUsed) {
+            rebuild(capacity());
+        }
+    }
+
+    /** Rewrites live records into a fresh file and swaps it in atomically */
+    private void rebuild(int capacity) throws IOException {
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (ConfigStore next = create(tmp, capacity)) {
+            next.setCheckpointSeq(checkpointSeq());
+            forEach(row -> {
+                try {
+                    next.append(row.toMap());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        channel.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ConfigStore reopened = map(file);
+        channel = reopened.channel;
+        buffer = reopened.buffer;
+        fileKey = reopened.fileKey;
+    }
+
+    private static byte[] encode(Map<String, String> entry, int hash) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        DataOutputStream data = new DataOutputStream(out);
+        try {
+            data.writeInt(0); // length, patched below
+            data.writeInt(hash);
+            data.writeByte("inactive".equals(entry.get("status")) ? 0 : 1);
+            data.writeByte(0);
+
+            List<Map.Entry<String, String>> fields = new ArrayList<>();
+            fields.add(Map.entry("domain", entry.get("domain")));
+            for (Map.Entry<String, String> e : entry.entrySet()) {
+                if (!e.getKey().equals("domain") && !e.getKey().equals("status") && e.getValue() != null) {
+                    fields.add(e);
+                }
+            }
+            data.writeShort(fields.size());
+            for (Map.Entry<String, String> e : fields) {
+                writeField(data, e.getKey());
+                writeField(data, e.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] record = out.toByteArray();
+        int length = record.length;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        return record;
+    }
+
+    private static void writeField(DataOutputStream data, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Field value too long: " + bytes.length + " bytes");
+        }
+        data.writeShort(bytes.length);
+        data.write(bytes);
+    }
+}
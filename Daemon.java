@@ -0,0 +1,458 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Long-running mode: the index is opened once and kept in memory, and the
+ * CLI's JSON commands are served over HTTP by the JDK's built-in server with
+ * one virtual thread per request.
+ *
+ *   GET    /sites[?status=active]       list
+ *   GET    /sites/{domain}              show, plus any drift found on disk
+ *   PUT    /sites/{domain}              deploy; fields form-encoded in the body, ?hosts[=ip]&precompress
+ *   PATCH  /sites/{domain}              edit
+ *   POST   /sites/{domain}/toggle       toggle[?status=inactive]
+ *   DELETE /sites/{domain}              delete
+ *   POST   /import[?dry-run]            import
+ *   POST   /fleet[?dry-run&node=a,b]    fleet
+ *   GET    /diag, GET /health
+ *
+ * Reads run concurrently. Writes run one at a time: each ends in a full
+ * nginx -t and touches the shared http file and /etc/hosts.
+ *
+ * A WatchService follows nginx_data and sites-*: log entries appended by
+ * other FastNginx processes are applied incrementally (the journal reloads
+ * itself after an outside compaction), and a file edited or a symlink
+ * added or removed outside FastNginx is reported as drift. The watcher
+ * never writes the index: another FastNginx process creates the link
+ * before it commits, and a status written in between would make that
+ * process lose its compare-and-set.
+ *
+ * Every request needs "Authorization: Bearer <token>". The token is
+ * daemon.token, or a random one kept in nginx_data/daemon.token (mode 0600)
+ * when that setting is empty. daemon.token=off disables the check, which is
+ * only accepted on a loopback address. Requests whose Host is not the
+ * listen address or that carry an Origin header (a browser page, possibly
+ * after DNS rebinding) are refused.
+ *
+ * Settings: daemon.listen (127.0.0.1:18082), daemon.token (empty, a token or off).
+ */
+public final class Daemon {
+
+    static final String DEFAULT_LISTEN = "127.0.0.1:18082";
+
+    private static final String USAGE = "Usage: java FastNginx daemon [--listen host:port]";
+    /** Events arriving this close together are handled as one batch */
+    private static final long SETTLE_MS = 20;
+    static final String TOKEN_FILE_NAME = "daemon.token";
+
+    private final Path dataDir;
+    private final String token;
+    /** Accepted Host headers; empty when listening on a wildcard address */
+    private final Set<String> hosts = new HashSet<>();
+    private final ReentrantLock writes = new ReentrantLock();
+    private volatile ConfigJournal store;
+
+    // File name in sites-available (and link name in sites-enabled) -> domain
+    private final Map<String, String> byFileName = new ConcurrentHashMap<>();
+    // domain -> how the files on disk differ from the index
+    private final Map<String, String> drift = new ConcurrentHashMap<>();
+    private final Set<String> unmanaged = ConcurrentHashMap.newKeySet();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final long startedAt = System.currentTimeMillis();
+
+    private Daemon(Path dataDir, String token) {
+        this.dataDir = dataDir;
+        this.token = token;
+    }
+
+    static int run(String[] args) {
+        String listen = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--listen") && i + 1 < args.length) {
+                listen = args[++i];
+            } else if (args[i].startsWith("--listen=")) {
+                listen = args[i].substring("--listen=".length());
+            } else {
+                System.err.println(USAGE);
+                return 2;
+            }
+        }
+
+        try {
+            Settings settings = Settings.load();
+            if (listen == null) {
+                listen = settings.get("daemon.listen", DEFAULT_LISTEN);
+            }
+            Path dataDir = FastNginx.dataDirPath();
+            Daemon daemon = new Daemon(dataDir, token(settings.get("daemon.token", ""), dataDir));
+            daemon.serve(listen);
+            return 0;
+        } catch (IOException e) {
+            FastNginx.printStatus("Daemon failed: " + e.getMessage(), "error");
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    /** The configured token, "" for off, or the generated one from nginx_data/daemon.token */
+    private static String token(String configured, Path dataDir) throws IOException {
+        if (configured.equals("off")) {
+            return "";
+        }
+        if (!configured.isEmpty()) {
+            return configured;
+        }
+        Path file = dataDir.resolve(TOKEN_FILE_NAME);
+        if (Files.exists(file)) {
+            String stored = Files.readString(file).trim();
+            if (!stored.isEmpty()) {
+                return stored;
+            }
+            Files.delete(file);
+        }
+        byte[] random = new byte[32];
+        new java.security.SecureRandom().nextBytes(random);
+        String generated = HexFormat.of().formatHex(random);
+        Files.createDirectories(dataDir);
+        Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.writeString(file, generated + "\n");
+        FastNginx.printStatus("Generated API token in " + file, "info");
+        return generated;
+    }
+
+    private void serve(String listen) throws IOException, InterruptedException {
+        Metrics.longRunning();
+        store = ConfigJournal.open(dataDir);
+        indexFileNames();
+
+        int colon = listen.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("daemon.listen must be host:port: " + listen);
+        }
+        String host = listen.substring(0, colon);
+        String port = listen.substring(colon + 1);
+        if (!Upstream.validPort(port)) {
+            throw new IOException("daemon.listen port must be from 1 to 65535: " + listen);
+        }
+        InetSocketAddress address = new InetSocketAddress(host, Integer.parseInt(port));
+        if (address.isUnresolved()) {
+            throw new IOException("daemon.listen host does not resolve: " + listen);
+        }
+        boolean loopback = address.getAddress().isLoopbackAddress();
+        if (token.isEmpty() && !loopback) {
+            throw new IOException("daemon.token=off is only allowed on a loopback listen address");
+        }
+        if (!address.getAddress().isAnyLocalAddress()) {
+            hosts.add(listen.toLowerCase());
+            if (loopback) {
+                hosts.addAll(List.of("localhost:" + port, "127.0.0.1:" + port, "[::1]:" + port));
+            }
+        }
+        HttpServer server = HttpServer.create(address, 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", this::handle);
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(0);
+            ReloadScheduler.shared().drain();
+            try {
+                store.close();
+            } catch (IOException e) {
+                // Every write was already fsync'd to the log
+            }
+        }));
+        FastNginx.printStatus("Daemon listening on http://" + listen + " (" + store.size() + " sites)", "success");
+        if (token.isEmpty()) {
+            FastNginx.printStatus("daemon.token=off: every local process can deploy without a token", "warning");
+        }
+
+        watch();
+    }
+
+    // --- HTTP ----------------------------------------------------------------------------
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        try {
+            Headers headers = exchange.getRequestHeaders();
+            String host = headers.getFirst("Host");
+            if (!hosts.isEmpty() && (host == null || !hosts.contains(host.toLowerCase()))) {
+                send(exchange, 421, Map.of("ok", false, "error", "Unexpected Host: " + host));
+                return;
+            }
+            if (headers.containsKey("Origin")) {
+                send(exchange, 403, Map.of("ok", false, "error", "Cross-origin requests are not accepted"));
+                return;
+            }
+            if (!token.isEmpty() && !authorized(headers.getFirst("Authorization"))) {
+                send(exchange, 401, Map.of("ok", false, "error", "Unauthorized"));
+                return;
+            }
+
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+            String resource = path.length > 1 ? path[1] : "";
+            String domain = path.length > 2 ? path[2] : null;
+            String action = path.length > 3 ? path[3] : null;
+
+            List<String> args = new ArrayList<>();
+            if (domain != null) {
+                args.add(domain);
+            }
+            String command = switch (resource + " " + method) {
+                case "health GET" -> "health";
+                case "sites GET" -> domain == null ? "list" : "show";
+                case "sites PUT" -> "deploy";
+                case "sites PATCH" -> "edit";
+                case "sites POST" -> "toggle".equals(action) ? "toggle" : null;
+                case "sites DELETE" -> "delete";
+                case "import POST" -> "import";
+                case "fleet POST" -> "fleet";
+                case "diag GET" -> "diag";
+                default -> null;
+            };
+            if (command == null || (action != null && !command.equals("toggle"))) {
+                send(exchange, 404, Map.of("ok", false, "error", "No route for " + method + " "
+                        + exchange.getRequestURI().getPath()));
+                return;
+            }
+            if (command.equals("health")) {
+                send(exchange, 200, health());
+                return;
+            }
+
+            // Query parameters become --flags, a form-encoded body becomes key=value fields
+            String query = exchange.getRequestURI().getRawQuery();
+            for (String pair : query == null ? new String[0] : query.split("&")) {
+                if (!pair.isEmpty()) {
+                    args.add("--" + decode(pair));
+                }
+            }
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            for (String pair : body.split("&")) {
+                if (!pair.isBlank()) {
+                    args.add(decode(pair.trim()));
+                }
+            }
+
+            Map<String, Object> result = execute(command, args.toArray(new String[0]));
+            if (command.equals("show") && domain != null && drift.containsKey(domain)) {
+                result.put("drift", drift.get(domain));
+            }
+            int status = Boolean.TRUE.equals(result.get("ok")) ? 200
+                    : String.valueOf(result.get("error")).startsWith("No such site") ? 404 : 422;
+            send(exchange, status, result);
+        } catch (Cli.UsageException e) {
+            send(exchange, 400, Map.of("ok", false, "error", e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean authorized(String header) {
+        byte[] expected = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        byte[] given = header == null ? new byte[0] : header.getBytes(StandardCharsets.UTF_8);
+        return java.security.MessageDigest.isEqual(expected, given);
+    }
+
+    private Map<String, Object> execute(String command, String[] args) throws Cli.UsageException {
+        boolean mutating = switch (command) {
+            case "deploy", "edit", "toggle", "delete", "import", "fleet" -> true;
+            default -> false;
+        };
+        long start = System.nanoTime();
+        if (mutating) {
+            writes.lock();
+        }
+        try {
+            Map<String, Object> result = Cli.execute(store, command, args);
+            if (mutating) {
+                indexFileNames();
+            }
+            result.put("elapsed_us", (System.nanoTime() - start) / 1_000);
+            return result;
+        } finally {
+            if (mutating) {
+                writes.unlock();
+            }
+        }
+    }
+
+    private Map<String, Object> health() {
+        Map<String, Object> health = new LinkedHashMap<>();
+        health.put("ok", true);
+        health.put("sites", store.size());
+        health.put("index_version", store.version());
+        health.put("uptime_ms", System.currentTimeMillis() - startedAt);
+        health.put("requests", requests.sum());
+        health.put("watch_events", events.sum());
+        health.put("drift", new TreeMap<>(drift));
+        health.put("unmanaged_files", new TreeSet<>(unmanaged));
+        return health;
+    }
+
+    private static String decode(String s) {
+        return URLDecoder.decode(s, StandardCharsets.UTF_8);
+    }
+
+    private static void send(HttpExchange exchange, int status, Map<String, ?> result) throws IOException {
+        byte[] body = Json.write(result).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    // --- watching ------------------------------------------------------------------------
+
+    private void watch() throws IOException, InterruptedException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        Map<WatchKey, Path> dirs = new HashMap<>();
+        for (Path dir : List.of(dataDir, FastNginx.SITES_AVAILABLE, FastNginx.SITES_ENABLED)) {
+            if (Files.isDirectory(dir)) {
+                dirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+            }
+        }
+        checkAll();
+
+        while (true) {
+            boolean indexChanged = false;
+            boolean overflow = false;
+            Set<String> names = new HashSet<>();
+
+            WatchKey key = watcher.take();
+            while (key != null) {
+                Path dir = dirs.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    events.increment();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    } else if (dir.equals(dataDir)) {
+                        indexChanged |= event.context().toString().startsWith("config_index");
+                    } else {
+                        names.add(event.context().toString());
+                    }
+                }
+                key.reset();
+                key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+            }
+
+            try {
+                if (indexChanged || overflow) {
+                    refreshIndex();
+                    // A commit from another process may settle drift seen while it was half done
+                    for (String domain : drift.keySet()) {
+                        Map<String, String> site = store.get(domain);
+                        if (site != null) {
+                            names.add(FastNginx.enabledPath(site).getFileName().toString());
+                        }
+                    }
+                }
+                // After any in-flight request, so a request's own writes are never seen half done
+                writes.lock();
+                try {
+                    if (overflow) {
+                        checkAll();
+                    } else {
+                        for (String name : names) {
+                            check(name);
+                        }
+                    }
+                } finally {
+                    writes.unlock();
+                }
+            } catch (IOException e) {
+                FastNginx.printStatus("Watch update failed: " + e.getMessage(), "warning");
+            }
+        }
+    }
+
+    /** Applies log entries written by other processes */
+    private void refreshIndex() throws IOException {
+        writes.lock();
+        try {
+            store.refresh();
+        } finally {
+            writes.unlock();
+        }
+        indexFileNames();
+    }
+
+    private void indexFileNames() {
+        Map<String, String> names = new HashMap<>();
+        store.forEach(row -> {
+            String path = row.get("path");
+            names.put(path != null ? Paths.get(path).getFileName().toString() : row.domain(), row.domain());
+        });
+        byFileName.keySet().retainAll(names.keySet());
+        byFileName.putAll(names);
+        drift.keySet().retainAll(new HashSet<>(names.values()));
+    }
+
+    private void checkAll() throws IOException {
+        Set<String> names = new HashSet<>(byFileName.keySet());
+        for (Path dir : List.of(FastNginx.SITES_AVAILABLE, FastNginx.SITES_ENABLED)) {
+            if (Files.isDirectory(dir)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    files.forEach(f -> names.add(f.getFileName().toString()));
+                }
+            }
+        }
+        for (String name : names) {
+            check(name);
+        }
+    }
+
+    /** Re-examines one file name in sites-available / sites-enabled against the index */
+    private void check(String name) throws IOException {
+        String domain = byFileName.get(name);
+        if (domain == null) {
+            Path file = FastNginx.SITES_AVAILABLE.resolve(name);
+            if (Files.isRegularFile(file) && !SiteImporter.ignored(file)) {
+                unmanaged.add(name);
+            } else {
+                unmanaged.remove(name);
+            }
+            return;
+        }
+        unmanaged.remove(name);
+        Map<String, String> site = store.get(domain);
+        if (site == null) {
+            return;
+        }
+
+        List<String> problems = new ArrayList<>();
+        Path file = Paths.get(site.getOrDefault("path", FastNginx.SITES_AVAILABLE.resolve(domain).toString()));
+        if (!Files.exists(file)) {
+            problems.add("config file missing: " + file);
+        } else if (!SiteTemplate.sha256Hex(Files.readAllBytes(file)).equals(site.get("hash"))) {
+            problems.add("config file edited outside FastNginx");
+        }
+        boolean linked = Files.exists(FastNginx.enabledPath(site), LinkOption.NOFOLLOW_LINKS);
+        String status = site.getOrDefault("status", "active");
+        if (linked != status.equals("active")) {
+            problems.add("symlink " + (linked ? "present" : "missing") + " but index says " + status);
+        }
+        if (problems.isEmpty()) {
+            drift.remove(domain);
+        } else {
+            drift.put(domain, String.join("; ", problems));
+        }
+    }
+}
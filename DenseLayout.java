@@ -0,0 +1,726 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dense layout for large fleets: nginx includes a few dozen generated shard
+ * files instead of one file per site, so a reload opens and parses far less.
+ *
+ * Site files stay in sites-available and enabled sites are still linked one
+ * by one, but into /etc/nginx/fastnginx-enabled, which nginx does not
+ * include. Before every reload ReloadScheduler rebuilds the shards in
+ * sites-enabled from those links:
+ *   fastnginx-dense-proxy-NN.conf  sites whose file is exactly the built-in
+ *                                   proxy template: their upstream blocks, one
+ *                                   "map $host" naming the site, one server block
+ *   fastnginx-dense-sites-NN.conf  every other site file, concatenated as is
+ * Sites are spread over shards by a hash of the domain, so one change
+ * rewrites one shard, and only shards whose content changed are written.
+ *
+ * Tuned from .fastnginx_config:
+ *   layout=dense              default files
+ *   dense.shard_sites=2000    sites per shard before the shard count doubles
+ * "java FastNginx dense" moves the links to match the setting and compares
+ * both layouts on the current sites.
+ */
+final class DenseLayout {
+
+    /** Where nginx includes site configs from, whatever the layout */
+    static final Path OUTPUT = Paths.get("/etc/nginx/sites-enabled");
+    /** Per-site links of the dense layout, outside nginx's include path */
+    static final Path LINKS = Paths.get("/etc/nginx/fastnginx-enabled");
+    static final String PREFIX = "fastnginx-dense-";
+    static final long DEFAULT_SHARD_SITES = 2000;
+    static final String VERDICTS_FILE_NAME = "dense_verdicts";
+
+    private static final String USAGE = "Usage: java FastNginx dense [--dry-run]";
+
+    // The server block of the proxy template with $host choosing the site; keep in step with Templates.PROXY
+    private static final SiteTemplate SHARD = SiteTemplate.compile("dense-proxy", """
+            # FastNginx dense shard {{shard}} - generated from {{sites}} site(s), do not edit
+
+            {{upstreams}}
+
+            map $host ${{variable}} {
+                hostnames;
+            {{map_entries}}
+            }
+
+            server {
+                listen 80;
+            {{server_names}}
+
+                # Same file per site as the one-file layout; a variable path cannot be buffered,
+                # so descriptors of busy logs are kept open instead
+                access_log {{log_dir}}/fastnginx-${{variable}}.access.log fastnginx;
+                open_log_file_cache max=1000 inactive=60s min_uses=2;
+                # nginx writes a variable log path only when root exists; nothing here serves files
+                root {{log_dir}};
+
+                # Security headers
+                add_header X-Frame-Options "SAMEORIGIN" always;
+                add_header X-Content-Type-Options "nosniff" always;
+                add_header X-XSS-Protection "1; mode=block" always;
+
+                # Proxy configuration; the upstream is picked by name from the map
+                location / {
+                    proxy_pass http://fastnginx_${{variable}};
+                    proxy_http_version 1.1;
+
+                    # WebSocket support; Connection is empty for plain requests so they stay pooled
+                    proxy_set_header Upgrade $http_upgrade;
+                    proxy_set_header Connection $fastnginx_connection_upgrade;
+                    proxy_cache_bypass $http_upgrade;
+
+                    # Standard proxy headers
+                    proxy_set_header Host $host;
+                    proxy_set_header X-Real-IP $remote_addr;
+                    proxy_set_header X-Forwarded-For $proxy_add_x_forwarded_for;
+                    proxy_set_header X-Forwarded-Proto $scheme;
+
+                    # Timeouts
+                    proxy_connect_timeout 60s;
+                    proxy_send_timeout 60s;
+                    proxy_read_timeout 60s;
+                }
+
+                # Health check endpoint
+                location /nginx-health {
+                    access_log off;
+                    return 200 "healthy\\n";
+                    add_header Content-Type text/plain;
+                }
+            }
+            """);
+
+    /**
+     * One enabled site: mapped sites carry only their upstream block in
+     * config, everything else its whole file.
+     */
+    record Site(String domain, Path file, String config, boolean mapped) {
+    }
+
+    /** One "nginx -t" of a layout: wall time and peak RSS of the test process tree */
+    record Measurement(long nanos, long peakKb, boolean passed, String output) {
+    }
+
+    /** Shard files as they were before a write, to put back when nginx rejects the result */
+    static final class Snapshot {
+        // Previous content, or null when the file did not exist
+        private final Map<Path, byte[]> previous = new LinkedHashMap<>();
+
+        boolean isEmpty() {
+            return previous.isEmpty();
+        }
+
+        void restore() throws IOException {
+            PrivilegedHelper.Batch batch = new PrivilegedHelper.Batch();
+            for (Map.Entry<Path, byte[]> e : previous.entrySet()) {
+                if (e.getValue() == null) {
+                    batch.unlink(e.getKey());
+                } else {
+                    batch.write(e.getKey(), e.getValue());
+                }
+            }
+            batch.run();
+        }
+    }
+
+    private record Cached(FileTime modified, long size, Site site) {
+    }
+
+    /** Outcome of the mapping test for one version of a file, kept in nginx_data across runs */
+    private record Verdict(long modified, long size, boolean mapped, String domain) {
+    }
+
+    // Sites of unchanged files, so a long-running process only re-reads files that changed
+    private static final Map<Path, Cached> cache = new ConcurrentHashMap<>();
+    // Parsing is the expensive part of a cold start; a new process re-reads files but trusts these
+    private static final Map<Path, Verdict> verdicts = new ConcurrentHashMap<>();
+    private static String verdictsVersion;
+    private static volatile boolean verdictsChanged;
+    private static volatile Settings settings;
+
+    private DenseLayout() {
+    }
+
+    private static Settings settings() {
+        if (settings == null) {
+            try {
+                settings = Settings.load();
+            } catch (IOException e) {
+                settings = Settings.defaults();
+            }
+        }
+        return settings;
+    }
+
+    static boolean enabled() {
+        return "dense".equals(settings().get("layout", "files"));
+    }
+
+    /** Directory FastNginx links enabled sites into for the configured layout */
+    static Path linksDir() {
+        return enabled() ? LINKS : OUTPUT;
+    }
+
+    // --- shards --------------------------------------------------------------------------
+
+    /** Rebuilds the shards from the links; returns what it replaced */
+    static synchronized Snapshot sync() throws IOException {
+        if (!Files.isDirectory(LINKS)) {
+            PrivilegedHelper.mkdir(LINKS);
+        }
+        return write(plan(read(links(LINKS)), settings().getLong("dense.shard_sites", DEFAULT_SHARD_SITES)));
+    }
+
+    /** Writes the given shard files into OUTPUT and removes every other shard there */
+    static Snapshot write(Map<String, String> shards) throws IOException {
+        Snapshot snapshot = new Snapshot();
+        PrivilegedHelper.Batch batch = new PrivilegedHelper.Batch();
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(OUTPUT, PREFIX + "*.conf")) {
+            for (Path file : existing) {
+                if (!shards.containsKey(file.getFileName().toString())) {
+                    snapshot.previous.put(file, Files.readAllBytes(file));
+                    batch.unlink(file);
+                }
+            }
+        }
+        for (Map.Entry<String, String> shard : shards.entrySet()) {
+            Path file = OUTPUT.resolve(shard.getKey());
+            byte[] content = shard.getValue().getBytes(StandardCharsets.UTF_8);
+            byte[] old = Files.exists(file) ? Files.readAllBytes(file) : null;
+            if (!Arrays.equals(old, content)) {
+                snapshot.previous.put(file, old);
+                batch.write(file, content);
+            }
+        }
+        batch.run();
+        return snapshot;
+    }
+
+    /** Shard file name to content; empty shards are left out */
+    static Map<String, String> plan(List<Site> sites, long shardSites) {
+        List<Site> mapped = new ArrayList<>();
+        List<Site> verbatim = new ArrayList<>();
+        for (Site site : sites) {
+            (site.mapped() ? mapped : verbatim).add(site);
+        }
+
+        Map<String, String> files = new TreeMap<>();
+        List<List<Site>> shards = shard(mapped, shardSites);
+        for (int i = 0; i < shards.size(); i++) {
+            if (!shards.get(i).isEmpty()) {
+                files.put(String.format("%sproxy-%02d.conf", PREFIX, i), renderMapped(i, shards.get(i)));
+            }
+        }
+        shards = shard(verbatim, shardSites);
+        for (int i = 0; i < shards.size(); i++) {
+            if (!shards.get(i).isEmpty()) {
+                StringBuilder conf = new StringBuilder();
+                conf.append("# FastNginx dense shard sites-").append(String.format("%02d", i))
+                        .append(" - generated from ").append(shards.get(i).size()).append(" site file(s), do not edit\n");
+                for (Site site : shards.get(i)) {
+                    conf.append("\n# ").append(site.file()).append('\n').append(site.config());
+                    if (!site.config().endsWith("\n")) {
+                        conf.append('\n');
+                    }
+                }
+                files.put(String.format("%ssites-%02d.conf", PREFIX, i), conf.toString());
+            }
+        }
+        return files;
+    }
+
+    /** Power-of-two shard count, so shards only split when the fleet doubles */
+    private static List<List<Site>> shard(List<Site> sites, long shardSites) {
+        int count = 1;
+        while ((long) count * Math.max(1, shardSites) < sites.size()) {
+            count *= 2;
+        }
+        List<List<Site>> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(new ArrayList<>());
+        }
+        for (Site site : sites) {
+            // String.hashCode is specified, so every run puts a site in the same shard
+            shards.get((site.domain().hashCode() & 0x7fffffff) % count).add(site);
+        }
+        return shards;
+    }
+
+    private static String renderMapped(int index, List<Site> sites) {
+        String variable = String.format("fastnginx_dense_%02d", index);
+        StringBuilder upstreams = new StringBuilder();
+        StringBuilder entries = new StringBuilder();
+        StringBuilder names = new StringBuilder();
+        for (Site site : sites) {
+            if (upstreams.length() > 0) {
+                upstreams.append("\n\n");
+                entries.append('\n');
+                names.append('\n');
+            }
+            upstreams.append(site.config());
+            // The value names both the upstream (Upstream.name) and the log file (AccessLog.path)
+            entries.append("    ").append(site.domain().toLowerCase(Locale.ROOT)).append(' ')
+                    .append(site.domain().replaceAll("[^A-Za-z0-9._-]", "_")).append(';');
+            names.append("    server_name ").append(site.domain()).append(';');
+        }
+
+        Map<String, String> vars = new HashMap<>();
+        vars.put("shard", String.format("proxy-%02d", index));
+        vars.put("sites", String.valueOf(sites.size()));
+        vars.put("variable", variable);
+        vars.put("upstreams", upstreams.toString());
+        vars.put("map_entries", entries.toString());
+        vars.put("server_names", names.toString());
+        vars.put("log_dir", AccessLog.dir().toString());
+        return SHARD.render(vars).content();
+    }
+
+    // --- reading enabled sites -------------------------------------------------------------
+
+    /** Entries of a links directory as nginx would include them */
+    private static List<Path> links(Path dir) throws IOException {
+        List<Path> links = new ArrayList<>();
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path link : entries) {
+                    if (!SiteImporter.ignored(link)) {
+                        links.add(link);
+                    }
+                }
+            }
+        }
+        return links;
+    }
+
+    /** Reads and classifies site files in parallel, in a stable order; dangling links are skipped */
+    static synchronized List<Site> read(List<Path> links) {
+        Path file = verdictsFile();
+        String version = templateVersion();
+        if (!version.equals(verdictsVersion)) {
+            cache.clear();
+            verdicts.clear();
+            loadVerdicts(file, version);
+        }
+        List<Site> sites = links.parallelStream()
+                .map(DenseLayout::read)
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparing(Site::domain).thenComparing(Site::file))
+                .toList();
+        if (verdictsChanged) {
+            saveVerdicts(file, version, sites);
+        }
+        return sites;
+    }
+
+    private static Site read(Path link) {
+        try {
+            Path file = link.toRealPath();
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            FileTime modified = attributes.lastModifiedTime();
+            long size = attributes.size();
+            Cached cached = cache.get(file);
+            if (cached != null && cached.modified().equals(modified) && cached.size() == size) {
+                return cached.site();
+            }
+
+            byte[] bytes = Files.readAllBytes(file);
+            long nanos = modified.to(TimeUnit.NANOSECONDS);
+            Verdict verdict = verdicts.get(file);
+            Site site;
+            if (verdict != null && verdict.modified() == nanos && verdict.size() == size) {
+                site = site(file, verdict.domain(), new String(bytes, StandardCharsets.UTF_8), verdict.mapped());
+            } else {
+                site = classify(file, bytes);
+                verdicts.put(file, new Verdict(nanos, size, site.mapped(), site.domain()));
+                verdictsChanged = true;
+            }
+            cache.put(file, new Cached(modified, size, site));
+            return site;
+        } catch (IOException | RuntimeException e) {
+            // One unreadable or unexpected file must not abort the parallel read of all the others
+            return null;
+        }
+    }
+
+    private static Site site(Path file, String domain, String content, boolean mapped) {
+        if (!mapped) {
+            return new Site(domain, file, content, false);
+        }
+        // A mapped file is exactly the proxy template, so its upstream block ends where the server block starts
+        int from = content.indexOf("upstream ");
+        int to = content.indexOf("\nserver {", from);
+        return new Site(domain, file, content.substring(from, to).strip(), true);
+    }
+
+    private static Path verdictsFile() {
+        try {
+            return FastNginx.dataDirPath().resolve(VERDICTS_FILE_NAME);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fingerprint of what a mapped file must match: the proxy template as
+     * rendered with this log directory. Verdicts from another version are
+     * thrown away; with a custom proxy template nothing is mapped anyway.
+     */
+    private static String templateVersion() {
+        if (!Templates.isBuiltin(Templates.DEFAULT)) {
+            return "custom";
+        }
+        Map<String, String> probe = Map.of("domain", "example.com", "port", "80", "type", "proxy");
+        return Templates.get(Templates.DEFAULT).render(Templates.variables(probe)).hash();
+    }
+
+    private static void loadVerdicts(Path file, String version) {
+        verdictsVersion = version;
+        if (file == null || !Files.exists(file)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file);
+            if (lines.isEmpty() || !lines.get(0).equals("# " + version)) {
+                return;
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                String[] f = line.split("\t", 5);
+                if (f.length == 5) {
+                    verdicts.put(Paths.get(f[4]),
+                            new Verdict(Long.parseLong(f[1]), Long.parseLong(f[2]), f[0].equals("1"), f[3]));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unreadable: every file is classified again and the file rewritten
+            verdicts.clear();
+        }
+    }
+
+    /** Keeps the verdicts of the files just read; losing the file only costs one slower sync */
+    private static void saveVerdicts(Path file, String version, List<Site> sites) {
+        verdictsChanged = false;
+        if (file == null || !Files.isDirectory(file.getParent())) {
+            return;
+        }
+        StringBuilder out = new StringBuilder("# ").append(version).append('\n');
+        for (Site site : sites) {
+            Verdict v = verdicts.get(site.file());
+            if (v != null) {
+                out.append(v.mapped() ? '1' : '0').append('\t').append(v.modified()).append('\t').append(v.size())
+                        .append('\t').append(v.domain()).append('\t').append(site.file()).append('\n');
+            }
+        }
+        try {
+            Path tmp = file.resolveSibling(VERDICTS_FILE_NAME + ".tmp");
+            Files.writeString(tmp, out);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Next sync classifies again
+        }
+    }
+
+    /**
+     * A file is mapped only when rendering the record read back from it
+     * gives the identical bytes: then the shard's server block says exactly
+     * what the file said. Cache profiles, custom templates and hand edits all
+     * fail that test and are included verbatim.
+     */
+    private static Site classify(Path file, byte[] bytes) {
+        String content = new String(bytes, StandardCharsets.UTF_8);
+        Map<String, String> entry = SiteImporter.read(file, bytes, Set.of()).entry();
+        if (entry == null) {
+            return new Site(file.getFileName().toString(), file, content, false);
+        }
+        String domain = entry.get("domain");
+        if ("proxy".equals(entry.get("type")) && Templates.isBuiltin(Templates.DEFAULT)) {
+            // Uncached render: tens of thousands of one-off records would only churn the shared cache
+            String rendered = Templates.get(Templates.DEFAULT).render(Templates.variables(entry)).content();
+            return site(file, domain, content, rendered.equals(content));
+        }
+        return new Site(domain, file, content, false);
+    }
+
+    // --- command -------------------------------------------------------------------------
+
+    static int run(String[] args) {
+        boolean dryRun = false;
+        for (String arg : args) {
+            if (!arg.equals("--dry-run")) {
+                System.err.println(USAGE);
+                return 2;
+            }
+            dryRun = true;
+        }
+        try (ConfigJournal store = ConfigJournal.open(FastNginx.dataDirPath())) {
+            return apply(store, dryRun);
+        } catch (IOException e) {
+            FastNginx.printStatus("Dense layout failed: " + e.getMessage(), "error");
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            FastNginx.printStatus("Dense layout interrupted", "error");
+            return 1;
+        }
+    }
+
+    /**
+     * Compares both layouts on the enabled sites, then moves the links the
+     * configured layout expects and reloads; nginx rejecting the result moves
+     * everything back.
+     */
+    static int apply(ConfigJournal store, boolean dryRun) throws IOException, InterruptedException {
+        boolean dense = enabled();
+        Set<Path> managed = new HashSet<>();
+        store.forEach(row -> {
+            if (row.get("path") != null) {
+                managed.add(Paths.get(row.get("path")).normalize());
+            }
+        });
+
+        // Indexed sites linked the per-file way, and everything in the dense links directory
+        List<Path> perFile = new ArrayList<>();
+        for (Path link : links(OUTPUT)) {
+            if (Files.isSymbolicLink(link)
+                    && managed.contains(OUTPUT.resolve(Files.readSymbolicLink(link)).normalize())) {
+                perFile.add(link);
+            }
+        }
+        List<Path> linked = links(LINKS);
+        List<Path> all = new ArrayList<>(perFile);
+        all.addAll(linked);
+        List<Site> sites = read(all);
+
+        long shardSites = settings().getLong("dense.shard_sites", DEFAULT_SHARD_SITES);
+        Map<String, String> shards = plan(sites, shardSites);
+        long mapped = sites.stream().filter(Site::mapped).count();
+        FastNginx.printStatus(String.format("%d enabled site(s): %d mapped through $host, %d included verbatim, "
+                + "%d shard file(s)", sites.size(), mapped, sites.size() - mapped, shards.size()), "info");
+
+        List<String> domains = SharedConfig.domains(store, Map.of());
+        compare(store, sites, shards, domains);
+
+        Set<String> preset = SharedConfig.presetInNginxConf();
+        for (String line : SharedConfig.hashTuning(domains, dense)) {
+            String directive = line.substring(0, line.indexOf(' '));
+            if (preset.contains(directive)) {
+                FastNginx.printStatus(SharedConfig.NGINX_CONF + " sets " + directive + " itself; for "
+                        + domains.size() + " name(s) it needs at least: " + line, "warning");
+            } else {
+                FastNginx.printStatus("Hash size for " + domains.size() + " name(s): " + line, "info");
+            }
+        }
+
+        if (dryRun) {
+            return 0;
+        }
+
+        // Links to move for the configured layout
+        Map<Path, Path> moves = new LinkedHashMap<>();
+        for (Path link : dense ? perFile : linked) {
+            Path target = (dense ? LINKS : OUTPUT).resolve(link.getFileName());
+            if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                FastNginx.printStatus("Cannot move " + link + ": " + target + " already exists", "error");
+                return 1;
+            }
+            moves.put(link, target);
+        }
+
+        try (Metrics.Operation op = Metrics.operation("dense")) {
+            Set<Integer> oldWorkers = ReloadScheduler.workerPids();
+            long rssBefore = averageRssKb(oldWorkers);
+
+            move(moves, false, dense && !Files.isDirectory(LINKS));
+            Snapshot written = dense ? sync() : write(Map.of());
+            boolean sharedChanged = FastNginx.syncSharedConfig(store, Map.of());
+            op.lap("write");
+
+            String layout = dense ? "dense" : "per-file";
+            if (moves.isEmpty() && written.isEmpty() && !sharedChanged) {
+                FastNginx.printStatus("Already in the " + layout + " layout; nothing to reload", "success");
+                op.succeeded();
+                return 0;
+            }
+
+            ReloadScheduler.Result reload = ReloadScheduler.shared().request().join();
+            op.lap("reload");
+            if (!reload.validated()) {
+                FastNginx.printStatus("Configuration validation FAILED - moving the links back", "error");
+                reload.output().lines()
+                        .forEach(line -> System.out.println(FastNginx.RED + "  " + line + FastNginx.RESET));
+                written.restore();
+                move(moves, true, false);
+                return 1;
+            }
+            if (reload.exitCode() != 0) {
+                FastNginx.printStatus("Nginx reload failed with exit code: " + reload.exitCode(), "error");
+                return 1;
+            }
+            FastNginx.printStatus(String.format("Nginx reloaded with the %s layout (%d link(s) moved)",
+                    layout, moves.size()), "success");
+            op.succeeded();
+
+            if (!oldWorkers.isEmpty()) {
+                long rssAfter = averageRssKb(newWorkers(oldWorkers));
+                if (rssAfter > 0) {
+                    FastNginx.printStatus(String.format("Worker memory (live): %.1f MB -> %.1f MB RSS per worker",
+                            rssBefore / 1024.0, rssAfter / 1024.0), "info");
+                } else {
+                    FastNginx.printStatus("New workers did not show up within 5 s; live memory not compared",
+                            "warning");
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Moves links (or files) between the two link directories in one helper
+     * batch: each is recreated at its destination, then removed at its source.
+     * back moves them from values to keys.
+     */
+    private static void move(Map<Path, Path> moves, boolean back, boolean mkdirLinks) throws IOException {
+        PrivilegedHelper.Batch batch = new PrivilegedHelper.Batch();
+        if (mkdirLinks) {
+            batch.mkdir(LINKS);
+        }
+        for (Map.Entry<Path, Path> move : moves.entrySet()) {
+            Path from = back ? move.getValue() : move.getKey();
+            Path to = back ? move.getKey() : move.getValue();
+            if (Files.isSymbolicLink(from)) {
+                // Absolute, so a relative target keeps pointing at the same file from the other directory
+                batch.symlink(to, from.getParent().resolve(Files.readSymbolicLink(from)).normalize());
+            } else {
+                batch.write(to, Files.readAllBytes(from));
+            }
+            batch.unlink(from);
+        }
+        batch.run();
+    }
+
+    /** Workers that replaced the given ones, waiting up to 5 s for them */
+    private static Set<Integer> newWorkers(Set<Integer> old) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            Set<Integer> current = ReloadScheduler.workerPids();
+            if (!current.isEmpty() && Collections.disjoint(current, old)) {
+                return current;
+            }
+            Thread.sleep(50);
+        }
+        return Set.of();
+    }
+
+    private static long averageRssKb(Set<Integer> pids) {
+        long total = 0;
+        for (int pid : pids) {
+            total += Diagnostics.statusKb(pid, "VmRSS");
+        }
+        return pids.isEmpty() ? 0 : total / pids.size();
+    }
+
+    // --- comparison ----------------------------------------------------------------------
+
+    /**
+     * Tests both layouts of the same sites in throwaway prefixes, as
+     * SiteValidator does for single sites. "nginx -t" parses the config and
+     * builds every hash exactly like the master does on reload, and the
+     * memory it peaks at is the configuration every forked worker carries.
+     */
+    private static void compare(ConfigJournal store, List<Site> sites, Map<String, String> shards,
+            List<String> domains) throws IOException, InterruptedException {
+        Path prefix = Files.createTempDirectory("fastnginx-dense-");
+        try {
+            Path perFile = Files.createDirectory(prefix.resolve("files"));
+            int n = 0;
+            for (Site site : sites) {
+                Files.createSymbolicLink(perFile.resolve(String.format("%06d-%s", n++, site.file().getFileName())),
+                        site.file());
+            }
+            Path dense = Files.createDirectory(prefix.resolve("dense"));
+            for (Map.Entry<String, String> shard : shards.entrySet()) {
+                Files.writeString(dense.resolve(shard.getKey()), shard.getValue());
+            }
+
+            List<CacheProfile.Zone> zones = SharedConfig.zones(store, Map.of());
+            List<TrafficProfile.Zone> limits = SharedConfig.limits(store, Map.of());
+            String listen = settings().get("status.listen", LiveMonitor.DEFAULT_STATUS_LISTEN);
+            Files.writeString(prefix.resolve("shared-files.conf"),
+                    SharedConfig.render(zones, limits, listen, SharedConfig.hashTuning(domains, false)));
+            Files.writeString(prefix.resolve("shared-dense.conf"),
+                    SharedConfig.render(zones, limits, listen, SharedConfig.hashTuning(domains, true)));
+            Files.writeString(prefix.resolve("files.conf"), SiteValidator.harness(prefix,
+                    prefix.resolve("shared-files.conf").toString(), perFile.resolve("*").toString()));
+            Files.writeString(prefix.resolve("dense.conf"), SiteValidator.harness(prefix,
+                    prefix.resolve("shared-dense.conf").toString(), dense.resolve("*").toString()));
+
+            FastNginx.printStatus("Testing both layouts", "loading");
+            Measurement before = measure(prefix, prefix.resolve("files.conf"));
+            Measurement after = measure(prefix, prefix.resolve("dense.conf"));
+            report(sites.size(), shards.size(), before, after);
+        } finally {
+            SiteValidator.deleteRecursively(prefix);
+        }
+    }
+
+    private static Measurement measure(Path prefix, Path conf) throws IOException, InterruptedException {
+        Path log = prefix.resolve("test.log");
+        long peak = 0;
+        long start = System.nanoTime();
+        // Output goes to a file: thousands of warnings must not fill a pipe nobody reads while polling
+        Process test = new ProcessBuilder("sudo", "nginx", "-t", "-q", "-p", prefix.toString(),
+                "-c", conf.toString())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        // VmHWM only grows, so the last sample before exit is close to the peak
+        while (!test.waitFor(5, TimeUnit.MILLISECONDS)) {
+            peak = Math.max(peak, peakKb(test.toHandle()));
+        }
+        long nanos = System.nanoTime() - start;
+        boolean passed = test.exitValue() == 0;
+        return new Measurement(nanos, peak, passed, passed ? "" : Files.readString(log));
+    }
+
+    /** Highest VmHWM in a process tree: sudo's child is the nginx doing the work */
+    private static long peakKb(ProcessHandle process) {
+        long peak = Diagnostics.statusKb(process.pid(), "VmHWM");
+        for (ProcessHandle child : process.descendants().toList()) {
+            peak = Math.max(peak, Diagnostics.statusKb(child.pid(), "VmHWM"));
+        }
+        return peak;
+    }
+
+    private static void report(int sites, int shards, Measurement perFile, Measurement dense) {
+        for (Measurement m : List.of(perFile, dense)) {
+            if (!m.passed()) {
+                FastNginx.printStatus((m == perFile ? "Per-file" : "Dense") + " layout failed nginx -t", "error");
+                m.output().lines().limit(20)
+                        .forEach(line -> System.out.println(FastNginx.RED + "  " + line + FastNginx.RESET));
+            }
+        }
+        System.out.println(FastNginx.BRIGHT_GREEN + "┌─── LAYOUT COMPARISON ───┐" + FastNginx.RESET);
+        System.out.printf(FastNginx.GREEN + "  %-14s" + FastNginx.RESET + "%12s %12s%n", "", "per-file", "dense");
+        System.out.printf(FastNginx.GREEN + "  %-14s" + FastNginx.RESET + "%12d %12d%n", "files", sites, shards);
+        System.out.printf(FastNginx.GREEN + "  %-14s" + FastNginx.RESET + "%9.1f ms %9.1f ms  %s%n", "nginx -t",
+                perFile.nanos() / 1_000_000.0, dense.nanos() / 1_000_000.0,
+                perFile.passed() && dense.passed()
+                        ? String.format("%.1fx faster", perFile.nanos() / (double) Math.max(1, dense.nanos())) : "");
+        if (perFile.peakKb() > 0 && dense.peakKb() > 0) {
+            System.out.printf(FastNginx.GREEN + "  %-14s" + FastNginx.RESET + "%9.1f MB %9.1f MB  %+.0f%%%n",
+                    "config memory", perFile.peakKb() / 1024.0, dense.peakKb() / 1024.0,
+                    (dense.peakKb() - perFile.peakKb()) * 100.0 / perFile.peakKb());
+        } else {
+            System.out.printf(FastNginx.GREEN + "  %-14s" + FastNginx.RESET + "%12s %12s%n", "config memory",
+                    "n/a", "n/a");
+        }
+        System.out.println(FastNginx.BRIGHT_GREEN + "└─────────────────────────┘" + FastNginx.RESET);
+    }
+}
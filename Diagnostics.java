@@ -0,0 +1,290 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * System checks for the diagnostics menu, read from /proc instead of
+ * spawning systemctl and ss.
+ *
+ * Every check runs on its own virtual thread and is cut off at
+ * diag.deadline_ms; a check that misses its deadline is reported as such
+ * instead of holding up the rest. Only the nginx syntax test still forks,
+ * since nothing else can parse the configuration.
+ */
+final class Diagnostics {
+
+    /** One line of the report, in printStatus terms */
+    record Finding(String status, String message) {
+    }
+
+    /** A listening TCP socket from /proc/net/tcp{,6} */
+    record Listener(String address, int port, long inode) {
+    }
+
+    /** A process found under /proc */
+    record Proc(int pid, int ppid, String comm, String cmdline) {
+    }
+
+    private Diagnostics() {
+    }
+
+    static List<Finding> run(ConfigJournal store, Settings settings) {
+        long deadline = settings.getLong("diag.deadline_ms", 2000);
+
+        // Snapshot of the index taken up front so checks never touch the store concurrently
+        List<Map<String, String>> sites = new ArrayList<>();
+        store.forEach(row -> sites.add(row.toMap()));
+
+        Map<String, Callable<List<Finding>>> checks = new LinkedHashMap<>();
+        checks.put("nginx processes", Diagnostics::checkProcesses);
+        checks.put("configuration syntax", () -> checkSyntax(deadline));
+        checks.put("listening ports", () -> checkPorts(sites));
+
+        List<Finding> report = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Map<String, Future<List<Finding>>> futures = new LinkedHashMap<>();
+            checks.forEach((name, check) -> futures.put(name, executor.submit(check)));
+
+            long end = System.nanoTime() + deadline * 1_000_000;
+            for (Map.Entry<String, Future<List<Finding>>> e : futures.entrySet()) {
+                try {
+                    report.addAll(e.getValue().get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException ex) {
+                    e.getValue().cancel(true);
+                    report.add(new Finding("error", "Check '" + e.getKey() + "' missed its " + deadline + " ms deadline"));
+                } catch (ExecutionException ex) {
+                    report.add(new Finding("error", "Check '" + e.getKey() + "' failed: " + ex.getCause().getMessage()));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            executor.shutdownNow();
+        }
+        return report;
+    }
+
+    // --- nginx master/worker state ---------------------------------------------
+
+    static List<Finding> checkProcesses() throws IOException {
+        List<Proc> nginx = new ArrayList<>();
+        for (Proc p : processes()) {
+            if (p.comm().equals("nginx")) {
+                nginx.add(p);
+            }
+        }
+        List<Finding> out = new ArrayList<>();
+        List<Proc> masters = nginx.stream().filter(p -> p.cmdline().startsWith("nginx: master")).toList();
+        if (masters.isEmpty()) {
+            out.add(new Finding("error", "Nginx Service: OFFLINE (no master process)"));
+            return out;
+        }
+        for (Proc master : masters) {
+            long workers = nginx.stream().filter(p -> p.ppid() == master.pid()
+                    && p.cmdline().startsWith("nginx: worker process") && !p.cmdline().contains("shutting down")).count();
+            long draining = nginx.stream().filter(p -> p.ppid() == master.pid()
+                    && p.cmdline().contains("shutting down")).count();
+            String msg = "Nginx Service: ONLINE (master " + master.pid() + ", " + workers + " worker(s)"
+                    + (draining > 0 ? ", " + draining + " old worker(s) draining" : "") + ")";
+            out.add(new Finding(workers > 0 ? "success" : "warning", msg));
+        }
+        if (masters.size() > 1) {
+            out.add(new Finding("warning", masters.size() + " nginx master processes are running"));
+        }
+        return out;
+    }
+
+    static List<Proc> processes() throws IOException {
+        List<Proc> procs = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get("/proc"), "[0-9]*")) {
+            for (Path dir : dirs) {
+                try {
+                    String stat = Files.readString(dir.resolve("stat"));
+                    // comm is parenthesised and may contain spaces; fields after it are fixed
+                    int close = stat.lastIndexOf(')');
+                    String comm = stat.substring(stat.indexOf('(') + 1, close);
+                    String[] rest = stat.substring(close + 2).split(" ");
+                    String cmdline = new String(Files.readAllBytes(dir.resolve("cmdline"))).replace('\0', ' ').trim();
+                    procs.add(new Proc(Integer.parseInt(dir.getFileName().toString()),
+                            Integer.parseInt(rest[1]), comm, cmdline));
+                } catch (IOException | RuntimeException e) {
+                    // Process exited while scanning
+                }
+            }
+        }
+        return procs;
+    }
+
+    /** A kB field of /proc/<pid>/status such as VmRSS or VmHWM; 0 when the process or field is gone */
+    static long statusKb(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Exited while reading
+        }
+        return 0;
+    }
+
+    // --- configuration syntax ----------------------------------------------------
+
+    static List<Finding> checkSyntax(long deadlineMs) throws IOException, InterruptedException {
+        Process test = new ProcessBuilder("sudo", "nginx", "-t", "-q").redirectErrorStream(true).start();
+        if (!test.waitFor(deadlineMs, TimeUnit.MILLISECONDS)) {
+            test.destroyForcibly();
+            return List.of(new Finding("error", "Configuration Syntax: nginx -t timed out"));
+        }
+        String output = new String(test.getInputStream().readAllBytes()).trim();
+        if (test.exitValue() == 0) {
+            return List.of(new Finding("success", "Configuration Syntax: VALID"));
+        }
+        List<Finding> out = new ArrayList<>();
+        out.add(new Finding("error", "Configuration Syntax: INVALID"));
+        output.lines().forEach(line -> out.add(new Finding("error", "  " + line)));
+        return out;
+    }
+
+    // --- listening sockets and port conflicts --------------------------------------
+
+    static List<Finding> checkPorts(List<Map<String, String>> sites) throws IOException {
+        List<Listener> listeners = new ArrayList<>();
+        listeners.addAll(listeners(Paths.get("/proc/net/tcp"), false));
+        listeners.addAll(listeners(Paths.get("/proc/net/tcp6"), true));
+
+        Map<Long, Integer> owners = socketOwners();
+        Map<Integer, String> names = new HashMap<>();
+        for (Proc p : processes()) {
+            names.put(p.pid(), p.comm());
+        }
+
+        // port -> owning process names
+        Map<Integer, Set<String>> byPort = new TreeMap<>();
+        for (Listener l : listeners) {
+            Integer pid = owners.get(l.inode());
+            String owner = pid == null ? "?" : names.getOrDefault(pid, "?") + "/" + pid;
+            byPort.computeIfAbsent(l.port(), k -> new TreeSet<>()).add(owner);
+        }
+
+        List<Finding> out = new ArrayList<>();
+        out.add(new Finding("info", "Listening ports: " + byPort.size()
+                + (owners.isEmpty() ? " (owners unknown: run with sudo)" : "")));
+
+        // nginx should own the HTTP ports
+        for (int port : new int[]{80, 443}) {
+            Set<String> owner = byPort.get(port);
+            if (owner != null && owner.stream().noneMatch(o -> o.startsWith("nginx/") || o.equals("?"))) {
+                out.add(new Finding("error", "Port " + port + " is owned by " + String.join(", ", owner) + ", not nginx"));
+            }
+        }
+
+        // Backends: shared between sites, not listening, or served by nginx itself
+        Map<String, List<String>> sitesByBackend = new TreeMap<>();
+        for (Map<String, String> site : sites) {
+            if (!"active".equals(site.getOrDefault("status", "active")) || "static".equals(site.get("type"))) {
+                continue;
+            }
+            for (String backend : Upstream.backends(site)) {
+                sitesByBackend.computeIfAbsent(backend, k -> new ArrayList<>()).add(site.get("domain"));
+            }
+        }
+        for (Map.Entry<String, List<String>> e : sitesByBackend.entrySet()) {
+            String backend = e.getKey();
+            int port = Integer.parseInt(backend.substring(backend.lastIndexOf(':') + 1));
+            boolean local = isLocal(backend.substring(0, backend.lastIndexOf(':')));
+            if (e.getValue().size() > 1) {
+                out.add(new Finding("warning", "Backend " + backend + " shared by " + String.join(", ", e.getValue())));
+            }
+            if (!local) {
+                continue;
+            }
+            Set<String> owner = byPort.get(port);
+            if (owner == null) {
+                out.add(new Finding("error", "Backend " + backend + " (" + String.join(", ", e.getValue())
+                        + ") has no listener"));
+            } else if (owner.stream().anyMatch(o -> o.startsWith("nginx/"))) {
+                out.add(new Finding("error", "Backend " + backend + " is nginx itself: proxy loop for "
+                        + String.join(", ", e.getValue())));
+            }
+        }
+        return out;
+    }
+
+    static boolean isLocal(String host) {
+        return host.equals("127.0.0.1") || host.equals("localhost") || host.equals("::1")
+                || host.equals("[::1]") || host.startsWith("127.");
+    }
+
+    /** LISTEN sockets (state 0A) of one /proc/net table */
+    static List<Listener> listeners(Path table, boolean v6) throws IOException {
+        List<Listener> out = new ArrayList<>();
+        if (!Files.exists(table)) {
+            return out;
+        }
+        try (Stream<String> lines = Files.lines(table)) {
+            lines.skip(1).forEach(line -> {
+                String[] f = line.trim().split("\\s+");
+                if (f.length < 10 || !f[3].equals("0A")) {
+                    return;
+                }
+                int colon = f[1].indexOf(':');
+                String hex = f[1].substring(0, colon);
+                int port = Integer.parseInt(f[1].substring(colon + 1), 16);
+                out.add(new Listener(address(hex, v6), port, Long.parseLong(f[9])));
+            });
+        }
+        return out;
+    }
+
+    /** Kernel hex address: 32-bit words in host (little-endian) order */
+    static String address(String hex, boolean v6) {
+        StringBuilder sb = new StringBuilder();
+        if (!v6) {
+            for (int i = 6; i >= 0; i -= 2) {
+                sb.append(Integer.parseInt(hex.substring(i, i + 2), 16));
+                if (i > 0) {
+                    sb.append('.');
+                }
+            }
+            return sb.toString();
+        }
+        for (int word = 0; word < 4; word++) {
+            String w = hex.substring(word * 8, word * 8 + 8);
+            String be = w.substring(6, 8) + w.substring(4, 6) + w.substring(2, 4) + w.substring(0, 2);
+            sb.append(be, 0, 4).append(':').append(be, 4, 8);
+            if (word < 3) {
+                sb.append(':');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Socket inode -> pid, from the socket:[inode] links in /proc/<pid>/fd */
+    static Map<Long, Integer> socketOwners() throws IOException {
+        Map<Long, Integer> owners = new HashMap<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(Paths.get("/proc"), "[0-9]*")) {
+            for (Path dir : dirs) {
+                int pid = Integer.parseInt(dir.getFileName().toString());
+                try (DirectoryStream<Path> fds = Files.newDirectoryStream(dir.resolve("fd"))) {
+                    for (Path fd : fds) {
+                        try {
+                            String target = Files.readSymbolicLink(fd).toString();
+                            if (target.startsWith("socket:[")) {
+                                owners.putIfAbsent(Long.parseLong(target.substring(8, target.length() - 1)), pid);
+                            }
+                        } catch (IOException e) {
+                            // fd closed while scanning
+                        }
+                    }
+                } catch (IOException e) {
+                    // Not ours to read without root, or the process exited
+                }
+            }
+        }
+        return owners;
+    }
+}
@@ -1,23 +1,29 @@
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class FastNginx {
 
     // Green Sci-Fi Color Codes
-    private static final String RESET = "\033[0m";
-    private static final String GREEN = "\033[32m";
-    private static final String BRIGHT_GREEN = "\033[92m";
-    private static final String CYAN = "\033[36m";
-    private static final String BRIGHT_CYAN = "\033[96m";
-    private static final String DIM_GREEN = "\033[2;32m";
-    private static final String RED = "\033[31m";
-    private static final String YELLOW = "\033[33m";
-    private static final String BOLD = "\033[1m";
-
-    private static final String CONFIG_FILE = ".fastnginx_config";
+    static final String RESET = "\033[0m";
+    static final String GREEN = "\033[32m";
+    static final String BRIGHT_GREEN = "\033[92m";
+    static final String CYAN = "\033[36m";
+    static final String BRIGHT_CYAN = "\033[96m";
+    static final String DIM_GREEN = "\033[2;32m";
+    static final String RED = "\033[31m";
+    static final String YELLOW = "\033[33m";
+    static final String BOLD = "\033[1m";
+
+    static final String CONFIG_FILE = ".fastnginx_config";
+    static final Path SITES_AVAILABLE = Paths.get("/etc/nginx/sites-available");
+    /** Where enabled sites are linked; the dense layout keeps the links outside nginx's include path */
+    static final Path SITES_ENABLED = DenseLayout.linksDir();
+    /** Shown when another operator changed a site between displaying it and saving */
+    private static final String STALE_RECORD = "Configuration was changed by another operator since it was shown - reopen it and try again";
     private static Scanner scanner = new Scanner(System.in);
+    /** Menu reloads still settling in the background; their results are shown at the next redraw */
+    private static final Queue<java.util.concurrent.CompletableFuture<ReloadScheduler.Result>> RELOADS = new ArrayDeque<>();
 
     public static void clearScreen() {
         System.out.print("\033[H\033[2J\033[3J");
@@ -37,7 +43,14 @@ public class FastNginx {
         System.out.println();
     }
 
-    private static void printStatus(String message, String status) {
+    /** Where status lines go; JSON commands move them to stderr so stdout stays one JSON object */
+    private static volatile PrintStream statusOut = System.out;
+
+    static void statusToStderr() {
+        statusOut = System.err;
+    }
+
+    static void printStatus(String message, String status) {
         String statusIcon = switch (status.toLowerCase()) {
             case "success", "ok" -> BRIGHT_GREEN + "✓";
             case "error", "fail" -> RED + "✗";
@@ -46,7 +59,7 @@ public class FastNginx {
             case "loading" -> BRIGHT_CYAN + "⟳";
             default -> CYAN + "→";
         };
-        System.out.println(statusIcon + " " + GREEN + message + RESET);
+        statusOut.println(statusIcon + " " + GREEN + message + RESET);
     }
 
     private static String getUserInput(String prompt) {
@@ -56,16 +69,9 @@ public class FastNginx {
     }
 
     private static void showProgressBar(String task) {
-        System.out.print(CYAN + task + ": " + RESET);
-        for (int i = 0; i <= 20; i++) {
-            System.out.print(BRIGHT_GREEN + "█" + RESET);
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-        System.out.println(" " + BRIGHT_GREEN + "COMPLETE" + RESET);
+        // Drawn in one go: the steps it labels are fast, waiting would only add latency
+        System.out.println(CYAN + task + ": " + RESET + BRIGHT_GREEN + "█".repeat(21) + RESET
+                + " " + BRIGHT_GREEN + "COMPLETE" + RESET);
     }
 
     public static void initializeSystem() {
@@ -107,16 +113,17 @@ public class FastNginx {
 
             // Initialize directory structure
             Path dataDir = basePath.resolve("nginx_data");
-            Path configIndex = dataDir.resolve("config_index");
 
             if (!Files.exists(dataDir)) {
                 Files.createDirectories(dataDir);
                 printStatus("Data directory created", "info");
             }
 
-            if (!Files.exists(configIndex)) {
-                Files.createFile(configIndex);
-                printStatus("Configuration index initialized", "info");
+            boolean freshIndex = !Files.exists(dataDir.resolve(ConfigStore.FILE_NAME));
+            try (ConfigJournal store = ConfigJournal.open(dataDir)) {
+                if (freshIndex) {
+                    printStatus("Configuration index initialized (" + store.size() + " entries)", "info");
+                }
             }
 
             printStatus("System ready for operation", "success");
@@ -126,19 +133,125 @@ public class FastNginx {
         }
     }
 
+    /** Asks for backend, template, balancing and cache settings of a proxied site */
+    private static Map<String, String> promptProxySite(String domain) {
+        String port = getUserInput("Backend Port");
+        if (!Upstream.validPort(port)) {
+            printStatus("Valid port number required", "error");
+            return null;
+        }
+
+        String template = getUserInput("Site Template " + Templates.names() + " [proxy]").toLowerCase();
+        if (template.isEmpty()) {
+            template = Templates.DEFAULT;
+        }
+        if (!Templates.names().contains(template) || template.equals("static")) {
+            printStatus("Unknown proxy template: " + template, "error");
+            return null;
+        }
+
+        String backends = getUserInput("Backend Servers host:port[,host:port...] [127.0.0.1:" + port + "]").trim();
+        if (!backends.isEmpty()) {
+            String error = Upstream.validate(backends);
+            if (error != null) {
+                printStatus(error, "error");
+                return null;
+            }
+            backends = String.join("|", backends.split("[|,\\s]+"));
+        }
+
+        String lb = "round_robin";
+        if (backends.contains("|")) {
+            lb = getUserInput("Load Balancing " + Upstream.BALANCERS + " [round_robin]").toLowerCase();
+            if (lb.isEmpty()) {
+                lb = "round_robin";
+            }
+            if (!Upstream.BALANCERS.contains(lb)) {
+                printStatus("Unknown load balancing method: " + lb, "error");
+                return null;
+            }
+        }
+
+        String cache = CacheProfile.OFF;
+        if (Templates.get(template).variables().contains("cache_zone")) {
+            cache = getUserInput("Cache Profile " + CacheProfile.names() + " [off]").toLowerCase();
+            if (cache.isEmpty()) {
+                cache = CacheProfile.OFF;
+            }
+            if (!CacheProfile.names().contains(cache)) {
+                printStatus("Unknown cache profile: " + cache, "error");
+                return null;
+            }
+        }
+
+        Map<String, String> configEntry = new LinkedHashMap<>();
+        configEntry.put("domain", domain);
+        configEntry.put("port", port);
+        configEntry.put("type", "proxy");
+        configEntry.put("template", template);
+        if (!backends.isEmpty()) {
+            configEntry.put("backends", backends);
+        }
+        if (!lb.equals("round_robin")) {
+            configEntry.put("lb", lb);
+        }
+        if (!cache.equals(CacheProfile.OFF)) {
+            configEntry.put("cache", cache);
+        }
+        return configEntry;
+    }
+
+    /** Asks for a traffic profile when the template has one; null after an invalid answer */
+    private static String promptTrafficProfile(String label, String template, String current) {
+        if (!Templates.get(template).variables().contains("traffic_profile")) {
+            return current;
+        }
+        String traffic = getUserInput(label + " " + TrafficProfile.names() + " [" + current + "]").toLowerCase();
+        if (traffic.isEmpty()) {
+            return current;
+        }
+        if (!TrafficProfile.names().contains(traffic)) {
+            printStatus("Unknown traffic profile: " + traffic, "error");
+            return null;
+        }
+        return traffic;
+    }
+
+    /** Asks for the document root of a static site */
+    private static Map<String, String> promptStaticSite(String domain) {
+        String root = getUserInput("Document Root [/var/www/" + domain + "]").trim();
+        if (root.isEmpty()) {
+            root = "/var/www/" + domain;
+        }
+        Path rootPath = Paths.get(root).toAbsolutePath().normalize();
+        if (!Templates.isPlainArgument(rootPath.toString())) {
+            printStatus("Document root cannot contain spaces, quotes or ;{}$#", "error");
+            return null;
+        }
+        if (!Files.isDirectory(rootPath)) {
+            printStatus("Document root does not exist: " + rootPath, "error");
+            return null;
+        }
+
+        Map<String, String> configEntry = new LinkedHashMap<>();
+        configEntry.put("domain", domain);
+        configEntry.put("type", "static");
+        configEntry.put("template", "static");
+        configEntry.put("root", rootPath.toString());
+        return configEntry;
+    }
+
     private static void deployProxyConfig() {
-        try {
+        try (Metrics.Operation op = Metrics.operation("deploy")) {
             showProgressBar("Scanning system parameters");
 
-            String basePath = Files.readAllLines(Paths.get(CONFIG_FILE)).get(0).trim();
-            Path dataDir = Paths.get(basePath, "nginx_data");
-            Path configIndex = dataDir.resolve("config_index");
+            Path dataDir = dataDirPath();
 
             System.out.println(BRIGHT_GREEN + "\n┌─── PROXY CONFIGURATION MATRIX ───┐" + RESET);
 
-            String serviceType = getUserInput("Service Protocol [proxy/static]");
-            if (!serviceType.equalsIgnoreCase("proxy")) {
-                printStatus("Only proxy protocol supported in current build", "error");
+            String serviceType = getUserInput("Service Protocol [proxy/static]").toLowerCase();
+            if (!serviceType.equals("proxy") && !serviceType.equals("static")) {
+                printStatus("Unknown service protocol: " + serviceType, "error");
                 return;
             }
 
@@ -147,50 +260,76 @@ public class FastNginx {
                 printStatus("Domain parameter required", "error");
                 return;
             }
+            if (!Cli.isValidDomain(domain)) {
+                printStatus("Invalid domain: " + domain, "error");
+                return;
+            }
 
-            String port = getUserInput("Backend Port");
-            if (port.isEmpty() || !port.matches("\\d+")) {
-                printStatus("Valid port number required", "error");
+            Map<String, String> configEntry = serviceType.equals("static")
+                    ? promptStaticSite(domain)
+                    : promptProxySite(domain);
+            if (configEntry == null) {
                 return;
             }
+            String traffic = promptTrafficProfile("Traffic Profile", configEntry.get("template"), TrafficProfile.OFF);
+            if (traffic == null) {
+                return;
+            }
+            if (!traffic.equals(TrafficProfile.OFF)) {
+                configEntry.put("traffic", traffic);
+            }
+            op.skip();
 
             String ipAddress = "127.0.0.1"; // Default
+            Path siteAvailable = SITES_AVAILABLE.resolve(domain);
 
             showProgressBar("Generating nginx configuration");
 
-            String nginxConfig = generateNginxConfig(domain, port);
+            SiteTemplate.Rendered rendered = Templates.render(configEntry);
+            String nginxConfig = rendered.content();
+            op.lap("render");
 
-            // Write nginx configuration
-            Path siteAvailable = Paths.get("/etc/nginx/sites-available", domain);
-            Files.writeString(siteAvailable, nginxConfig);
+            // Shared http-level definitions (upgrade map, cache zones) must exist before the site references them
+            try (ConfigJournal store = ConfigJournal.open(dataDir)) {
+                syncSharedConfig(store, Map.of(domain, configEntry));
+            }
+            op.lap("shared_config");
+
+            // Validate the new site on its own before it can affect the live tree
+            SiteValidator.Outcome check = SiteValidator.validate(domain, nginxConfig);
+            op.lap("validate");
+            if (!check.passed()) {
+                printStatus("Site validation FAILED", "error");
+                check.output().lines().forEach(line -> System.out.println(RED + "  " + line + RESET));
+                // Drop the zones that were declared for this site only
+                try (ConfigJournal store = ConfigJournal.open(dataDir)) {
+                    syncSharedConfig(store, Map.of());
+                }
+                return;
+            }
+            printStatus(String.format("Site validated in isolation (%.0f ms)", check.nanos() / 1_000_000.0), "info");
 
-            // Create symbolic link
-            Path siteEnabled = Paths.get("/etc/nginx/sites-enabled", domain);
-            if (!Files.exists(siteEnabled)) {
-                Files.createSymbolicLink(siteEnabled, siteAvailable);
+            // Write nginx configuration, and link it only after the site passed validation
+            Cli.Undo undo = new Cli.Undo();
+            try {
+                undo.write(siteAvailable, nginxConfig);
+                undo.link(SITES_ENABLED.resolve(domain), siteAvailable);
+            } catch (IOException e) {
+                undo.revert();
+                throw e;
             }
+            op.lap("write");
 
             printStatus("Configuration deployed to nginx", "info");
 
-            // Test nginx configuration
+            // Test and reload nginx (coalesced with any other queued changes)
             showProgressBar("Running system diagnostics");
-            Process testProcess = new ProcessBuilder("sudo", "nginx", "-t")
-                    .redirectOutput(ProcessBuilder.Redirect.PIPE)
-                    .redirectError(ProcessBuilder.Redirect.PIPE)
-                    .start();
-
-            int testResult = testProcess.waitFor();
+            ReloadScheduler.Result reload = ReloadScheduler.shared().request().join();
+            op.lap("reload");
 
-            if (testResult == 0) {
+            if (reload.validated()) {
                 printStatus("Configuration validation PASSED", "success");
-
-                // Reload nginx
-                showProgressBar("Reloading nginx service");
-                Process reloadProcess = new ProcessBuilder("sudo", "systemctl", "reload", "nginx")
-                        .start();
-                reloadProcess.waitFor();
-
-                printStatus("Nginx service reloaded successfully", "success");
+                printReloadResult(reload);
 
                 // Ask about hosts file
                 String addToHosts = getUserInput("Add domain to /etc/hosts? [y/N]");
@@ -199,163 +338,192 @@ public class FastNginx {
                     if (!customIp.isEmpty()) {
                         ipAddress = customIp;
                     }
+                    op.skip();
 
-                    try (BufferedWriter writer = new BufferedWriter(new FileWriter("/etc/hosts", true))) {
-                        writer.newLine();
-                        writer.write(ipAddress + "\t" + domain + "\t# Added by FastNginx");
-                        writer.newLine();
-                        printStatus("Domain added to hosts file", "success");
-                    }
+                    HostsFile hosts = HostsFile.load();
+                    hosts.put(domain, ipAddress);
+                    hosts.save();
+                    op.lap("hosts");
+                    printStatus("Domain added to hosts file", "success");
                 }
+                op.skip();
 
                 // Save to index
-                String configEntry = String.format(
-                        "domain=%s,port=%s,type=proxy,ip=%s,path=%s,status=active,created=%d",
-                        domain, port, ipAddress, siteAvailable.toString(), System.currentTimeMillis());
-
-                try (BufferedWriter writer = Files.newBufferedWriter(configIndex, StandardOpenOption.APPEND)) {
-                    writer.write(configEntry);
-                    writer.newLine();
+                configEntry.put("ip", ipAddress);
+                configEntry.put("path", siteAvailable.toString());
+                configEntry.put("status", "active");
+                configEntry.put("created", String.valueOf(System.currentTimeMillis()));
+                configEntry.put("hash", rendered.hash());
+
+                try (ConfigJournal store = ConfigJournal.open(dataDir)) {
+                    store.put(configEntry);
                 }
+                op.lap("index");
 
                 printStatus("Configuration registered in system index", "success");
+
+                // Static sites: serve precompressed bytes through gzip_static
+                String root = configEntry.get("root");
+                if (root != null && !getUserInput("Precompress assets in " + root + "? [Y/n]").equalsIgnoreCase("n")) {
+                    op.skip();
+                    Precompressor.Stats stats = Precompressor.run(Paths.get(root));
+                    op.lap("precompress");
+                    printStatus(stats.summary(), stats.failed() == 0 ? "success" : "warning");
+                }
+                if (reload.ok()) {
+                    op.succeeded();
+                }
+
                 System.out.println(BRIGHT_GREEN + "\n[ DEPLOYMENT COMPLETE - SYSTEM OPERATIONAL ]" + RESET);
 
             } else {
-                printStatus("Configuration validation FAILED", "error");
-
-                // Read error output
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(testProcess.getErrorStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        System.out.println(RED + "  " + line + RESET);
-                    }
+                printStatus("Configuration validation FAILED - deployment reverted", "error");
+                reload.output().lines().forEach(line -> System.out.println(RED + "  " + line + RESET));
+                // Leaving the files would make the next unrelated reload fail as well
+                undo.revert();
+                try (ConfigJournal store = ConfigJournal.open(dataDir)) {
+                    syncSharedConfig(store, Map.of());
                 }
             }
 
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
             printStatus("Deployment failed: " + e.getMessage(), "error");
         }
     }
 
-    private static String generateNginxConfig(String domain, String port) {
-        return String.format("""
-                # FastNginx Generated Configuration
-                # Domain: %s | Port: %s | Generated: %s
-
-                server {
-                    listen 80;
-                    server_name %s;
-
-                    # Security headers
-                    add_header X-Frame-Options "SAMEORIGIN" always;
-                    add_header X-Content-Type-Options "nosniff" always;
-                    add_header X-XSS-Protection "1; mode=block" always;
-
-                    # Proxy configuration
-                    location / {
-                        proxy_pass http://127.0.0.1:%s;
-                        proxy_http_version 1.1;
-
-                        # WebSocket support
-                        proxy_set_header Upgrade $http_upgrade;
-                        proxy_set_header Connection 'upgrade';
-                        proxy_cache_bypass $http_upgrade;
-
-                        # Standard proxy headers
-                        proxy_set_header Host $host;
-                        proxy_set_header X-Real-IP $remote_addr;
-                        proxy_set_header X-Forwarded-For $proxy_add_x_forwarded_for;
-                        proxy_set_header X-Forwarded-Proto $scheme;
-
-                        # Timeouts
-                        proxy_connect_timeout 60s;
-                        proxy_send_timeout 60s;
-                        proxy_read_timeout 60s;
-                    }
-
-                    # Health check endpoint
-                    location /nginx-health {
-                        access_log off;
-                        return 200 "healthy\\n";
-                        add_header Content-Type text/plain;
-                    }
-                }
-                """,
-                domain, port, new Date().toString(), domain, port);
-    }
-
     private static void manageConfigurations() {
-        try {
-            String basePath = Files.readAllLines(Paths.get(CONFIG_FILE)).get(0).trim();
-            Path configIndex = Paths.get(basePath, "nginx_data", "config_index");
-
-            if (!Files.exists(configIndex)) {
-                printStatus("No configurations found", "info");
-                return;
-            }
-
-            List<String> configurations = Files.readAllLines(configIndex);
-            if (configurations.isEmpty()) {
+        try (ConfigJournal store = ConfigJournal.open(dataDirPath())) {
+            if (store.size() == 0) {
                 printStatus("Configuration database is empty", "info");
                 return;
             }
 
-            System.out.println(BRIGHT_GREEN + "\n╔═══ CONFIGURATION MATRIX ═══╗" + RESET);
-
-            for (int i = 0; i < configurations.size(); i++) {
-                String config = configurations.get(i);
-                Map<String, String> configMap = parseConfigLine(config);
+            int pageSize = (int) Math.max(1, Settings.load().getLong("manager.page_size", 20));
+            Map<String, HealthProbe.State> health = HealthProbe.load(dataDirPath());
+            SiteIndex index = SiteIndex.build(store);
+            SiteIndex.Query query = SiteIndex.Query.ALL;
+            String queryText = "*";
+            int matches = index.size();
+            // Start of every page before the current one, for [P]rev
+            Deque<Integer> previous = new ArrayDeque<>();
+            int cursor = 0;
+
+            while (true) {
+                SiteIndex.Page page = index.page(query, cursor, pageSize);
+                showConfigurationPage(store, health, page, queryText, matches, previous.size() + 1);
+
+                String input = getUserInput("Domain to open, /query to search, [N]ext / [P]rev page, ENTER to exit");
+                if (input.isEmpty()) {
+                    return;
+                }
+                if (input.equalsIgnoreCase("n")) {
+                    if (page.next() < 0) {
+                        printStatus("Already on the last page", "info");
+                    } else {
+                        previous.push(cursor);
+                        cursor = page.next();
+                    }
+                    continue;
+                }
+                if (input.equalsIgnoreCase("p")) {
+                    if (previous.isEmpty()) {
+                        printStatus("Already on the first page", "info");
+                    } else {
+                        cursor = previous.pop();
+                    }
+                    continue;
+                }
 
-                String status = configMap.getOrDefault("status", "unknown");
-                String statusIcon = status.equals("active") ? BRIGHT_GREEN + "●" : RED + "●";
+                String domain = input.startsWith("/") ? null : index.find(input);
+                if (domain == null) {
+                    String text = input.startsWith("/") ? input.substring(1).trim() : input;
+                    try {
+                        query = SiteIndex.Query.parse(text);
+                    } catch (IllegalArgumentException e) {
+                        printStatus("Invalid query: " + e.getMessage(), "error");
+                        continue;
+                    }
+                    queryText = text.isEmpty() ? "*" : text;
+                    matches = index.count(query);
+                    previous.clear();
+                    cursor = 0;
+                    // A query that narrows to a single site opens it
+                    if (matches != 1) {
+                        continue;
+                    }
+                    domain = index.page(query, 0, 1).domains().get(0);
+                }
 
-                System.out.printf(CYAN + "[%02d] " + RESET + "%s " + GREEN + "%-20s" + RESET +
-                        DIM_GREEN + " → " + RESET + ":%s" + DIM_GREEN + " (%s)" + RESET + "%n",
-                        i + 1, statusIcon, configMap.get("domain"), configMap.get("port"),
-                        configMap.get("type"));
+                openConfiguration(store, domain);
+                store.refresh();
+                if (store.version() != index.version()) {
+                    index = SiteIndex.build(store);
+                    matches = index.count(query);
+                    previous.clear();
+                    cursor = 0;
+                }
             }
 
-            System.out.println(BRIGHT_GREEN + "╚═══════════════════════════╝" + RESET);
+        } catch (IOException e) {
+            printStatus("Error accessing configurations: " + e.getMessage(), "error");
+        }
+    }
 
-            String selection = getUserInput(
-                    "Select configuration [1-" + configurations.size() + "] or ENTER to cancel");
-            if (selection.isEmpty())
-                return;
+    private static void showConfigurationPage(ConfigJournal store, Map<String, HealthProbe.State> health,
+            SiteIndex.Page page, String query, int matches, int pageNumber) {
+        HealthProbe.State unknown = new HealthProbe.State("", 0, "");
 
-            try {
-                int index = Integer.parseInt(selection) - 1;
-                if (index < 0 || index >= configurations.size()) {
-                    printStatus("Invalid selection", "error");
-                    return;
-                }
+        printQueuedReloadResults(false);
+        System.out.println(BRIGHT_GREEN + "\n╔═══ CONFIGURATION MATRIX ═══╗" + RESET);
+        System.out.println(DIM_GREEN + "  query: " + GREEN + query + DIM_GREEN + "  matches: " + GREEN + matches
+                + DIM_GREEN + "  page: " + GREEN + pageNumber + RESET);
+        if (page.domains().isEmpty()) {
+            System.out.println(DIM_GREEN + "  (no matching configurations)" + RESET);
+        }
+        for (String domain : page.domains()) {
+            Map<String, String> row = store.get(domain);
+            if (row == null) {
+                continue;
+            }
+            String statusIcon = "active".equals(row.get("status")) ? BRIGHT_GREEN + "●" : RED + "●";
+            String healthIcon = health.getOrDefault(domain, unknown).marker();
 
-                String configLine = configurations.get(index);
-                Map<String, String> config = parseConfigLine(configLine);
+            System.out.printf("  %s%s " + GREEN + "%-20s" + RESET +
+                    DIM_GREEN + " → " + RESET + "%s" + DIM_GREEN + " (%s)" + RESET + "%n",
+                    statusIcon, healthIcon, domain,
+                    row.get("port") != null ? ":" + row.get("port") : row.get("root"), row.get("type"));
+        }
 
-                System.out.println(BRIGHT_CYAN + "\n┌─── CONFIGURATION DETAILS ───┐" + RESET);
-                config.forEach((key, value) -> System.out.println(GREEN + "  " + key + ": " + RESET + value));
-                System.out.println(BRIGHT_CYAN + "└─────────────────────────────┘" + RESET);
+        System.out.println(BRIGHT_GREEN + "╚═══════════════════════════╝" + RESET);
+        System.out.println(DIM_GREEN + "  backend: " + BRIGHT_GREEN + "◆" + DIM_GREEN + " up  "
+                + YELLOW + "◆" + DIM_GREEN + " recovered/flapping  " + RED + "✗" + DIM_GREEN + " down  ○ not probed"
+                + RESET);
+        System.out.println(DIM_GREEN + "  search: shop  *.tenant.example.com  .example.com  port:3000"
+                + "  status:inactive  type:static" + RESET);
+    }
 
-                String action = getUserInput("Action: [E]dit / [D]elete / [T]oggle / [ENTER] cancel");
+    private static void openConfiguration(ConfigJournal store, String domain) throws IOException {
+        Map<String, String> config = store.latest(domain);
+        if (config == null) {
+            printStatus("Configuration was deleted by another operator", "error");
+            return;
+        }
 
-                switch (action.toLowerCase()) {
-                    case "e" -> editConfiguration(configurations, index, configIndex);
-                    case "d" -> deleteConfiguration(configurations, index, config, configIndex);
-                    case "t" -> toggleConfiguration(configurations, index, config, configIndex);
-                    default -> printStatus("Operation cancelled", "info");
-                }
+        System.out.println(BRIGHT_CYAN + "\n┌─── CONFIGURATION DETAILS ───┐" + RESET);
+        config.forEach((key, value) -> System.out.println(GREEN + "  " + key + ": " + RESET + value));
+        System.out.println(BRIGHT_CYAN + "└─────────────────────────────┘" + RESET);
 
-            } catch (NumberFormatException e) {
-                printStatus("Invalid input format", "error");
-            }
+        String action = getUserInput("Action: [E]dit / [D]elete / [T]oggle / [ENTER] cancel");
 
-        } catch (IOException e) {
-            printStatus("Error accessing configurations: " + e.getMessage(), "error");
+        switch (action.toLowerCase()) {
+            case "e" -> editConfiguration(store, config);
+            case "d" -> deleteConfiguration(store, config);
+            case "t" -> toggleConfiguration(store, config);
+            default -> printStatus("Operation cancelled", "info");
         }
     }
 
-    private static Map<String, String> parseConfigLine(String line) {
+    static Map<String, String> parseConfigLine(String line) {
         Map<String, String> result = new HashMap<>();
         String[] parts = line.split(",");
 
@@ -368,132 +536,261 @@ public class FastNginx {
         return result;
     }
 
-    private static void editConfiguration(List<String> configs, int index, Path configIndex) {
-    try {
-        Map<String, String> config = parseConfigLine(configs.get(index));
+    private static void editConfiguration(ConfigJournal store, Map<String, String> config) {
+    try (Metrics.Operation op = Metrics.operation("edit")) {
+        // record ตามที่แสดงให้ผู้ใช้เห็น ใช้ตรวจว่าไม่มีใครแก้ไปก่อนตอนบันทึก
+        Map<String, String> original = new LinkedHashMap<>(config);
         String oldDomain = config.get("domain");
         String oldPort = config.get("port");
         String oldIp = config.get("ip");
         
         // รับข้อมูลใหม่จากผู้ใช้
         String newDomain = getUserInput("New domain [" + oldDomain + "]").trim();
-        String newPort = getUserInput("New port [" + oldPort + "]").trim();
+        if (!newDomain.isEmpty() && !Cli.isValidDomain(newDomain)) {
+            printStatus("Invalid domain: " + newDomain, "error");
+            return;
+        }
+        // ไซต์ static ไม่มี port/backend แต่มี document root แทน
+        boolean isStatic = "static".equals(config.get("type"));
+        String newPort = isStatic ? "" : getUserInput("New port [" + oldPort + "]").trim();
+        if (!newPort.isEmpty() && !Upstream.validPort(newPort)) {
+            printStatus("Port must be from 1 to 65535", "error");
+            return;
+        }
+        String oldRoot = config.get("root");
+        String newRoot = isStatic ? getUserInput("New document root [" + oldRoot + "]").trim() : "";
+        if (!newRoot.isEmpty() && !Templates.isPlainArgument(Paths.get(newRoot).toAbsolutePath().normalize().toString())) {
+            printStatus("Document root cannot contain spaces, quotes or ;{}$#", "error");
+            return;
+        }
+        if (!newRoot.isEmpty() && !Files.isDirectory(Paths.get(newRoot))) {
+            printStatus("Document root does not exist: " + newRoot, "error");
+            return;
+        }
         String newIp = getUserInput("New IP [" + oldIp + "]").trim();
+        String oldBackends = config.getOrDefault("backends", "");
+        String newBackends = isStatic ? "" : getUserInput("New backends host:port[,host:port...], - for none [" + (oldBackends.isEmpty() ? "-" : oldBackends) + "]").trim();
+        // "-" ลบ backends ออก ไซต์จะกลับไปใช้ backend_host:port
+        boolean clearBackends = newBackends.equals("-");
+        if (clearBackends) {
+            newBackends = "";
+        } else if (!newBackends.isEmpty()) {
+            String error = Upstream.validate(newBackends);
+            if (error != null) {
+                printStatus(error, "error");
+                return;
+            }
+            newBackends = String.join("|", newBackends.split("[|,\\s]+"));
+        } else {
+            newBackends = oldBackends;
+        }
+        String oldCache = config.getOrDefault("cache", CacheProfile.OFF);
+        String newCache = oldCache;
+        if (Templates.get(config.getOrDefault("template", Templates.DEFAULT)).variables().contains("cache_zone")) {
+            newCache = getUserInput("New cache profile " + CacheProfile.names() + " [" + oldCache + "]").trim().toLowerCase();
+            if (newCache.isEmpty()) newCache = oldCache;
+            if (!CacheProfile.names().contains(newCache)) {
+                printStatus("Unknown cache profile: " + newCache, "error");
+                return;
+            }
+        }
+        String oldTraffic = config.getOrDefault("traffic", TrafficProfile.OFF);
+        String newTraffic = promptTrafficProfile("New traffic profile",
+                config.getOrDefault("template", Templates.DEFAULT), oldTraffic);
+        if (newTraffic == null) {
+            return;
+        }
 
         // ใช้ค่าเดิมถ้าไม่ได้กรอกใหม่
         if (newDomain.isEmpty()) newDomain = oldDomain;
         if (newPort.isEmpty()) newPort = oldPort;
+        if (newRoot.isEmpty()) newRoot = oldRoot;
         if (newIp.isEmpty()) newIp = oldIp;
+        // เวลาที่รอผู้ใช้กรอกข้อมูลไม่นับรวมใน metrics
+        op.skip();
+        if (!store.isLatest(oldDomain, original)) {
+            printStatus(STALE_RECORD, "error");
+            return;
+        }
+
+        // render ใหม่แล้วเทียบ hash กับที่เก็บไว้ ถ้าเหมือนเดิมไม่ต้องเขียนไฟล์หรือ reload
+        Map<String, String> updated = new LinkedHashMap<>(config);
+        updated.put("domain", newDomain);
+        if (newPort != null) {
+            updated.put("port", newPort);
+        }
+        if (newRoot != null) {
+            updated.put("root", Paths.get(newRoot).toAbsolutePath().normalize().toString());
+        }
+        if (clearBackends) {
+            updated.remove("backends");
+        } else if (!newBackends.isEmpty()) {
+            updated.put("backends", newBackends);
+        }
+        if (newCache.equals(CacheProfile.OFF)) {
+            updated.remove("cache");
+        } else {
+            updated.put("cache", newCache);
+        }
+        if (newTraffic.equals(TrafficProfile.OFF)) {
+            updated.remove("traffic");
+        } else {
+            updated.put("traffic", newTraffic);
+        }
+        SiteTemplate.Rendered rendered = Templates.render(updated);
+        String nginxConfig = rendered.content();
+        boolean contentChanged = !oldDomain.equals(newDomain) || !rendered.hash().equals(config.get("hash"));
+        op.lap("render");
+
+        // ตรวจสอบ config ใหม่แบบแยกก่อนแตะไฟล์จริง
+        if (contentChanged) {
+            Map<String, Map<String, String>> pending = new HashMap<>();
+            pending.put(oldDomain, null);
+            pending.put(newDomain, updated);
+            syncSharedConfig(store, pending);
+            op.lap("shared_config");
+            SiteValidator.Outcome check = SiteValidator.validate(newDomain, nginxConfig);
+            op.lap("validate");
+            if (!check.passed()) {
+                printStatus("Site validation FAILED - configuration unchanged", "error");
+                check.output().lines().forEach(line -> System.out.println(RED + "  " + line + RESET));
+                syncSharedConfig(store, Map.of());
+                return;
+            }
+        }
 
         // อัปเดตค่าใน config
         config.put("domain", newDomain);
-        config.put("port", newPort);
+        if (newPort != null) {
+            config.put("port", newPort);
+        }
+        if (newRoot != null) {
+            config.put("root", updated.get("root"));
+        }
         config.put("ip", newIp);
+        if (clearBackends) {
+            config.remove("backends");
+        } else if (!newBackends.isEmpty()) {
+            config.put("backends", newBackends);
+        }
+        if (newCache.equals(CacheProfile.OFF)) {
+            config.remove("cache");
+        } else {
+            config.put("cache", newCache);
+        }
+        if (newTraffic.equals(TrafficProfile.OFF)) {
+            config.remove("traffic");
+        } else {
+            config.put("traffic", newTraffic);
+        }
+        config.put("hash", rendered.hash());
+        // ไฟล์จะถูกเขียนใหม่จาก template ค่า listen ที่ได้จากการ import จึงไม่ตรงอีกต่อไป
+        config.remove("listen");
 
         Path oldPath = Paths.get(config.get("path"));
         Path newPath = oldPath;
         boolean domainChanged = !oldDomain.equals(newDomain);
 
-        if (domainChanged) {
-            // เปลี่ยนชื่อไฟล์ให้ตรงกับ domain ใหม่
-            String oldFilename = oldPath.getFileName().toString();
-            String newFilename = newDomain; // ใช้ domain ใหม่เป็นชื่อไฟล์
-            Path availableDir = oldPath.getParent(); // /etc/nginx/sites-available
-            newPath = availableDir.resolve(newFilename);
-
-            // เปลี่ยน path ใหม่ใน config
-            config.put("path", newPath.toString());
-
-            // จัดการ symlink ใน sites-enabled ก่อน
-            Path enabledDir = availableDir.getParent().resolve("sites-enabled");
-            Path oldLink = enabledDir.resolve(oldFilename);
-            Path newLink = enabledDir.resolve(newFilename);
-
-            // ลบ symlink เดิมก่อน (ถ้ามี)
-            if (Files.exists(oldLink)) {
-                try {
-                    Files.delete(oldLink);
+        // ตรวจซ้ำทันทีก่อนแตะไฟล์ เพราะระหว่าง validate อาจมีคนอื่นแก้ไปแล้ว
+        if (!store.isLatest(oldDomain, original)) {
+            printStatus(STALE_RECORD, "error");
+            if (contentChanged) {
+                syncSharedConfig(store, Map.of());
+            }
+            return;
+        }
+        // ทุกการเปลี่ยนไฟล์ผ่าน undo เพื่อคืนสภาพได้ถ้าบันทึก index ไม่สำเร็จ
+        Cli.Undo undo = new Cli.Undo();
+        try {
+            if (domainChanged) {
+                // เปลี่ยนชื่อไฟล์ให้ตรงกับ domain ใหม่
+                String oldFilename = oldPath.getFileName().toString();
+                String newFilename = newDomain; // ใช้ domain ใหม่เป็นชื่อไฟล์
+                Path availableDir = oldPath.getParent(); // /etc/nginx/sites-available
+                newPath = availableDir.resolve(newFilename);
+
+                // เปลี่ยน path ใหม่ใน config
+                config.put("path", newPath.toString());
+
+                // symlink อยู่ที่ SITES_ENABLED ซึ่งใน dense layout ไม่ใช่ /etc/nginx/sites-enabled
+                Path oldLink = enabledPath(original);
+                Path newLink = enabledPath(config);
+
+                // ลบ symlink เดิมก่อน (ถ้ามี)
+                if (Files.isSymbolicLink(oldLink)) {
+                    undo.unlink(oldLink);
                     printStatus("Deleted old symlink: " + oldFilename, "info");
-                } catch (IOException e) {
-                    printStatus("Warning: Could not delete old symlink " + oldFilename + ": " + e.getMessage(), "warning");
+                }
+
+                // เปลี่ยนชื่อไฟล์จริงใน sites-available
+                if (Files.exists(oldPath)) {
+                    undo.write(newPath, Files.readAllBytes(oldPath));
+                    undo.delete(oldPath);
+                    printStatus("Moved config file: " + oldFilename + " -> " + newFilename, "info");
+                }
+
+                // สร้าง symlink ใหม่เฉพาะไซต์ที่ active เหมือน Cli.apply
+                if (!"inactive".equals(config.get("status"))) {
+                    undo.link(newLink, newPath);
+                    printStatus("Created new symlink: " + newFilename, "success");
                 }
             }
 
-            // เปลี่ยนชื่อไฟล์จริงใน sites-available
-            if (Files.exists(oldPath)) {
-                Files.move(oldPath, newPath, StandardCopyOption.REPLACE_EXISTING);
-                printStatus("Moved config file: " + oldFilename + " -> " + newFilename, "info");
+            // เขียนเนื้อหา nginx config ใหม่ลงไฟล์
+            if (contentChanged) {
+                undo.write(newPath, nginxConfig);
+                printStatus("Updated nginx configuration", "success");
+            } else {
+                printStatus("Nginx configuration unchanged", "info");
             }
+            op.lap("write");
 
-            // สร้าง symlink ใหม่
-            try {
-                Files.createSymbolicLink(newLink, newPath);
-                printStatus("Created new symlink: " + newFilename, "success");
-            } catch (IOException e) {
-                printStatus("Warning: Could not create new symlink: " + e.getMessage(), "warning");
-                // ลองใช้วิธีอื่น เช่น ln -s command
-                try {
-                    Process linkProcess = new ProcessBuilder("sudo", "ln", "-sf", newPath.toString(), newLink.toString()).start();
-                    int exitCode = linkProcess.waitFor();
-                    if (exitCode == 0) {
-                        printStatus("Created symlink using ln command", "success");
-                    } else {
-                        printStatus("Failed to create symlink with ln command", "error");
-                    }
-                } catch (Exception ex) {
-                    printStatus("Failed to create symlink with ln command: " + ex.getMessage(), "error");
+            // อัปเดต record ใน index (ลบ key เดิมถ้าเปลี่ยน domain) เฉพาะเมื่อยังไม่มีใครแก้ไปก่อน
+            if (!store.replace(oldDomain, original, config)) {
+                undo.revert();
+                if (contentChanged) {
+                    syncSharedConfig(store, Map.of());
                 }
+                printStatus(STALE_RECORD + " (file changes were reverted)", "error");
+                return;
+            }
+        } catch (IOException e) {
+            undo.revert();
+            if (contentChanged) {
+                syncSharedConfig(store, Map.of());
             }
+            throw e;
         }
-
-        // เขียนเนื้อหา nginx config ใหม่ลงไฟล์
-        String nginxConfig = generateNginxConfig(newDomain, newPort);
-        Files.writeString(newPath, nginxConfig);
-        printStatus("Updated nginx configuration", "success");
-
-        // อัปเดต config line ใน configIndex
-        String updatedLine = config.entrySet().stream()
-                .map(e -> e.getKey() + "=" + e.getValue())
-                .collect(Collectors.joining(","));
-        configs.set(index, updatedLine);
-        Files.write(configIndex, configs);
+        op.lap("index");
         printStatus("Updated configuration index", "success");
 
         // อัปเดต /etc/hosts ให้ตรงกับการเปลี่ยนแปลง
         updateHostsFile(oldDomain, newDomain, newIp);
+        op.lap("hosts");
 
-        // Test และ Reload nginx
-        printStatus("Testing nginx configuration...", "loading");
-        Process testProcess = new ProcessBuilder("sudo", "nginx", "-t")
-                .redirectOutput(ProcessBuilder.Redirect.PIPE)
-                .redirectError(ProcessBuilder.Redirect.PIPE)
-                .start();
+        if (!contentChanged) {
+            printStatus("Configuration updated successfully (no reload needed)", "success");
+            op.succeeded();
+            return;
+        }
 
-        int testResult = testProcess.waitFor();
-        if (testResult == 0) {
+        // Test และ Reload nginx (รวมกับการเปลี่ยนแปลงอื่นที่รออยู่)
+        printStatus("Testing nginx configuration...", "loading");
+        ReloadScheduler.Result reload = ReloadScheduler.shared().request().join();
+        op.lap("reload");
+        if (reload.validated()) {
             printStatus("Configuration test PASSED", "success");
-            
-            // Reload nginx
-            Process nginxReload = new ProcessBuilder("sudo", "systemctl", "reload", "nginx").start();
-            int reloadResult = nginxReload.waitFor();
-            if (reloadResult == 0) {
-                printStatus("Nginx reloaded successfully", "success");
+            printReloadResult(reload);
+            if (reload.ok()) {
                 printStatus("Configuration updated successfully", "success");
-            } else {
-                printStatus("Warning: Nginx reload failed with exit code: " + reloadResult, "warning");
+                op.succeeded();
             }
         } else {
             printStatus("Configuration test FAILED", "error");
-            // อ่าน error output
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(testProcess.getErrorStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    System.out.println(RED + "  " + line + RESET);
-                }
-            }
+            reload.output().lines().forEach(line -> System.out.println(RED + "  " + line + RESET));
         }
 
-    } catch (IOException | InterruptedException e) {
+    } catch (IOException e) {
         printStatus("Failed to update configuration: " + e.getMessage(), "error");
     }
 }
@@ -503,45 +800,19 @@ public class FastNginx {
  */
 private static void updateHostsFile(String oldDomain, String newDomain, String newIp) {
     try {
-        Path hostsPath = Paths.get("/etc/hosts");
-        List<String> hostsLines = Files.readAllLines(hostsPath);
-        boolean foundAndUpdated = false;
-        
-        // หาและอัปเดตบรรทัดที่มี oldDomain
-        for (int i = 0; i < hostsLines.size(); i++) {
-            String line = hostsLines.get(i).trim();
-            
-            // ตรวจสอบบรรทัดที่มี comment "# Added by FastNginx" หรือมี domain เดิม
-            if (line.contains(oldDomain) && 
-                (line.contains("# Added by FastNginx") || line.matches("^\\d+\\.\\d+\\.\\d+\\.\\d+\\s+" + oldDomain + ".*"))) {
-                
-                // สร้างบรรทัดใหม่
-                String newLine = newIp + "\t" + newDomain + "\t# Added by FastNginx";
-                hostsLines.set(i, newLine);
-                foundAndUpdated = true;
-                printStatus("Updated hosts entry: " + oldDomain + " -> " + newDomain, "info");
-                break;
-            }
-        }
-        
-        // ถ้าไม่เจอบรรทัดเดิม ให้เพิ่มบรรทัดใหม่
-        if (!foundAndUpdated) {
-            // ตรวจสอบว่ามี domain ใหม่อยู่แล้วหรือไม่
-            boolean newDomainExists = hostsLines.stream()
-                    .anyMatch(line -> line.contains(newDomain));
-            
-            if (!newDomainExists) {
-                hostsLines.add(newIp + "\t" + newDomain + "\t# Added by FastNginx");
-                printStatus("Added new hosts entry: " + newDomain, "info");
-            } else {
-                printStatus("Domain " + newDomain + " already exists in hosts file", "warning");
-            }
+        HostsFile hosts = HostsFile.load();
+        String previousIp = hosts.get(oldDomain);
+        hosts.rename(oldDomain, newDomain, newIp);
+
+        if (hosts.save()) {
+            printStatus(previousIp != null
+                    ? "Updated hosts entry: " + oldDomain + " -> " + newDomain
+                    : "Added new hosts entry: " + newDomain, "info");
+            printStatus("Hosts file updated successfully", "success");
+        } else {
+            printStatus("Hosts file already up to date", "info");
         }
         
-        // เขียนกลับไปยังไฟล์
-        Files.write(hostsPath, hostsLines);
-        printStatus("Hosts file updated successfully", "success");
-        
     } catch (IOException e) {
         printStatus("Failed to update hosts file: " + e.getMessage(), "error");
         
@@ -549,74 +820,180 @@ private static void updateHostsFile(String oldDomain, String newDomain, String n
         String manualAdd = getUserInput("Add to hosts manually? [y/N]").trim().toLowerCase();
         if (manualAdd.equals("y")) {
             System.out.println(CYAN + "Please add this line to /etc/hosts:" + RESET);
-            System.out.println(BRIGHT_GREEN + newIp + "\t" + newDomain + "\t# Added by FastNginx" + RESET);
+            System.out.println(BRIGHT_GREEN + newIp + "\t" + newDomain + RESET);
         }
     }
 }
 
-    private static void deleteConfiguration(List<String> configs, int index, Map<String, String> config,
-            Path configIndex) {
-        try {
+    private static void deleteConfiguration(ConfigJournal store, Map<String, String> config) {
+        try (Metrics.Operation op = Metrics.operation("delete")) {
             String domain = config.get("domain");
             String path = config.get("path");
+            if (!store.isLatest(domain, config)) {
+                printStatus(STALE_RECORD, "error");
+                return;
+            }
 
-            // Remove nginx files
-            Files.deleteIfExists(Paths.get(path));
-            Files.deleteIfExists(Paths.get("/etc/nginx/sites-enabled", domain));
-
-            // Remove from hosts file
-            List<String> hostsLines = Files.readAllLines(Paths.get("/etc/hosts"));
-            List<String> updatedHosts = hostsLines.stream()
-                    .filter(line -> !line.trim().endsWith("\t" + domain + "\t# Added by FastNginx"))
-                    .collect(Collectors.toList());
-            Files.write(Paths.get("/etc/hosts"), updatedHosts);
+            // Remove nginx files, restored if the index record changed meanwhile
+            Cli.Undo undo = new Cli.Undo();
+            try {
+                undo.unlink(enabledPath(config));
+                undo.delete(Paths.get(path));
+                op.lap("write");
 
-            // Remove from config index
-            configs.remove(index);
-            Files.write(configIndex, configs);
+                if (!store.replace(domain, config, null)) {
+                    undo.revert();
+                    printStatus(STALE_RECORD + " (files were restored)", "error");
+                    return;
+                }
+            } catch (IOException e) {
+                undo.revert();
+                throw e;
+            }
+            op.lap("index");
 
-            // Reload nginx
-            new ProcessBuilder("sudo", "systemctl", "reload", "nginx").start();
+            // Remove from hosts file
+            HostsFile hosts = HostsFile.load();
+            hosts.remove(domain);
+            hosts.save();
+            op.lap("hosts");
+            if (config.get("cache") != null || config.get("traffic") != null) {
+                syncSharedConfig(store, Map.of());
+                op.lap("shared_config");
+            }
 
             printStatus("Configuration deleted successfully", "success");
+            op.succeeded();
+
+            // Reload nginx once any other queued changes have settled
+            RELOADS.add(ReloadScheduler.shared().request());
 
         } catch (IOException e) {
             printStatus("Failed to delete configuration: " + e.getMessage(), "error");
         }
     }
 
-    private static void toggleConfiguration(List<String> configs, int index, Map<String, String> config,
-            Path configIndex) {
-        try {
+    private static void toggleConfiguration(ConfigJournal store, Map<String, String> config) {
+        try (Metrics.Operation op = Metrics.operation("toggle")) {
             String domain = config.get("domain");
             String currentStatus = config.getOrDefault("status", "active");
             String newStatus = currentStatus.equals("active") ? "inactive" : "active";
+            if (!store.isLatest(domain, config)) {
+                printStatus(STALE_RECORD, "error");
+                return;
+            }
 
-            Path enabledPath = Paths.get("/etc/nginx/sites-enabled", domain);
+            Path enabledPath = enabledPath(config);
             Path availablePath = Paths.get(config.get("path"));
 
-            if (newStatus.equals("active")) {
-                if (!Files.exists(enabledPath)) {
-                    Files.createSymbolicLink(enabledPath, availablePath);
+            Cli.Undo undo = new Cli.Undo();
+            try {
+                if (newStatus.equals("active")) {
+                    undo.link(enabledPath, availablePath);
+                } else {
+                    undo.unlink(enabledPath);
                 }
-            } else {
-                Files.deleteIfExists(enabledPath);
+                op.lap("write");
+
+                Map<String, String> updated = new LinkedHashMap<>(config);
+                updated.put("status", newStatus);
+                if (!store.replace(domain, config, updated)) {
+                    undo.revert();
+                    printStatus(STALE_RECORD + " (symlink was restored)", "error");
+                    return;
+                }
+            } catch (IOException e) {
+                undo.revert();
+                throw e;
             }
+            op.lap("index");
 
-            config.put("status", newStatus);
-            String updatedLine = config.entrySet().stream()
-                    .map(e -> e.getKey() + "=" + e.getValue())
-                    .collect(Collectors.joining(","));
+            printStatus("Configuration " + newStatus, "success");
+            op.succeeded();
 
-            configs.set(index, updatedLine);
-            Files.write(configIndex, configs);
+            RELOADS.add(ReloadScheduler.shared().request());
 
-            new ProcessBuilder("sudo", "systemctl", "reload", "nginx").start();
+        } catch (IOException e) {
+            printStatus("Failed to toggle configuration: " + e.getMessage(), "error");
+        }
+    }
 
-            printStatus("Configuration " + newStatus, "success");
+    /**
+     * Runs one health probe round and reports it. Sites dead for probe.dead_after
+     * rounds are deactivated when requested, configured, or confirmed interactively.
+     */
+    static int probeBackends(boolean interactive, boolean deactivate) {
+        try (ConfigJournal store = ConfigJournal.open(dataDirPath())) {
+            Settings settings = Settings.load();
+            HealthProbe.Round round = HealthProbe.run(store, dataDirPath(), settings);
+
+            long down = round.backends().values().stream().filter(r -> !r.up()).count();
+            printStatus(String.format("%d backend(s) probed in %.0f ms: %d up, %d down",
+                    round.backends().size(), round.nanos() / 1_000_000.0,
+                    round.backends().size() - down, down), down == 0 ? "success" : "warning");
+            round.states().forEach((domain, state) -> {
+                if (!state.lastUp()) {
+                    System.out.println("  " + state.marker() + " " + GREEN + domain + DIM_GREEN + " " + state.history()
+                            + "  " + state.detail() + RESET);
+                }
+            });
 
+            if (round.dead().isEmpty()) {
+                return 0;
+            }
+            printStatus(round.dead().size() + " site(s) failed the last "
+                    + settings.getLong("probe.dead_after", 3) + " rounds: " + String.join(", ", round.dead()), "error");
+
+            boolean apply = deactivate || settings.get("probe.auto_deactivate", "false").equals("true")
+                    || (interactive && getUserInput("Mark them inactive? [y/N]").equalsIgnoreCase("y"));
+            if (apply) {
+                for (String domain : round.dead()) {
+                    PrivilegedHelper.unlink(enabledPath(store.get(domain)));
+                    store.setStatus(domain, "inactive");
+                    printStatus("Deactivated " + domain, "warning");
+                }
+                printReloadResult(ReloadScheduler.shared().request().join());
+            }
+            return 1;
         } catch (IOException e) {
-            printStatus("Failed to toggle configuration: " + e.getMessage(), "error");
+            printStatus("Health probe failed: " + e.getMessage(), "error");
+            return 1;
+        }
+    }
+
+    /** Rewrites the shared http file and reports cache and limit zone sizing when it changed */
+    static boolean syncSharedConfig(ConfigJournal store, Map<String, Map<String, String>> pending) throws IOException {
+        List<CacheProfile.Zone> zones = SharedConfig.zones(store, pending);
+        List<TrafficProfile.Zone> limits = SharedConfig.limits(store, pending);
+        if (!SharedConfig.sync(zones, limits, SharedConfig.domains(store, pending))) {
+            return false;
+        }
+        printStatus("Updated " + SharedConfig.PATH, "info");
+        if (!zones.isEmpty()) {
+            printStatus(SharedConfig.cacheSummary(zones), "info");
+        }
+        if (!limits.isEmpty()) {
+            printStatus(SharedConfig.limitSummary(limits), "info");
+        }
+        return true;
+    }
+
+    static void printReloadResult(ReloadScheduler.Result reload) {
+        String covered = reload.coalesced() > 1 ? " (" + reload.coalesced() + " changes)" : "";
+        if (!reload.validated()) {
+            printStatus("Reload skipped: configuration test FAILED" + covered, "error");
+            reload.output().lines().forEach(line -> System.out.println(RED + "  " + line + RESET));
+        } else if (reload.exitCode() == 0) {
+            printStatus("Nginx service reloaded successfully" + covered, "success");
+        } else {
+            printStatus("Warning: Nginx reload failed with exit code: " + reload.exitCode() + covered, "warning");
+        }
+    }
+
+    /** Prints background reload results here rather than from the scheduler thread mid-prompt */
+    private static void printQueuedReloadResults(boolean wait) {
+        while (!RELOADS.isEmpty() && (wait || RELOADS.peek().isDone())) {
+            printReloadResult(RELOADS.poll().join());
         }
     }
 
@@ -624,6 +1001,7 @@ private static void updateHostsFile(String oldDomain, String newDomain, String n
         while (true) {
             clearScreen();
             printSciFiHeader();
+            printQueuedReloadResults(false);
 
             System.out.println(BRIGHT_GREEN + "╔═══════════════════════════════════════╗" + RESET);
             System.out.println(
@@ -635,6 +1013,12 @@ private static void updateHostsFile(String oldDomain, String newDomain, String n
                     + "║" + RESET);
             System.out.println(BRIGHT_GREEN + "║" + GREEN + "  [3] System Diagnostics               " + BRIGHT_GREEN
                     + "║" + RESET);
+            System.out.println(BRIGHT_GREEN + "║" + GREEN + "  [4] Live Traffic Monitor             " + BRIGHT_GREEN
+                    + "║" + RESET);
+            System.out.println(BRIGHT_GREEN + "║" + GREEN + "  [5] Probe Backends                   " + BRIGHT_GREEN
+                    + "║" + RESET);
+            System.out.println(BRIGHT_GREEN + "║" + GREEN + "  [6] Import Existing Sites            " + BRIGHT_GREEN
+                    + "║" + RESET);
             System.out.println(
                     BRIGHT_GREEN + "║" + RED + "  [Q] Terminate Session                " + BRIGHT_GREEN + "║" + RESET);
             System.out.println(BRIGHT_GREEN + "╚═══════════════════════════════════════╝" + RESET);
@@ -657,59 +1041,139 @@ private static void updateHostsFile(String oldDomain, String newDomain, String n
                     runDiagnostics();
                     getUserInput("Press ENTER to continue");
                 }
+                case "4" -> {
+                    clearScreen();
+                    showLiveMonitor();
+                }
+                case "5" -> {
+                    clearScreen();
+                    probeBackends(true, false);
+                    getUserInput("Press ENTER to continue");
+                }
+                case "6" -> {
+                    clearScreen();
+                    importSites();
+                    getUserInput("Press ENTER to continue");
+                }
                 case "Q" -> {
+                    ReloadScheduler.shared().drain();
+                    printQueuedReloadResults(true);
                     printStatus("Neural network disconnected", "info");
                     System.exit(0);
                 }
-                default -> {
-                    printStatus("Invalid command sequence", "error");
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
+                default -> printStatus("Invalid command sequence", "error");
+            }
+        }
+    }
+
+    /** Adopts hand-written files from sites-available after showing what would be imported */
+    private static void importSites() {
+        try (ConfigJournal store = ConfigJournal.open(dataDirPath())) {
+            SiteImporter.Report report = SiteImporter.scan(store);
+            printStatus(report.summary(), report.failed().isEmpty() ? "success" : "warning");
+            report.failed().stream().limit(20).forEach(o ->
+                    System.out.println(YELLOW + "  " + o.file() + DIM_GREEN + "  " + o.problem() + RESET));
+            if (report.failed().size() > 20) {
+                System.out.println(DIM_GREEN + "  … " + (report.failed().size() - 20) + " more" + RESET);
+            }
+            if (report.imported().isEmpty()) {
+                return;
+            }
+
+            long active = report.imported().stream().filter(e -> e.get("status").equals("active")).count();
+            String confirm = getUserInput("Import " + report.imported().size() + " site(s), " + active
+                    + " active? [Y/n]");
+            if (confirm.equalsIgnoreCase("n")) {
+                printStatus("Import cancelled", "info");
+                return;
+            }
+            store.putAll(report.imported());
+            printStatus("Imported " + report.imported().size() + " site(s) into the index", "success");
+        } catch (IOException e) {
+            printStatus("Import failed: " + e.getMessage(), "error");
+        }
+    }
+
+    private static void showLiveMonitor() {
+        try {
+            List<String> domains = new ArrayList<>();
+            boolean sharedChanged;
+            try (ConfigJournal store = ConfigJournal.open(dataDirPath())) {
+                store.forEach(row -> {
+                    if (row.status().equals("active")) {
+                        domains.add(row.domain());
                     }
-                }
+                });
+                // The stub_status listener lives in the shared file
+                sharedChanged = syncSharedConfig(store, Map.of());
             }
+            if (sharedChanged) {
+                printReloadResult(ReloadScheduler.shared().request().join());
+            }
+
+            long missing = domains.stream().filter(d -> !Files.exists(AccessLog.path(d))).count();
+            if (missing > 0) {
+                printStatus(missing + " site(s) have no access log yet (redeploy or reconcile to add one)", "warning");
+            }
+
+            LiveMonitor.run(domains);
+            scanner.nextLine();
+        } catch (IOException e) {
+            printStatus("Live monitor failed: " + e.getMessage(), "error");
         }
     }
 
     private static void runDiagnostics() {
         System.out.println(BRIGHT_GREEN + "╔═══ SYSTEM DIAGNOSTICS ═══╗" + RESET);
 
-        try {
-            // Check nginx status
-            Process nginxStatus = new ProcessBuilder("systemctl", "is-active", "nginx").start();
-            int nginxResult = nginxStatus.waitFor();
-            printStatus("Nginx Service: " + (nginxResult == 0 ? "ONLINE" : "OFFLINE"),
-                    nginxResult == 0 ? "success" : "error");
-
-            // Check configuration syntax
-            Process configTest = new ProcessBuilder("sudo", "nginx", "-t").start();
-            int configResult = configTest.waitFor();
-            printStatus("Configuration Syntax: " + (configResult == 0 ? "VALID" : "INVALID"),
-                    configResult == 0 ? "success" : "error");
-
-            // Check ports
-            printStatus("Scanning active ports...", "info");
-            Process netstat = new ProcessBuilder("ss", "-tlnp").start();
-            printStatus("Port scan completed", "success");
-
-        } catch (IOException | InterruptedException e) {
+        long start = System.nanoTime();
+        try (ConfigJournal store = ConfigJournal.open(dataDirPath())) {
+            // Process, syntax and port checks run in parallel, each with a deadline
+            for (Diagnostics.Finding finding : Diagnostics.run(store, Settings.load())) {
+                printStatus(finding.message(), finding.status());
+            }
+
+            ReloadScheduler scheduler = ReloadScheduler.shared();
+            printStatus(String.format("Reloads: %d requested, %d performed, %d failed",
+                    scheduler.requested(), scheduler.performed(), scheduler.failed()), "info");
+
+            // Memory and disk the proxy cache zones reserve on this host
+            printStatus("Proxy cache: " + SharedConfig.cacheSummary(SharedConfig.zones(store, Map.of())), "info");
+            List<TrafficProfile.Zone> limits = SharedConfig.limits(store, Map.of());
+            if (!limits.isEmpty()) {
+                printStatus("Traffic limits: " + SharedConfig.limitSummary(limits), "info");
+            }
+
+        } catch (IOException e) {
             printStatus("Diagnostic scan failed: " + e.getMessage(), "error");
         }
+        printStatus(String.format("Diagnostics completed in %.0f ms", (System.nanoTime() - start) / 1_000_000.0), "info");
 
         System.out.println(BRIGHT_GREEN + "╚═══════════════════════════╝" + RESET);
     }
 
+    /** Symlink of a site in sites-enabled: named after its file, which imported sites keep */
+    static Path enabledPath(Map<String, String> record) {
+        String path = record.get("path");
+        return SITES_ENABLED.resolve(path != null ? Paths.get(path).getFileName().toString() : record.get("domain"));
+    }
+
+    /**
+     * Resolves the nginx_data directory from the stored system path
+     */
+    static Path dataDirPath() throws IOException {
+        return Paths.get(Settings.load().basePath(), "nginx_data");
+    }
+
     public static void main(String[] args) {
-        try {
-            clearScreen();
-            showProgressBar("Initializing Neural Network");
-            initializeSystem();
-            Thread.sleep(1000); // Dramatic pause
-            showMainMenu();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            printStatus("System interrupted", "error");
+        if (args.length > 0) {
+            System.exit(Cli.run(args));
         }
+
+        clearScreen();
+        showProgressBar("Initializing Neural Network");
+        initializeSystem();
+        Metrics.longRunning();
+        showMainMenu();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,460 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pushes the indexed sites to a fleet of nginx nodes.
+ *
+ * Nodes are listed in .fastnginx_config, each with the directory holding its
+ * nginx configuration (a mount of the node's /etc/nginx, or a local nginx
+ * prefix) and the commands that test and reload it:
+ *   node.edge1.root=/mnt/edge1/nginx
+ *   node.edge1.validate=ssh edge1 sudo nginx -t
+ *   node.edge1.reload=ssh edge1 sudo systemctl reload nginx
+ *   fleet.wave=2              nodes reloading at the same time
+ *   fleet.timeout_s=60        limit for one validate or reload command
+ * {root} in a command is replaced by the node's root. Without commands a
+ * node is taken to be a local prefix: nginx -p {root}/ -c nginx.conf.
+ *
+ * "java FastNginx fleet" renders every site and the shared http file once,
+ * writes them to all nodes at once (only files whose bytes differ), tests
+ * every changed node in parallel and reloads the ones that passed in waves
+ * of fleet.wave. A node that fails its test gets its previous files back;
+ * no node's failure stops the others. The files FastNginx placed on a node
+ * are listed in its .fastnginx-fleet, so a deleted site goes away there too.
+ *
+ * Nodes always get the per-file layout (a link per site in sites-enabled)
+ * and server_names_hash sizing without map_hash_*, whatever "layout" is on
+ * this host: dense shards are rebuilt from the links before every local
+ * reload, which a node without FastNginx never does.
+ */
+final class Fleet {
+
+    static final String MANIFEST = ".fastnginx-fleet";
+    static final long DEFAULT_WAVE = 2;
+    static final long DEFAULT_TIMEOUT_S = 60;
+
+    private static final String DEFAULT_VALIDATE = "nginx -t -q -p {root}/ -c nginx.conf";
+    private static final String DEFAULT_RELOAD = "nginx -s reload -p {root}/ -c nginx.conf";
+    private static final String SHARED = "conf.d/" + SharedConfig.PATH.getFileName();
+
+    private Fleet() {
+    }
+
+    /** One nginx instance the sites are pushed to */
+    record Node(String name, Path root, String validate, String reload) {
+    }
+
+    /** What every node should hold, relative to its root; the shared file is finished per node */
+    private record Desired(Map<String, byte[]> files, Map<String, String> links, List<CacheProfile.Zone> zones,
+            List<TrafficProfile.Zone> limits, String statusListen, List<String> tuning) {
+    }
+
+    private record Command(int exitCode, String output) {
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        void run(Push push) throws IOException, InterruptedException;
+    }
+
+    /** One node's way through the pipeline, and what to put back if its test fails */
+    private static final class Push {
+        final Node node;
+        // Previous content, or null when the file did not exist
+        final Map<Path, byte[]> files = new LinkedHashMap<>();
+        // Previous link target, or null when the link did not exist
+        final Map<Path, Path> links = new LinkedHashMap<>();
+        int written;
+        int linked;
+        int removed;
+        String state = "unchanged";
+        String error;
+        String output;
+        int wave;
+        long writeNanos;
+        long validateNanos;
+        long reloadNanos;
+
+        Push(Node node) {
+            this.node = node;
+        }
+
+        boolean changed() {
+            return written + linked + removed > 0;
+        }
+
+        void fail(String error, String output) {
+            this.state = "failed";
+            this.error = error;
+            this.output = output;
+        }
+
+        void revert() throws IOException {
+            for (Map.Entry<Path, Path> e : links.entrySet()) {
+                Files.deleteIfExists(e.getKey());
+                if (e.getValue() != null) {
+                    Files.createSymbolicLink(e.getKey(), e.getValue());
+                }
+            }
+            for (Map.Entry<Path, byte[]> e : files.entrySet()) {
+                // Possibly a link made in its place, which writing would follow
+                Files.deleteIfExists(e.getKey());
+                if (e.getValue() != null) {
+                    Files.write(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        Map<String, Object> report() {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("node", node.name());
+            report.put("state", state);
+            report.put("written", written);
+            report.put("links", linked);
+            report.put("removed", removed);
+            report.put("write_ms", TimeUnit.NANOSECONDS.toMillis(writeNanos));
+            report.put("validate_ms", TimeUnit.NANOSECONDS.toMillis(validateNanos));
+            report.put("reload_ms", TimeUnit.NANOSECONDS.toMillis(reloadNanos));
+            if (wave > 0) {
+                report.put("wave", wave);
+            }
+            if (error != null) {
+                report.put("error", error);
+            }
+            if (output != null && !output.isEmpty()) {
+                report.put("output", output);
+            }
+            return report;
+        }
+    }
+
+    /** The node.* inventory in file order, which is also the reload order */
+    static List<Node> nodes(Settings settings) throws IOException {
+        Map<String, String> section = settings.section("node");
+        Map<String, Node> nodes = new LinkedHashMap<>();
+        for (String key : section.keySet()) {
+            int dot = key.lastIndexOf('.');
+            String name = dot < 0 ? key : key.substring(0, dot);
+            if (nodes.containsKey(name)) {
+                continue;
+            }
+            String root = section.get(name + ".root");
+            if (root == null) {
+                throw new IOException("node." + name + ".root is not set");
+            }
+            nodes.put(name, new Node(name, Paths.get(root), section.getOrDefault(name + ".validate", DEFAULT_VALIDATE),
+                    section.getOrDefault(name + ".reload", DEFAULT_RELOAD)));
+        }
+        return new ArrayList<>(nodes.values());
+    }
+
+    /**
+     * Pushes the index to the nodes named in only (all when empty) and puts
+     * one report per node into result. With dryRun nothing is written and
+     * the reports count what would change.
+     */
+    static void push(ConfigJournal store, Set<String> only, boolean dryRun, Map<String, Object> result,
+            Metrics.Operation op) throws IOException, Cli.Failure {
+        Settings settings = Settings.load();
+        List<Node> nodes = nodes(settings);
+        if (nodes.isEmpty()) {
+            throw new Cli.Failure("No nodes configured, add node.<name>.root=... to " + FastNginx.CONFIG_FILE);
+        }
+        Set<String> unknown = new TreeSet<>(only);
+        nodes.forEach(node -> unknown.remove(node.name()));
+        if (!unknown.isEmpty()) {
+            throw new Cli.Failure("No such node: " + String.join(", ", unknown));
+        }
+        if (!only.isEmpty()) {
+            nodes.removeIf(node -> !only.contains(node.name()));
+        }
+        int wave = (int) Math.max(1, settings.getLong("fleet.wave", DEFAULT_WAVE));
+        long timeout = Math.max(1, settings.getLong("fleet.timeout_s", DEFAULT_TIMEOUT_S));
+
+        Desired desired = render(store, settings);
+        op.lap("render");
+
+        List<Push> pushes = nodes.stream().map(Push::new).toList();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            // All nodes at once: a slow or unreachable node only delays its own report
+            forEach(executor, pushes, push -> {
+                long start = System.nanoTime();
+                try {
+                    write(push, desired, dryRun);
+                } catch (IOException | RuntimeException e) {
+                    // Whatever stopped the write, the node keeps the files it had
+                    try {
+                        push.revert();
+                    } catch (IOException | RuntimeException revertError) {
+                        e.addSuppressed(revertError);
+                    }
+                    throw e;
+                } finally {
+                    push.writeNanos = System.nanoTime() - start;
+                }
+                if (push.changed()) {
+                    push.state = dryRun ? "would_change" : "written";
+                }
+            });
+            op.lap("write");
+            if (dryRun) {
+                report(pushes, desired, result);
+                return;
+            }
+
+            forEach(executor, inState(pushes, "written"), push -> {
+                long start = System.nanoTime();
+                Command test = run(push.node.validate(), push.node, timeout);
+                push.validateNanos = System.nanoTime() - start;
+                if (test.exitCode() != 0) {
+                    push.revert();
+                    push.fail("Validation failed, previous files restored", test.output());
+                } else {
+                    push.state = "validated";
+                }
+            });
+            op.lap("validate");
+
+            List<Push> ready = inState(pushes, "validated");
+            for (int from = 0; from < ready.size(); from += wave) {
+                int number = from / wave + 1;
+                forEach(executor, ready.subList(from, Math.min(from + wave, ready.size())), push -> {
+                    push.wave = number;
+                    long start = System.nanoTime();
+                    Command reload = run(push.node.reload(), push.node, timeout);
+                    push.reloadNanos = System.nanoTime() - start;
+                    if (reload.exitCode() != 0) {
+                        // The files passed the test, so they stay for the next reload to pick up
+                        push.fail("Reload failed with exit code " + reload.exitCode(), reload.output());
+                    } else {
+                        push.state = "reloaded";
+                        push.output = reload.output();
+                    }
+                });
+            }
+            op.lap("reload");
+        }
+        report(pushes, desired, result);
+    }
+
+    private static void report(List<Push> pushes, Desired desired, Map<String, Object> result) {
+        List<Map<String, Object>> reports = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (Push push : pushes) {
+            reports.add(push.report());
+            if (push.state.equals("failed")) {
+                failed.add(push.node.name());
+            }
+        }
+        result.put("sites", desired.files().size());
+        result.put("nodes", reports);
+        if (!failed.isEmpty()) {
+            result.put("ok", false);
+            result.put("error", failed.size() + " of " + pushes.size() + " nodes failed");
+            result.put("failed", failed);
+        }
+    }
+
+    private static List<Push> inState(List<Push> pushes, String state) {
+        return pushes.stream().filter(push -> push.state.equals(state)).toList();
+    }
+
+    /** Runs step for every push concurrently and waits for all; a failure is recorded on its push */
+    private static void forEach(ExecutorService executor, List<Push> pushes, Step step) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Push push : pushes) {
+            futures.add(executor.submit(() -> {
+                try {
+                    step.run(push);
+                } catch (IOException | RuntimeException e) {
+                    push.fail(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage(), null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    push.fail("Interrupted", null);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // step failures are caught inside the task
+            }
+        }
+    }
+
+    // ---- render ----
+
+    /** Per-file layout for every node, see the class comment */
+    private static Desired render(ConfigJournal store, Settings settings) throws IOException {
+        List<Map<String, String>> sites = new ArrayList<>(store.size());
+        store.forEach(row -> sites.add(row.toMap()));
+
+        Map<String, byte[]> files = new TreeMap<>();
+        Map<String, String> links = new TreeMap<>();
+        List<Map.Entry<String, byte[]>> rendered;
+        try {
+            rendered = sites.parallelStream().map(site -> {
+                try {
+                    return Map.entry(fileName(site), content(site));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        for (int i = 0; i < sites.size(); i++) {
+            String name = rendered.get(i).getKey();
+            files.put("sites-available/" + name, rendered.get(i).getValue());
+            if (!"inactive".equals(sites.get(i).get("status"))) {
+                links.put("sites-enabled/" + name, "../sites-available/" + name);
+            }
+        }
+        return new Desired(files, links, SharedConfig.zones(store, Map.of()), SharedConfig.limits(store, Map.of()),
+                settings.get("status.listen", LiveMonitor.DEFAULT_STATUS_LISTEN),
+                SharedConfig.hashTuning(SharedConfig.domains(store, Map.of()), false));
+    }
+
+    private static String fileName(Map<String, String> site) {
+        String path = site.get("path");
+        return path != null ? Paths.get(path).getFileName().toString() : site.get("domain");
+    }
+
+    private static byte[] content(Map<String, String> site) throws IOException {
+        SiteTemplate.Rendered rendered = Templates.render(site);
+        String hash = site.get("hash");
+        // An imported file that no template reproduces is pushed as this host has it
+        if (hash != null && !hash.equals(rendered.hash()) && site.get("path") != null) {
+            Path local = Paths.get(site.get("path"));
+            if (Files.isRegularFile(local)) {
+                byte[] bytes = Files.readAllBytes(local);
+                if (SiteTemplate.sha256Hex(bytes).equals(hash)) {
+                    return bytes;
+                }
+            }
+        }
+        return rendered.content().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ---- per node ----
+
+    private static void write(Push push, Desired desired, boolean dryRun) throws IOException {
+        Path root = push.node.root();
+        if (!Files.isDirectory(root)) {
+            throw new IOException("No such directory: " + root);
+        }
+        // A value the node's own nginx.conf sets must not be set twice
+        Set<String> preset = SharedConfig.presetIn(root.resolve("nginx.conf"));
+        List<String> tuning = new ArrayList<>(desired.tuning());
+        tuning.removeIf(line -> preset.contains(line.substring(0, line.indexOf(' '))));
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(SHARED, SharedConfig.render(desired.zones(), desired.limits(), desired.statusListen(), tuning)
+                .getBytes(StandardCharsets.UTF_8));
+        files.putAll(desired.files());
+
+        Set<String> managed = new TreeSet<>(files.keySet());
+        managed.addAll(desired.links().keySet());
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            if (writeFile(push, root.resolve(e.getKey()), e.getValue(), dryRun)) {
+                push.written++;
+            }
+        }
+        for (Map.Entry<String, String> e : desired.links().entrySet()) {
+            Path link = root.resolve(e.getKey());
+            Path target = Paths.get(e.getValue());
+            Path current = Files.isSymbolicLink(link) ? Files.readSymbolicLink(link) : null;
+            if (target.equals(current)) {
+                continue;
+            }
+            push.linked++;
+            if (!dryRun) {
+                remember(push, link);
+                Files.createDirectories(link.getParent());
+                Files.deleteIfExists(link);
+                Files.createSymbolicLink(link, target);
+            }
+        }
+
+        // Whatever an earlier push placed that is not wanted any more
+        Path manifest = root.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            for (String name : Files.readAllLines(manifest)) {
+                Path path = root.resolve(name).normalize();
+                if (name.isBlank() || managed.contains(name) || !path.startsWith(root.normalize())
+                        || !Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    continue;
+                }
+                push.removed++;
+                if (!dryRun) {
+                    remember(push, path);
+                    Files.delete(path);
+                }
+            }
+        }
+        if (push.changed()) {
+            writeFile(push, manifest, (String.join("\n", managed) + "\n").getBytes(StandardCharsets.UTF_8), dryRun);
+        }
+    }
+
+    /** Replaces file unless it already holds content; returns whether it differed */
+    private static boolean writeFile(Push push, Path file, byte[] content, boolean dryRun) throws IOException {
+        if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)
+                && Files.size(file) == content.length && Arrays.equals(Files.readAllBytes(file), content)) {
+            return false;
+        }
+        if (!dryRun) {
+            remember(push, file);
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling("." + file.getFileName() + ".tmp");
+            Files.write(tmp, content);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return true;
+    }
+
+    /** Records what is at path before its first change, for revert() */
+    private static void remember(Push push, Path path) throws IOException {
+        if (push.files.containsKey(path) || push.links.containsKey(path)) {
+            return;
+        }
+        if (Files.isSymbolicLink(path)) {
+            push.links.put(path, Files.readSymbolicLink(path));
+        } else if (Files.isRegularFile(path)) {
+            push.files.put(path, Files.readAllBytes(path));
+        } else {
+            push.files.put(path, null);
+        }
+    }
+
+    private static Command run(String command, Node node, long timeoutSeconds)
+            throws IOException, InterruptedException {
+        String line = command.replace("{root}", node.root().toString());
+        Process process = new ProcessBuilder("sh", "-c", line).redirectErrorStream(true).start();
+        // Read on its own thread so a command that hangs with its output open cannot outlive the timeout
+        CompletableFuture<String> output = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                output.complete(new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).strip());
+            } catch (IOException e) {
+                output.complete("");
+            }
+        });
+        if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+            return new Command(-1, "Timed out after " + timeoutSeconds + " s: " + line);
+        }
+        try {
+            return new Command(process.exitValue(), output.get(timeoutSeconds, TimeUnit.SECONDS));
+        } catch (ExecutionException | TimeoutException e) {
+            return new Command(process.exitValue(), "");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Backend reachability checks with a rolling per-site history.
+ *
+ * Each distinct backend address gets its own virtual thread doing a TCP
+ * connect and, when probe.http_path is set, a GET of that path; a round
+ * therefore takes about one timeout however many backends there are.
+ * A site is up when any of its backends answered. The last HISTORY results
+ * per site are kept in nginx_data/health so they survive restarts and can be
+ * built up by running "java FastNginx probe" from cron.
+ *
+ * Settings: probe.connect_ms (1000), probe.read_ms (2000), probe.http_path,
+ * probe.dead_after (3 failed rounds), probe.auto_deactivate (false).
+ */
+public final class HealthProbe {
+
+    static final String FILE_NAME = "health";
+    static final int HISTORY = 8;
+
+    /** Health of one site: history of rounds, oldest first, '+' up and '-' down */
+    record State(String history, long checkedAt, String detail) {
+
+        boolean lastUp() {
+            return !history.isEmpty() && history.charAt(history.length() - 1) == '+';
+        }
+
+        /** Failed the last n rounds in a row */
+        boolean dead(int n) {
+            if (history.length() < n) {
+                return false;
+            }
+            return history.substring(history.length() - n).chars().allMatch(c -> c == '-');
+        }
+
+        State next(boolean up, long now, String detail) {
+            String h = history + (up ? '+' : '-');
+            return new State(h.length() > HISTORY ? h.substring(h.length() - HISTORY) : h, now, detail);
+        }
+
+        /** Colored marker for the manage list */
+        String marker() {
+            if (history.isEmpty()) {
+                return FastNginx.DIM_GREEN + "○";
+            }
+            if (!lastUp()) {
+                return FastNginx.RED + "✗";
+            }
+            return history.indexOf('-') >= 0 ? FastNginx.YELLOW + "◆" : FastNginx.BRIGHT_GREEN + "◆";
+        }
+    }
+
+    /** Outcome of one backend probe */
+    record Result(String backend, boolean up, long nanos, String detail) {
+    }
+
+    /** Outcome of a full round */
+    record Round(Map<String, Result> backends, Map<String, State> states, List<String> dead, long nanos) {
+    }
+
+    private HealthProbe() {
+    }
+
+    static Path file(Path dataDir) {
+        return dataDir.resolve(FILE_NAME);
+    }
+
+    static Map<String, State> load(Path dataDir) throws IOException {
+        Map<String, State> states = new HashMap<>();
+        Path file = file(dataDir);
+        if (!Files.exists(file)) {
+            return states;
+        }
+        for (String line : Files.readAllLines(file)) {
+            String[] f = line.split("\t", 4);
+            if (f.length == 4 && f[1].matches("[+-]*") && f[2].matches("\\d+")) {
+                states.put(f[0], new State(f[1], Long.parseLong(f[2]), f[3]));
+            }
+        }
+        return states;
+    }
+
+    static void save(Path dataDir, Map<String, State> states) throws IOException {
+        StringBuilder out = new StringBuilder(states.size() * 48);
+        new TreeMap<>(states).forEach((domain, s) -> out.append(domain).append('\t').append(s.history())
+                .append('\t').append(s.checkedAt()).append('\t').append(s.detail()).append('\n'));
+        Path file = file(dataDir);
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        Files.writeString(tmp, out);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Probes every backend of every active proxied site and folds the results into the stored history */
+    static Round run(ConfigJournal store, Path dataDir, Settings settings) throws IOException {
+        int connectMs = (int) settings.getLong("probe.connect_ms", 1000);
+        int readMs = (int) settings.getLong("probe.read_ms", 2000);
+        String httpPath = settings.get("probe.http_path", "");
+        int deadAfter = (int) settings.getLong("probe.dead_after", 3);
+
+        Map<String, List<String>> siteBackends = new LinkedHashMap<>();
+        Map<String, String> hostHeader = new HashMap<>();
+        store.forEach(row -> {
+            if (row.status().equals("active") && !"static".equals(row.get("type"))) {
+                List<String> backends = Upstream.backends(row.toMap());
+                if (!backends.isEmpty()) {
+                    siteBackends.put(row.domain(), backends);
+                    backends.forEach(b -> hostHeader.putIfAbsent(b, row.domain()));
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        Map<String, Result> results = new ConcurrentHashMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String backend : hostHeader.keySet()) {
+                executor.submit(() -> results.put(backend,
+                        probe(backend, hostHeader.get(backend), httpPath, connectMs, readMs)));
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        Map<String, State> states = load(dataDir);
+        states.keySet().retainAll(siteBackends.keySet());
+        long now = System.currentTimeMillis();
+        List<String> dead = new ArrayList<>();
+        siteBackends.forEach((domain, backends) -> {
+            boolean up = false;
+            StringBuilder detail = new StringBuilder();
+            for (String backend : backends) {
+                Result r = results.get(backend);
+                up |= r.up();
+                if (detail.length() > 0) {
+                    detail.append(", ");
+                }
+                detail.append(backend).append(' ').append(r.detail());
+            }
+            State state = states.getOrDefault(domain, new State("", 0, "")).next(up, now, detail.toString());
+            states.put(domain, state);
+            if (state.dead(deadAfter)) {
+                dead.add(domain);
+            }
+        });
+        save(dataDir, states);
+        return new Round(results, states, dead, nanos);
+    }
+
+    static Result probe(String backend, String host, String httpPath, int connectMs, int readMs) {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+            int colon = backend.lastIndexOf(':');
+            String address = backend.substring(0, colon);
+            int port = Integer.parseInt(backend.substring(colon + 1));
+            socket.connect(new InetSocketAddress(address, port), connectMs);
+            if (httpPath.isEmpty()) {
+                return new Result(backend, true, System.nanoTime() - start, "tcp ok");
+            }
+
+            socket.setSoTimeout(readMs);
+            String request = "GET " + httpPath + " HTTP/1.1\r\nHost: " + host
+                    + "\r\nUser-Agent: FastNginx-probe\r\nConnection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            String statusLine = in.readLine();
+            String[] parts = statusLine == null ? new String[0] : statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[1].matches("\\d{3}")) {
+                return new Result(backend, false, System.nanoTime() - start, "bad http response");
+            }
+            int status = Integer.parseInt(parts[1]);
+            return new Result(backend, status < 500, System.nanoTime() - start, "http " + status);
+        } catch (IOException e) {
+            String reason = e instanceof java.net.SocketTimeoutException ? "timeout"
+                    : e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+            return new Result(backend, false, System.nanoTime() - start, reason);
+        } catch (RuntimeException e) {
+            // A malformed record (bad port, no host) counts as down instead of aborting the round
+            return new Result(backend, false, System.nanoTime() - start, "invalid backend: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * FastNginx-owned section of /etc/hosts.
+ *
+ * Entries live between the BEGIN/END markers and are held in memory as a
+ * domain -> IP index, so any number of adds, removals and renames cost one
+ * read and one write of the file. Lines outside the section are preserved
+ * untouched. Legacy "# Added by FastNginx" lines written by older builds are
+ * adopted into the section on first load.
+ *
+ * The file is replaced atomically through a temp file in the same directory,
+ * by the privileged helper when one is running.
+ */
+public class HostsFile {
+
+    static final Path DEFAULT_PATH = Paths.get("/etc/hosts");
+
+    private static final String BEGIN = "# BEGIN FastNginx managed hosts - do not edit inside this block";
+    private static final String END = "# END FastNginx managed hosts";
+    private static final String LEGACY_MARKER = "# Added by FastNginx";
+
+    private final Path path;
+    private final List<String> before = new ArrayList<>();
+    private final List<String> after = new ArrayList<>();
+    private final Map<String, String> managed = new LinkedHashMap<>();
+    private boolean dirty;
+
+    private HostsFile(Path path) {
+        this.path = path;
+    }
+
+    public static HostsFile load() throws IOException {
+        return load(DEFAULT_PATH);
+    }
+
+    public static HostsFile load(Path path) throws IOException {
+        HostsFile hosts = new HostsFile(path);
+        List<String> lines = Files.exists(path) ? Files.readAllLines(path) : List.of();
+
+        int state = 0; // 0 = before block, 1 = inside, 2 = after
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (state == 0 && trimmed.equals(BEGIN)) {
+                state = 1;
+            } else if (state == 1 && trimmed.equals(END)) {
+                state = 2;
+            } else if (state == 1) {
+                hosts.parseEntry(trimmed);
+            } else if (trimmed.endsWith(LEGACY_MARKER)) {
+                hosts.parseEntry(trimmed.substring(0, trimmed.length() - LEGACY_MARKER.length()).trim());
+                hosts.dirty = true;
+            } else {
+                (state == 0 ? hosts.before : hosts.after).add(line);
+            }
+        }
+        if (state == 1) {
+            throw new IOException("Unterminated FastNginx block in " + path);
+        }
+        return hosts;
+    }
+
+    private void parseEntry(String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return;
+        }
+        String[] fields = line.split("\\s+");
+        for (int i = 1; i < fields.length && !fields[i].startsWith("#"); i++) {
+            managed.put(fields[i], fields[0]);
+        }
+    }
+
+    public String get(String domain) {
+        return managed.get(domain);
+    }
+
+    public Map<String, String> entries() {
+        return Collections.unmodifiableMap(managed);
+    }
+
+    public void put(String domain, String ip) {
+        if (!ip.equals(managed.put(domain, ip))) {
+            dirty = true;
+        }
+    }
+
+    public boolean remove(String domain) {
+        if (managed.remove(domain) != null) {
+            dirty = true;
+            return true;
+        }
+        return false;
+    }
+
+    /** Moves an entry to a new domain and IP, adding it if it was not managed */
+    public void rename(String oldDomain, String newDomain, String ip) {
+        if (!oldDomain.equals(newDomain)) {
+            remove(oldDomain);
+        }
+        put(newDomain, ip);
+    }
+
+    /** Writes the file if anything changed; returns whether it was written */
+    public boolean save() throws IOException {
+        if (!dirty) {
+            return false;
+        }
+
+        List<String> lines = new ArrayList<>(before.size() + managed.size() + after.size() + 2);
+        lines.addAll(before);
+        if (!managed.isEmpty()) {
+            lines.add(BEGIN);
+            managed.forEach((domain, ip) -> lines.add(ip + "\t" + domain));
+            lines.add(END);
+        }
+        lines.addAll(after);
+
+        StringBuilder content = new StringBuilder();
+        lines.forEach(line -> content.append(line).append(System.lineSeparator()));
+        PrivilegedHelper.write(path, content.toString());
+        dirty = false;
+        return true;
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Live traffic view: nginx's stub_status for connections, plus every site's
+ * access log tailed from where it ended when the monitor started.
+ *
+ * All logs are read on one thread through a single shared buffer; each pass
+ * consumes whole lines only and leaves a partial last line for the next
+ * pass, so memory stays fixed no matter how many sites or how fast they log.
+ * A tailer notices rotation (new inode at the path) or truncation, finishes
+ * the old file and continues at the start of the new one.
+ */
+public final class LiveMonitor {
+
+    static final String DEFAULT_STATUS_LISTEN = "127.0.0.1:18081";
+    static final String STATUS_PATH = "/fastnginx_status";
+
+    /** Seconds of per-site history kept for the averaged request rate */
+    private static final int WINDOW = 10;
+    private static final int MAX_ROWS = 20;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    record StubStatus(long active, long accepts, long handled, long requests,
+                      long reading, long writing, long waiting) {
+    }
+
+    /** Counters of one site: fixed size regardless of traffic */
+    static final class SiteStats {
+        final String domain;
+        final long[] statusClasses = new long[6];
+        final long[] perSecond = new long[WINDOW];
+        long total;
+        long current;
+
+        SiteStats(String domain) {
+            this.domain = domain;
+        }
+
+        void record(int status) {
+            total++;
+            current++;
+            int cls = status / 100;
+            statusClasses[cls >= 1 && cls <= 5 ? cls : 0]++;
+        }
+
+        /** Closes the current one-second slot */
+        void tick(int slot) {
+            perSecond[slot] = current;
+            current = 0;
+        }
+
+        long lastSecond(int slot) {
+            return perSecond[slot];
+        }
+
+        double average() {
+            long sum = 0;
+            for (long n : perSecond) {
+                sum += n;
+            }
+            return sum / (double) WINDOW;
+        }
+    }
+
+    /** Incremental reader of one log file */
+    static final class Tailer {
+        final Path path;
+        final SiteStats stats;
+        FileChannel channel;
+        Object fileKey;
+
+        Tailer(Path path, SiteStats stats) {
+            this.path = path;
+            this.stats = stats;
+        }
+
+        /** Opens the file positioned at its end; false when it does not exist yet */
+        boolean open(boolean fromEnd) throws IOException {
+            if (!Files.exists(path)) {
+                return false;
+            }
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            if (fromEnd) {
+                channel.position(channel.size());
+            }
+            return true;
+        }
+
+        /** Reads every complete line available now; returns the number of lines */
+        long poll(ByteBuffer buffer) throws IOException {
+            if (channel == null) {
+                return open(false) ? poll(buffer) : 0;
+            }
+            long lines = drain(buffer);
+
+            // Rotated (renamed away and recreated) or truncated in place
+            if (Files.exists(path)) {
+                Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+                if (key != null && !key.equals(fileKey)) {
+                    channel.close();
+                    open(false);
+                    lines += drain(buffer);
+                } else if (channel.size() < channel.position()) {
+                    channel.position(0);
+                    lines += drain(buffer);
+                }
+            }
+            return lines;
+        }
+
+        private long drain(ByteBuffer buffer) throws IOException {
+            byte[] buf = buffer.array();
+            long lines = 0;
+            while (true) {
+                buffer.clear();
+                long start = channel.position();
+                int read = channel.read(buffer);
+                if (read <= 0) {
+                    return lines;
+                }
+                int pos = 0;
+                int eol;
+                while ((eol = AccessLog.nextLine(buf, pos, read)) >= 0) {
+                    stats.record(AccessLog.status(buf, pos, eol));
+                    lines++;
+                    pos = eol + 1;
+                }
+                if (pos == 0 && read == buf.length) {
+                    // A single line longer than the buffer: skip it rather than grow
+                    continue;
+                }
+                // Leave the partial last line to be read again once it is complete
+                channel.position(start + pos);
+                if (read < buf.length) {
+                    return lines;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // Closing a read-only channel; nothing to recover
+            }
+        }
+    }
+
+    private LiveMonitor() {
+    }
+
+    static String statusUrl() {
+        String listen = DEFAULT_STATUS_LISTEN;
+        try {
+            listen = Settings.load().get("status.listen", DEFAULT_STATUS_LISTEN);
+        } catch (IOException e) {
+            // Fall back to the default listener
+        }
+        return "http://" + listen + STATUS_PATH;
+    }
+
+    static StubStatus parse(String body) {
+        long[] n = new long[7];
+        int i = 0;
+        for (String token : body.split("\\s+")) {
+            if (i < n.length && token.matches("\\d+")) {
+                n[i++] = Long.parseLong(token);
+            }
+        }
+        return new StubStatus(n[0], n[1], n[2], n[3], n[4], n[5], n[6]);
+    }
+
+    static StubStatus poll(HttpClient client, URI uri) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofMillis(500)).build();
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            return response.statusCode() == 200 ? parse(response.body()) : null;
+        } catch (IOException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /** Refreshes once a second until a line is entered on stdin */
+    public static void run(List<String> domains) throws IOException {
+        List<Tailer> tailers = new ArrayList<>(domains.size());
+        for (String domain : domains) {
+            Tailer tailer = new Tailer(AccessLog.path(domain), new SiteStats(domain));
+            tailer.open(true);
+            tailers.add(tailer);
+        }
+
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(500)).build();
+        URI uri = URI.create(statusUrl());
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        StubStatus previous = null;
+        int slot = 0;
+
+        System.out.print("\033[H\033[2J");
+        try {
+            while (System.in.available() == 0) {
+                long tickStart = System.nanoTime();
+                long lines = 0;
+                for (Tailer tailer : tailers) {
+                    try {
+                        lines += tailer.poll(buffer);
+                    } catch (IOException e) {
+                        tailer.close();
+                        tailer.channel = null;
+                    }
+                    tailer.stats.tick(slot);
+                }
+                long parseNanos = System.nanoTime() - tickStart;
+
+                StubStatus status = poll(client, uri);
+                render(status, previous, tailers, slot, lines, parseNanos);
+                previous = status;
+                slot = (slot + 1) % WINDOW;
+
+                long sleep = 1000 - (System.nanoTime() - tickStart) / 1_000_000;
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            tailers.forEach(Tailer::close);
+        }
+    }
+
+    private static void render(StubStatus status, StubStatus previous, List<Tailer> tailers,
+                               int slot, long lines, long parseNanos) {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("\033[H");
+        line(out, FastNginx.BRIGHT_GREEN + "╔═══ LIVE TRAFFIC ═══╗" + FastNginx.RESET
+                + FastNginx.DIM_GREEN + "  press ENTER to return" + FastNginx.RESET);
+
+        if (status == null) {
+            line(out, FastNginx.YELLOW + "⚠ stub_status unreachable at " + statusUrl() + FastNginx.RESET);
+        } else {
+            long rps = previous == null ? 0 : status.requests() - previous.requests();
+            line(out, String.format(FastNginx.CYAN + "nginx" + FastNginx.RESET
+                            + "  active %d  reading %d  writing %d  waiting %d  total %d req/s",
+                    status.active(), status.reading(), status.writing(), status.waiting(), rps));
+        }
+        line(out, String.format(FastNginx.DIM_GREEN + "%d log lines parsed in %.1f ms" + FastNginx.RESET,
+                lines, parseNanos / 1_000_000.0));
+        line(out, "");
+        line(out, String.format(FastNginx.BRIGHT_CYAN + "%-32s %8s %8s %6s %6s %6s %6s" + FastNginx.RESET,
+                "DOMAIN", "REQ/S", "AVG/10s", "2xx", "3xx", "4xx", "5xx"));
+
+        List<SiteStats> rows = new ArrayList<>(tailers.size());
+        for (Tailer tailer : tailers) {
+            rows.add(tailer.stats);
+        }
+        rows.sort(Comparator.comparingLong((SiteStats s) -> s.lastSecond(slot)).reversed()
+                .thenComparing(Comparator.comparingLong((SiteStats s) -> s.total).reversed()));
+
+        for (SiteStats s : rows.subList(0, Math.min(MAX_ROWS, rows.size()))) {
+            String color = s.statusClasses[5] > 0 ? FastNginx.RED
+                    : s.statusClasses[4] > 0 ? FastNginx.YELLOW : FastNginx.GREEN;
+            line(out, String.format(color + "%-32s" + FastNginx.RESET + " %8d %8.1f %6s %6s %6s %6s",
+                    truncate(s.domain, 32), s.lastSecond(slot), s.average(),
+                    share(s, 2), share(s, 3), share(s, 4), share(s, 5)));
+        }
+        if (rows.size() > MAX_ROWS) {
+            line(out, FastNginx.DIM_GREEN + "… " + (rows.size() - MAX_ROWS) + " more site(s)" + FastNginx.RESET);
+        }
+        out.append("\033[J");
+        System.out.print(out);
+        System.out.flush();
+    }
+
+    private static void line(StringBuilder out, String text) {
+        out.append(text).append("\033[K\n");
+    }
+
+    private static String share(SiteStats s, int cls) {
+        if (s.total == 0) {
+            return "-";
+        }
+        return Math.round(100.0 * s.statusClasses[cls] / s.total) + "%";
+    }
+
+    private static String truncate(String s, int max) {
+        return s.length() <= max ? s : s.substring(0, max - 1) + "…";
+    }
+}
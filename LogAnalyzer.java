@@ -0,0 +1,512 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Offline latency report from access logs in the fastnginx log format:
+ * request_time and upstream_response_time percentiles per domain and per
+ * upstream address.
+ *
+ * Files are memory-mapped in fixed-size chunks. A chunk owns every line that
+ * starts inside it: it skips the partial first line (the previous chunk
+ * finishes it) and reads past its end to complete its last one. One worker
+ * per core takes chunks from a shared counter and aggregates into its own
+ * tables, merged once at the end. Lines are parsed straight from the mapped
+ * bytes; only the first sighting of a domain or upstream allocates.
+ */
+public final class LogAnalyzer {
+
+    private static final String USAGE = "Usage: java FastNginx analyze [log files...] [--threads N]";
+
+    private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+    /** Longest line a chunk will read past its end to complete */
+    private static final int MAX_LINE = 64 * 1024;
+
+    static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * Log-linear histogram of microsecond latencies: 64 sub-buckets per power
+     * of two (under 1.6% error), rows allocated only when a value lands there.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 6;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final long[][] rows = new long[64][];
+        long count;
+
+        void record(long micros) {
+            long v = Math.max(0, micros);
+            // Row 0 holds 0..63 exactly; row r holds [64 << (r - 1), 128 << (r - 1))
+            int row = v < SUB_COUNT ? 0 : 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+            int sub = row == 0 ? (int) v : (int) (v >>> (row - 1)) & (SUB_COUNT - 1);
+            long[] counts = rows[row];
+            if (counts == null) {
+                counts = rows[row] = new long[SUB_COUNT];
+            }
+            counts[sub]++;
+            count++;
+        }
+
+        void merge(Histogram other) {
+            for (int r = 0; r < rows.length; r++) {
+                if (other.rows[r] == null) {
+                    continue;
+                }
+                if (rows[r] == null) {
+                    rows[r] = new long[SUB_COUNT];
+                }
+                for (int i = 0; i < SUB_COUNT; i++) {
+                    rows[r][i] += other.rows[r][i];
+                }
+            }
+            count += other.count;
+        }
+
+        /** Upper edge of the bucket holding the given percentile, in microseconds */
+        long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * p / 100.0));
+            long seen = 0;
+            for (int r = 0; r < rows.length; r++) {
+                if (rows[r] == null) {
+                    continue;
+                }
+                for (int i = 0; i < SUB_COUNT; i++) {
+                    seen += rows[r][i];
+                    if (seen >= rank) {
+                        return r == 0 ? i : ((long) ((i | SUB_COUNT) + 1) << (r - 1)) - 1;
+                    }
+                }
+            }
+            return 0;
+        }
+    }
+
+    /** Aggregates of one domain or upstream */
+    static final class Stats {
+        final String key;
+        final Histogram request = new Histogram();
+        final Histogram upstream = new Histogram();
+        long requests;
+        long errors;
+
+        Stats(String key) {
+            this.key = key;
+        }
+
+        void merge(Stats other) {
+            request.merge(other.request);
+            upstream.merge(other.upstream);
+            requests += other.requests;
+            errors += other.errors;
+        }
+    }
+
+    /** Open-addressing map from raw key bytes to Stats; compares bytes, never builds a String to look up */
+    static final class KeyTable {
+        private byte[][] keys = new byte[64][];
+        private Stats[] values = new Stats[64];
+        private int size;
+
+        Stats get(MappedByteBuffer buf, int start, int end) {
+            int hash = 0x811C9DC5;
+            for (int i = start; i < end; i++) {
+                hash = (hash ^ buf.get(i)) * 0x01000193;
+            }
+            int mask = keys.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                byte[] key = keys[slot];
+                if (key == null) {
+                    byte[] copy = new byte[end - start];
+                    buf.get(start, copy);
+                    Stats stats = new Stats(new String(copy, StandardCharsets.UTF_8));
+                    keys[slot] = copy;
+                    values[slot] = stats;
+                    if (++size * 2 > keys.length) {
+                        grow();
+                    }
+                    return stats;
+                }
+                if (equals(key, buf, start, end)) {
+                    return values[slot];
+                }
+            }
+        }
+
+        private static boolean equals(byte[] key, MappedByteBuffer buf, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buf.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            Stats[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new Stats[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null) {
+                    continue;
+                }
+                int hash = 0x811C9DC5;
+                for (byte b : oldKeys[i]) {
+                    hash = (hash ^ b) * 0x01000193;
+                }
+                int slot = hash & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        void forEach(java.util.function.Consumer<Stats> action) {
+            for (Stats stats : values) {
+                if (stats != null) {
+                    action.accept(stats);
+                }
+            }
+        }
+    }
+
+    /** Per-worker aggregation state */
+    static final class Worker {
+        final KeyTable domains = new KeyTable();
+        final KeyTable upstreams = new KeyTable();
+        long lines;
+        long unparsed;
+
+        /**
+         * Parses every line starting in [from, to). A line running past the
+         * mapped region is complete only when the region ends at end of file.
+         */
+        void parse(MappedByteBuffer buf, int from, int to, boolean atFileEnd) {
+            int limit = buf.limit();
+            int pos = from;
+            while (pos < to) {
+                int eol = pos;
+                while (eol < limit && buf.get(eol) != '\n') {
+                    eol++;
+                }
+                if (eol == limit && !atFileEnd) {
+                    // Longer than MAX_LINE
+                    unparsed++;
+                    return;
+                }
+                if (eol > pos) {
+                    line(buf, pos, eol);
+                }
+                pos = eol + 1;
+            }
+        }
+
+        private void line(MappedByteBuffer buf, int start, int end) {
+            lines++;
+            // "$request" $status $bytes "$referer" "$ua" rt=.. urt=".." ua=".." host=..
+            int q1 = indexOf(buf, '"', start, end);
+            int q2 = q1 < 0 ? -1 : indexOf(buf, '"', q1 + 1, end);
+            if (q2 < 0 || q2 + 5 > end) {
+                unparsed++;
+                return;
+            }
+            int status = (buf.get(q2 + 2) - '0') * 100 + (buf.get(q2 + 3) - '0') * 10 + (buf.get(q2 + 4) - '0');
+            int q3 = indexOf(buf, '"', q2 + 5, end);
+            int q4 = q3 < 0 ? -1 : indexOf(buf, '"', q3 + 1, end);
+            int q5 = q4 < 0 ? -1 : indexOf(buf, '"', q4 + 1, end);
+            int q6 = q5 < 0 ? -1 : indexOf(buf, '"', q5 + 1, end);
+            if (q6 < 0 || !startsWith(buf, q6 + 1, end, " rt=")) {
+                unparsed++;
+                return;
+            }
+
+            int p = q6 + 5;
+            int rtEnd = indexOf(buf, ' ', p, end);
+            if (rtEnd < 0) {
+                unparsed++;
+                return;
+            }
+            long requestMicros = seconds(buf, p, rtEnd);
+
+            p = rtEnd + 1;
+            if (!startsWith(buf, p, end, "urt=\"")) {
+                unparsed++;
+                return;
+            }
+            int urtEnd = indexOf(buf, '"', p + 5, end);
+            if (urtEnd < 0) {
+                unparsed++;
+                return;
+            }
+            long upstreamMicros = sumSeconds(buf, p + 5, urtEnd);
+
+            p = urtEnd + 2;
+            int uaStart = p + 4;
+            int uaEnd = startsWith(buf, p, end, "ua=\"") ? indexOf(buf, '"', uaStart, end) : -1;
+            if (uaEnd < 0 || !startsWith(buf, uaEnd + 1, end, " host=")) {
+                unparsed++;
+                return;
+            }
+            int hostStart = uaEnd + 7;
+
+            Stats domain = domains.get(buf, hostStart, end);
+            domain.requests++;
+            domain.request.record(requestMicros);
+            if (status >= 500 && status <= 599) {
+                domain.errors++;
+            }
+            if (upstreamMicros >= 0) {
+                domain.upstream.record(upstreamMicros);
+
+                // With retries upstream_addr lists every try; the last one answered
+                int last = uaStart;
+                for (int i = uaEnd - 1; i > uaStart; i--) {
+                    if (buf.get(i) == ' ') {
+                        last = i + 1;
+                        break;
+                    }
+                }
+                Stats upstream = upstreams.get(buf, last, uaEnd);
+                upstream.requests++;
+                upstream.upstream.record(upstreamMicros);
+                if (status >= 500 && status <= 599) {
+                    upstream.errors++;
+                }
+            }
+        }
+    }
+
+    private LogAnalyzer() {
+    }
+
+    static int indexOf(MappedByteBuffer buf, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean startsWith(MappedByteBuffer buf, int at, int end, String prefix) {
+        if (at < 0 || at + prefix.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf.get(at + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** nginx seconds with millisecond resolution ("0.123") to microseconds; -1 for "-" */
+    static long seconds(MappedByteBuffer buf, int start, int end) {
+        long whole = 0;
+        long frac = 0;
+        int fracDigits = -1;
+        boolean any = false;
+        for (int i = start; i < end; i++) {
+            byte b = buf.get(i);
+            if (b == '.') {
+                fracDigits = 0;
+            } else if (b >= '0' && b <= '9') {
+                any = true;
+                if (fracDigits < 0) {
+                    whole = whole * 10 + (b - '0');
+                } else if (fracDigits < 6) {
+                    frac = frac * 10 + (b - '0');
+                    fracDigits++;
+                }
+            }
+        }
+        if (!any) {
+            return -1;
+        }
+        for (int d = Math.max(fracDigits, 0); d < 6; d++) {
+            frac *= 10;
+        }
+        return whole * 1_000_000 + frac;
+    }
+
+    /** Sum of "0.002, 0.010 : 0.004" style lists (retries and internal redirects) */
+    static long sumSeconds(MappedByteBuffer buf, int start, int end) {
+        long total = -1;
+        int from = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || buf.get(i) == ',' || buf.get(i) == ':') {
+                long v = seconds(buf, from, i);
+                if (v >= 0) {
+                    total = Math.max(total, 0) + v;
+                }
+                from = i + 1;
+            }
+        }
+        return total;
+    }
+
+    record Chunk(Path file, long start, long end, long size) {
+    }
+
+    public static int run(String[] args) {
+        List<Path> files = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].startsWith("--")) {
+                System.err.println(USAGE);
+                return 2;
+            } else {
+                files.add(Paths.get(args[i]));
+            }
+        }
+
+        try {
+            if (files.isEmpty()) {
+                try (Stream<Path> logs = Files.list(AccessLog.dir())) {
+                    logs.filter(p -> p.getFileName().toString().matches("fastnginx-.*\\.access\\.log(\\.\\d+)?"))
+                            .sorted()
+                            .forEach(files::add);
+                }
+            }
+            if (files.isEmpty()) {
+                FastNginx.printStatus("No FastNginx access logs found in " + AccessLog.dir(), "warning");
+                return 1;
+            }
+            analyze(files, threads);
+            return 0;
+        } catch (IOException e) {
+            FastNginx.printStatus("Analyze failed: " + e.getMessage(), "error");
+            return 1;
+        }
+    }
+
+    static void analyze(List<Path> files, int threads) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        long totalBytes = 0;
+        for (Path file : files) {
+            long size = Files.size(file);
+            totalBytes += size;
+            for (long start = 0; start < size; start += CHUNK_SIZE) {
+                chunks.add(new Chunk(file, start, Math.min(size, start + CHUNK_SIZE), size));
+            }
+        }
+
+        long started = System.nanoTime();
+        AtomicInteger next = new AtomicInteger();
+        List<Worker> workers = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Worker worker = new Worker();
+                workers.add(worker);
+                futures.add(pool.submit(() -> {
+                    int i;
+                    while ((i = next.getAndIncrement()) < chunks.size()) {
+                        process(chunks.get(i), worker);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        long nanos = System.nanoTime() - started;
+
+        Map<String, Stats> domains = new TreeMap<>();
+        Map<String, Stats> upstreams = new TreeMap<>();
+        long lines = 0;
+        long unparsed = 0;
+        for (Worker worker : workers) {
+            worker.domains.forEach(s -> domains.computeIfAbsent(s.key, Stats::new).merge(s));
+            worker.upstreams.forEach(s -> upstreams.computeIfAbsent(s.key, Stats::new).merge(s));
+            lines += worker.lines;
+            unparsed += worker.unparsed;
+        }
+
+        report("DOMAIN", domains.values(), true);
+        report("UPSTREAM", upstreams.values(), false);
+
+        double seconds = nanos / 1_000_000_000.0;
+        FastNginx.printStatus(String.format(
+                "%d file(s), %.2f GB, %d lines in %.2fs (%.0f MB/s, %.1fM lines/s, %d threads)",
+                files.size(), totalBytes / 1e9, lines, seconds, totalBytes / 1e6 / seconds,
+                lines / 1e6 / seconds, threads), "info");
+        if (unparsed > 0) {
+            FastNginx.printStatus(unparsed + " line(s) not in the fastnginx log format were skipped", "warning");
+        }
+    }
+
+    private static void process(Chunk chunk, Worker worker) throws IOException {
+        long mapEnd = Math.min(chunk.size(), chunk.end() + MAX_LINE);
+        // Start one byte early so a chunk beginning right after '\n' keeps its first line
+        long mapStart = chunk.start() == 0 ? 0 : chunk.start() - 1;
+        try (FileChannel channel = FileChannel.open(chunk.file(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+            int from = 0;
+            if (chunk.start() != 0) {
+                while (from < buf.limit() && buf.get(from) != '\n') {
+                    from++;
+                }
+                from++;
+            }
+            int to = (int) (chunk.end() - mapStart);
+            if (from < to) {
+                worker.parse(buf, from, to, mapEnd == chunk.size());
+            }
+        }
+    }
+
+    private static void report(String title, Collection<Stats> rows, boolean withRequest) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        System.out.println(FastNginx.BRIGHT_GREEN + "\n╔═══ " + title + " LATENCY (ms) ═══╗" + FastNginx.RESET);
+        System.out.println(String.format(FastNginx.BRIGHT_CYAN + "%-32s %10s %6s %9s %9s %9s %9s" + FastNginx.RESET,
+                title, "REQUESTS", "5xx", "p50", "p90", "p99", "p99.9"));
+        for (Stats s : rows) {
+            Histogram h = withRequest ? s.request : s.upstream;
+            StringBuilder line = new StringBuilder(String.format(FastNginx.GREEN + "%-32s" + FastNginx.RESET
+                    + " %10d %5.1f%%", s.key.length() > 32 ? s.key.substring(0, 31) + "…" : s.key,
+                    s.requests, s.requests == 0 ? 0.0 : 100.0 * s.errors / s.requests));
+            for (double p : PERCENTILES) {
+                line.append(String.format(" %9.1f", h.percentile(p) / 1000.0));
+            }
+            System.out.println(line);
+            if (withRequest && s.upstream.count > 0) {
+                StringBuilder up = new StringBuilder(String.format(FastNginx.DIM_GREEN + "%-32s %10d %6s",
+                        "  └ upstream", s.upstream.count, ""));
+                for (double p : PERCENTILES) {
+                    up.append(String.format(" %9.1f", s.upstream.percentile(p) / 1000.0));
+                }
+                System.out.println(up.append(FastNginx.RESET));
+            }
+        }
+    }
+}
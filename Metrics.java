@@ -0,0 +1,391 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Operation timings and counters for node_exporter's textfile collector.
+ *
+ * Deploy, edit, toggle, delete, import and reconcile are timed per phase
+ * with Operation.lap, and every nginx reload cycle records its "nginx -t"
+ * and reload times and how long the previous workers took to drain.
+ *
+ * Values accumulate in memory and are merged into the textfile every few
+ * seconds and at exit. Every series is a counter or a histogram bucket
+ * (the one gauge, a timestamp, keeps the maximum), so short CLI runs, the
+ * menu and the daemon can all feed the same file: the merge runs under a
+ * lock file and the result replaces the textfile atomically, so a scrape
+ * never sees a half-written file.
+ *
+ * Settings in .fastnginx_config:
+ *   metrics.textfile=/var/lib/node_exporter/textfile_collector/fastnginx.prom
+ *                              (default nginx_data/fastnginx.prom, "off" disables metrics)
+ *   metrics.drain_timeout_ms=600000  stop waiting for old workers after this long
+ *   metrics.exit_wait_ms=0           how long an exiting run waits for a drain still in progress
+ *
+ * Drains take as long as the slowest client connection, so they are only
+ * measured by the menu and the daemon, which outlive them. A one-shot
+ * command measures them too when metrics.exit_wait_ms is raised.
+ */
+final class Metrics {
+
+    /** Histogram bucket bounds in seconds, wide enough for worker drains */
+    static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    static final long FLUSH_INTERVAL_MS = 5000;
+
+    private record Family(String name, String type, String help) {
+    }
+
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>();
+
+    static {
+        family("fastnginx_operations_total", "counter", "Finished operations by result");
+        family("fastnginx_operation_duration_seconds", "histogram", "Operation time, prompts excluded");
+        family("fastnginx_phase_duration_seconds", "histogram", "Time spent in each phase of an operation");
+        family("fastnginx_reloads_total", "counter", "nginx -t and reload cycles by result");
+        family("fastnginx_reload_requests_total", "counter", "Reload requests; several may share one cycle");
+        family("fastnginx_reload_drain_seconds", "histogram", "Time from reload until the previous workers exited");
+        family("fastnginx_reload_drain_timeouts_total", "counter",
+                "Reloads whose previous workers outlived metrics.drain_timeout_ms");
+        family("fastnginx_last_reload_timestamp_seconds", "gauge", "Unix time of the last successful reload");
+    }
+
+    // family -> labels -> value: [0] for counters and gauges; cumulative buckets, sum, count for histograms
+    private static Map<String, Map<String, double[]>> pending = new LinkedHashMap<>();
+    private static final Object FLUSH_LOCK = new Object();
+    private static final Set<Thread> background = ConcurrentHashMap.newKeySet();
+
+    private static boolean initialized;
+    private static Path target;
+    private static long exitWaitMs;
+    private static volatile boolean longRunning;
+    private static boolean warned;
+
+    private Metrics() {
+    }
+
+    private static void family(String name, String type, String help) {
+        FAMILIES.put(name, new Family(name, type, help));
+    }
+
+    /** A timed operation; phases are laps as in Reconciler's timer */
+    static final class Operation implements AutoCloseable {
+        private final String name;
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+        private long last = System.nanoTime();
+        private boolean ok;
+
+        private Operation(String name) {
+            this.name = name;
+        }
+
+        /** Records the time since the previous lap or skip as the given phase */
+        void lap(String phase) {
+            long now = System.nanoTime();
+            phases.merge(phase, now - last, Long::sum);
+            last = now;
+        }
+
+        /** Leaves the time since the previous lap out, e.g. a prompt */
+        void skip() {
+            last = System.nanoTime();
+        }
+
+        void succeeded() {
+            ok = true;
+        }
+
+        /** An operation that ends before its first lap (input rejected) is not recorded */
+        @Override
+        public void close() {
+            if (phases.isEmpty() || !enabled()) {
+                return;
+            }
+            long total = 0;
+            for (Map.Entry<String, Long> e : phases.entrySet()) {
+                observe("fastnginx_phase_duration_seconds", labels("operation", name, "phase", e.getKey()), e.getValue());
+                total += e.getValue();
+            }
+            observe("fastnginx_operation_duration_seconds", labels("operation", name), total);
+            count("fastnginx_operations_total", labels("operation", name, "result", ok ? "ok" : "error"), 1);
+        }
+    }
+
+    static Operation operation(String name) {
+        return new Operation(name);
+    }
+
+    /** Whether a textfile is configured; the first call reads the settings */
+    static synchronized boolean enabled() {
+        if (!initialized) {
+            initialized = true;
+            try {
+                Settings settings = Settings.load();
+                String file = settings.get("metrics.textfile", "");
+                if (!file.equals("off")) {
+                    target = file.isEmpty() ? FastNginx.dataDirPath().resolve("fastnginx.prom") : Paths.get(file);
+                    exitWaitMs = settings.getLong("metrics.exit_wait_ms", 0);
+                    start();
+                }
+            } catch (IOException e) {
+                // Not initialized yet: nowhere to write
+            }
+        }
+        return target != null;
+    }
+
+    private static void start() {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "fastnginx-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(Metrics::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(exitWaitMs);
+            for (Thread thread : background) {
+                try {
+                    thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime())));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            flush();
+        }, "fastnginx-metrics-exit"));
+    }
+
+    /** Called by the menu and the daemon: they stay up long enough to see reload drains finish */
+    static void longRunning() {
+        longRunning = true;
+    }
+
+    /** Whether reload drains are measured; a one-shot run would otherwise block its exit on them */
+    static boolean measuresDrains() {
+        return enabled() && (longRunning || exitWaitMs > 0);
+    }
+
+    /** Runs a task on a virtual thread that an exiting run waits for, up to metrics.exit_wait_ms */
+    static void background(Runnable task) {
+        Thread thread = Thread.ofVirtual().unstarted(() -> {
+            try {
+                task.run();
+            } finally {
+                background.remove(Thread.currentThread());
+            }
+        });
+        background.add(thread);
+        thread.start();
+    }
+
+    /** Label string for a series: name="value" pairs in the given order */
+    static String labels(String... pairs) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            if (!out.isEmpty()) {
+                out.append(',');
+            }
+            out.append(pairs[i]).append("=\"")
+                    .append(pairs[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return out.toString();
+    }
+
+    static void count(String family, String labels, double delta) {
+        if (enabled()) {
+            synchronized (Metrics.class) {
+                series(pending, family, labels)[0] += delta;
+            }
+        }
+    }
+
+    static void observe(String family, String labels, long nanos) {
+        if (enabled()) {
+            synchronized (Metrics.class) {
+                double seconds = nanos / 1e9;
+                double[] h = series(pending, family, labels);
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    if (seconds <= BUCKETS[i]) {
+                        h[i]++;
+                    }
+                }
+                h[BUCKETS.length] += seconds;
+                h[BUCKETS.length + 1]++;
+            }
+        }
+    }
+
+    /** Gauges hold timestamps, so the largest value recorded by any run wins */
+    static void set(String family, double value) {
+        if (enabled()) {
+            synchronized (Metrics.class) {
+                double[] g = series(pending, family, "");
+                g[0] = Math.max(g[0], value);
+            }
+        }
+    }
+
+    private static double[] series(Map<String, Map<String, double[]>> values, String family, String labels) {
+        Family f = FAMILIES.get(family);
+        if (f == null) {
+            throw new IllegalArgumentException("Unknown metric: " + family);
+        }
+        return values.computeIfAbsent(family, k -> new TreeMap<>())
+                .computeIfAbsent(labels, k -> new double[f.type().equals("histogram") ? BUCKETS.length + 2 : 1]);
+    }
+
+    /** Merges what was recorded since the last flush into the textfile */
+    static void flush() {
+        synchronized (FLUSH_LOCK) {
+            Map<String, Map<String, double[]>> batch;
+            synchronized (Metrics.class) {
+                if (target == null || pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            }
+            try {
+                write(batch);
+            } catch (IOException | RuntimeException e) {
+                synchronized (Metrics.class) {
+                    // Keep the values for the next attempt
+                    add(pending, batch);
+                    if (!warned) {
+                        warned = true;
+                        System.err.println("FastNginx: cannot write metrics to " + target + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void write(Map<String, Map<String, double[]>> batch) throws IOException {
+        Path lockFile = target.resolveSibling("." + target.getFileName() + ".lock");
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                Map<String, Map<String, double[]>> totals = new LinkedHashMap<>();
+                if (Files.exists(target)) {
+                    parse(Files.readAllLines(target), totals);
+                }
+                add(totals, batch);
+
+                // Not ending in .prom, so the collector ignores it while it is written
+                Path tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+                Files.writeString(tmp, render(totals));
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private static void add(Map<String, Map<String, double[]>> into, Map<String, Map<String, double[]>> from) {
+        from.forEach((family, series) -> series.forEach((labels, values) -> {
+            double[] sum = series(into, family, labels);
+            if (FAMILIES.get(family).type().equals("gauge")) {
+                sum[0] = Math.max(sum[0], values[0]);
+            } else {
+                for (int i = 0; i < values.length; i++) {
+                    sum[i] += values[i];
+                }
+            }
+        }));
+    }
+
+    /** Reads back a file written by render; series of unknown families are dropped */
+    static void parse(List<String> lines, Map<String, Map<String, double[]>> into) {
+        for (String line : lines) {
+            int space = line.lastIndexOf(' ');
+            if (line.isEmpty() || line.startsWith("#") || space < 0) {
+                continue;
+            }
+            double value;
+            try {
+                value = Double.parseDouble(line.substring(space + 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String name = line.substring(0, space);
+            String labels = "";
+            int brace = name.indexOf('{');
+            if (brace >= 0) {
+                labels = name.substring(brace + 1, name.lastIndexOf('}'));
+                name = name.substring(0, brace);
+            }
+
+            Family plain = FAMILIES.get(name);
+            if (plain != null && !plain.type().equals("histogram")) {
+                series(into, name, labels)[0] = value;
+                continue;
+            }
+            int suffix = name.lastIndexOf('_');
+            Family histogram = suffix < 0 ? null : FAMILIES.get(name.substring(0, suffix));
+            if (histogram == null || !histogram.type().equals("histogram")) {
+                continue;
+            }
+            switch (name.substring(suffix + 1)) {
+                case "sum" -> series(into, histogram.name(), labels)[BUCKETS.length] = value;
+                case "count" -> series(into, histogram.name(), labels)[BUCKETS.length + 1] = value;
+                case "bucket" -> {
+                    // le is always written last
+                    int le = labels.lastIndexOf("le=\"");
+                    if (le < 0) {
+                        continue;
+                    }
+                    String bound = labels.substring(le + 4, labels.length() - 1);
+                    String rest = labels.substring(0, Math.max(0, le - 1));
+                    for (int i = 0; i < BUCKETS.length; i++) {
+                        if (number(BUCKETS[i]).equals(bound)) {
+                            series(into, histogram.name(), rest)[i] = value;
+                        }
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+    }
+
+    static String render(Map<String, Map<String, double[]>> values) {
+        StringBuilder out = new StringBuilder(4096);
+        for (Family f : FAMILIES.values()) {
+            Map<String, double[]> series = values.get(f.name());
+            if (series == null) {
+                continue;
+            }
+            out.append("# HELP ").append(f.name()).append(' ').append(f.help()).append('\n');
+            out.append("# TYPE ").append(f.name()).append(' ').append(f.type()).append('\n');
+            series.forEach((labels, v) -> {
+                if (!f.type().equals("histogram")) {
+                    line(out, f.name(), labels, v[0]);
+                    return;
+                }
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    line(out, f.name() + "_bucket", prefix + "le=\"" + number(BUCKETS[i]) + "\"", v[i]);
+                }
+                line(out, f.name() + "_bucket", prefix + "le=\"+Inf\"", v[BUCKETS.length + 1]);
+                line(out, f.name() + "_sum", labels, v[BUCKETS.length]);
+                line(out, f.name() + "_count", labels, v[BUCKETS.length + 1]);
+            });
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(number(value)).append('\n');
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+}
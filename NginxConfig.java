@@ -0,0 +1,231 @@
+import java.util.*;
+
+/**
+ * Reader for nginx configuration syntax: enough to pull directives and their
+ * arguments out of hand-written site files, not a validator.
+ *
+ * Tokens follow nginx's own rules: whitespace separates words, ';' ends a
+ * directive, '{' and '}' open and close a block, '#' starts a comment only
+ * at the start of a token, single or double quotes group a word and a
+ * backslash escapes the next character. "${name}" stays part of a word.
+ */
+final class NginxConfig {
+
+    /** One directive; block is null for a simple "name args;" directive */
+    record Directive(String name, List<String> args, List<Directive> block, int line) {
+
+        String arg(int i) {
+            return i < args.size() ? args.get(i) : null;
+        }
+
+        List<Directive> children(String name) {
+            if (block == null) {
+                return List.of();
+            }
+            List<Directive> out = new ArrayList<>();
+            for (Directive d : block) {
+                if (d.name().equals(name)) {
+                    out.add(d);
+                }
+            }
+            return out;
+        }
+
+        Directive first(String name) {
+            if (block != null) {
+                for (Directive d : block) {
+                    if (d.name().equals(name)) {
+                        return d;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /** Syntax error with the line it was found on */
+    @SuppressWarnings("serial")
+    static final class ParseException extends Exception {
+        final int line;
+
+        ParseException(int line, String message) {
+            super("line " + line + ": " + message);
+            this.line = line;
+        }
+    }
+
+    private NginxConfig() {
+    }
+
+    static List<Directive> parse(String source) throws ParseException {
+        return new Parser(source).block(false);
+    }
+
+    private static final class Parser {
+        private static final int EOF = 0, WORD = 1, SEMICOLON = 2, OPEN = 3, CLOSE = 4;
+
+        private final String s;
+        private final StringBuilder word = new StringBuilder(64);
+        private int pos;
+        private int line = 1;
+
+        Parser(String source) {
+            this.s = source;
+        }
+
+        List<Directive> block(boolean nested) throws ParseException {
+            List<Directive> out = new ArrayList<>();
+            List<String> args = new ArrayList<>();
+            int start = line;
+            while (true) {
+                int token = next();
+                switch (token) {
+                    case WORD -> {
+                        if (args.isEmpty()) {
+                            start = line;
+                        }
+                        args.add(word.toString());
+                    }
+                    case SEMICOLON -> {
+                        if (args.isEmpty()) {
+                            throw new ParseException(line, "unexpected \";\"");
+                        }
+                        out.add(new Directive(args.get(0), List.copyOf(args.subList(1, args.size())), null, start));
+                        args.clear();
+                    }
+                    case OPEN -> {
+                        if (args.isEmpty()) {
+                            throw new ParseException(line, "unexpected \"{\"");
+                        }
+                        String name = args.get(0);
+                        List<String> blockArgs = List.copyOf(args.subList(1, args.size()));
+                        int blockLine = start;
+                        args.clear();
+                        out.add(new Directive(name, blockArgs, block(true), blockLine));
+                    }
+                    case CLOSE -> {
+                        if (!nested) {
+                            throw new ParseException(line, "unexpected \"}\"");
+                        }
+                        if (!args.isEmpty()) {
+                            throw new ParseException(line, "directive \"" + args.get(0) + "\" is not terminated by \";\"");
+                        }
+                        return out;
+                    }
+                    default -> {
+                        if (nested) {
+                            throw new ParseException(line, "unexpected end of file, expecting \"}\"");
+                        }
+                        if (!args.isEmpty()) {
+                            throw new ParseException(line, "unexpected end of file, expecting \";\" or \"}\"");
+                        }
+                        return out;
+                    }
+                }
+            }
+        }
+
+        private int next() throws ParseException {
+            skipBlankAndComments();
+            if (pos >= s.length()) {
+                return EOF;
+            }
+            char c = s.charAt(pos);
+            switch (c) {
+                case ';' -> {
+                    pos++;
+                    return SEMICOLON;
+                }
+                case '{' -> {
+                    pos++;
+                    return OPEN;
+                }
+                case '}' -> {
+                    pos++;
+                    return CLOSE;
+                }
+                case '"', '\'' -> {
+                    quoted(c);
+                    return WORD;
+                }
+                default -> {
+                    bare();
+                    return WORD;
+                }
+            }
+        }
+
+        private void skipBlankAndComments() {
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '\n') {
+                    line++;
+                    pos++;
+                } else if (Character.isWhitespace(c)) {
+                    pos++;
+                } else if (c == '#') {
+                    while (pos < s.length() && s.charAt(pos) != '\n') {
+                        pos++;
+                    }
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void quoted(char quote) throws ParseException {
+            int startLine = line;
+            word.setLength(0);
+            pos++;
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '\\' && pos < s.length()) {
+                    char escaped = s.charAt(pos++);
+                    switch (escaped) {
+                        case '"', '\'', '\\' -> word.append(escaped);
+                        case 'n' -> word.append('\n');
+                        case 't' -> word.append('\t');
+                        case 'r' -> word.append('\r');
+                        default -> word.append('\\').append(escaped);
+                    }
+                } else if (c == quote) {
+                    return;
+                } else {
+                    if (c == '\n') {
+                        line++;
+                    }
+                    word.append(c);
+                }
+            }
+            throw new ParseException(startLine, "unterminated quoted string");
+        }
+
+        private void bare() {
+            word.setLength(0);
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (Character.isWhitespace(c) || c == ';' || c == '}') {
+                    return;
+                }
+                if (c == '{') {
+                    // "${var}" is a variable, any other brace opens a block
+                    if (word.length() == 0 || word.charAt(word.length() - 1) != '$') {
+                        return;
+                    }
+                    int close = s.indexOf('}', pos);
+                    int end = close < 0 ? s.length() : close + 1;
+                    word.append(s, pos, end);
+                    pos = end;
+                    continue;
+                }
+                if (c == '\\' && pos + 1 < s.length()) {
+                    word.append(s.charAt(pos + 1));
+                    pos += 2;
+                    continue;
+                }
+                word.append(c);
+                pos++;
+            }
+        }
+    }
+}
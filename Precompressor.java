@@ -0,0 +1,149 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes name.gz next to every compressible file of a static site's document
+ * root so nginx's gzip_static can send precompressed bytes.
+ *
+ * Directories are split into fork/join tasks, one per subdirectory plus one
+ * per file, so a single large tree keeps every core busy. A file is skipped
+ * when its .gz is at least as new as the file itself; the .gz gets the source's
+ * modification time so Last-Modified and ETag agree for both encodings.
+ */
+public final class Precompressor {
+
+    /** Extensions worth compressing; images, fonts in woff2 and archives already are */
+    static final Set<String> EXTENSIONS = Set.of(
+            "html", "htm", "css", "js", "mjs", "json", "xml", "svg", "txt", "map",
+            "wasm", "ico", "ttf", "otf", "eot", "md", "csv", "webmanifest");
+
+    /** Below this size the gzip header and round trip cost more than they save */
+    static final long MIN_SIZE = 256;
+
+    public record Stats(long compressed, long skipped, long failed, long bytesIn, long bytesOut,
+                        long nanos, int threads) {
+
+        String summary() {
+            double seconds = nanos / 1_000_000_000.0;
+            double mbIn = bytesIn / (1024.0 * 1024);
+            return String.format(
+                    "Precompressed %d file(s), %d up to date, %d failed: %.1f MB -> %.1f MB (%.0f%%) in %.2fs, %.1f MB/s on %d threads",
+                    compressed, skipped, failed, mbIn, bytesOut / (1024.0 * 1024),
+                    bytesIn == 0 ? 0.0 : 100.0 * bytesOut / bytesIn, seconds,
+                    seconds == 0 ? 0.0 : mbIn / seconds, threads);
+        }
+    }
+
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    private Precompressor() {
+    }
+
+    public static Stats run(Path root) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        Precompressor job = new Precompressor();
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(job.new DirectoryTask(root));
+        } finally {
+            pool.shutdown();
+        }
+        return new Stats(job.compressed.sum(), job.skipped.sum(), job.failed.sum(),
+                job.bytesIn.sum(), job.bytesOut.sum(), System.nanoTime() - start, threads);
+    }
+
+    static boolean eligible(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    @SuppressWarnings("serial")
+    private final class DirectoryTask extends RecursiveAction {
+        private final Path dir;
+
+        DirectoryTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(new DirectoryTask(entry));
+                    } else if (Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS) && eligible(entry)) {
+                        tasks.add(new FileTask(entry));
+                    }
+                }
+            } catch (IOException e) {
+                failed.increment();
+                return;
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class FileTask extends RecursiveAction {
+        private final Path file;
+
+        FileTask(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            Path gz = file.resolveSibling(file.getFileName() + ".gz");
+            try {
+                long size = Files.size(file);
+                if (size < MIN_SIZE) {
+                    return;
+                }
+                FileTime modified = Files.getLastModifiedTime(file);
+                if (Files.exists(gz) && Files.getLastModifiedTime(gz).compareTo(modified) >= 0) {
+                    skipped.increment();
+                    return;
+                }
+
+                Path tmp = file.resolveSibling("." + file.getFileName() + ".gz.tmp");
+                try (InputStream in = Files.newInputStream(file);
+                     OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024) {
+                         {
+                             def.setLevel(Deflater.BEST_COMPRESSION);
+                         }
+                     }) {
+                    in.transferTo(out);
+                }
+                long gzSize = Files.size(tmp);
+                if (gzSize >= size) {
+                    // Incompressible: let nginx send the original instead
+                    Files.delete(tmp);
+                    Files.deleteIfExists(gz);
+                    return;
+                }
+                Files.setLastModifiedTime(tmp, modified);
+                Files.move(tmp, gz, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                compressed.increment();
+                bytesIn.add(size);
+                bytesOut.add(gzSize);
+            } catch (IOException e) {
+                failed.increment();
+            }
+        }
+    }
+}
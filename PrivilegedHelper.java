@@ -0,0 +1,474 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-lived root process doing FastNginx's privileged work, so the tool can
+ * run unprivileged without forking sudo for every test, reload and file.
+ *
+ * "sudo java FastNginx helper" listens on a Unix domain socket
+ * (helper.socket, default /run/fastnginx/helper.sock, mode 0660 and group
+ * helper.group when set). A client sends a Batch and gets one result per
+ * operation back in the same round trip:
+ *   WRITE path bytes       atomic replace, keeping the old file's mode
+ *   SYMLINK link target    creates or repoints a link
+ *   UNLINK path            removes a file or link if present
+ *   MKDIR path             creates one of the managed directories
+ *   VALIDATE               nginx -t
+ *   RELOAD                 systemctl reload nginx
+ * Paths are allow-listed: the site directories, the shared http file and
+ * /etc/hosts, and links may only point into sites-available. MKDIR only
+ * creates those directories and conf.d. A batch stops
+ * at its first failure; the remaining operations are skipped.
+ *
+ * Without a helper listening, a Batch does the same work in-process and runs
+ * nginx and systemctl through sudo, as FastNginx always did. Operations the
+ * helper would refuse, such as a temporary validation prefix, also stay
+ * in-process.
+ *
+ * Frame: [int magic][int count], then per operation [byte op][int n] and n
+ * arguments of [int length][bytes]; the reply per operation is
+ * [int exitCode][int length][output].
+ */
+final class PrivilegedHelper {
+
+    static final String DEFAULT_SOCKET = "/run/fastnginx/helper.sock";
+
+    private static final String USAGE = "Usage: sudo java FastNginx helper [--socket path]";
+    private static final int MAGIC = 0x464E4850; // "FNHP"
+    private static final int MAX_OPS = 1 << 20;
+    private static final int MAX_ARGUMENT = 64 * 1024 * 1024;
+
+    private static final byte OP_WRITE = 1;
+    private static final byte OP_SYMLINK = 2;
+    private static final byte OP_UNLINK = 3;
+    private static final byte OP_VALIDATE = 4;
+    private static final byte OP_RELOAD = 5;
+    private static final byte OP_MKDIR = 6;
+
+    private static final Result SKIPPED = new Result(-1, "Skipped after an earlier failure");
+
+    private PrivilegedHelper() {
+    }
+
+    /** Exit status and output of one operation; file operations report 0 or 1 with the error */
+    record Result(int exitCode, String output) {
+        boolean ok() {
+            return exitCode == 0;
+        }
+    }
+
+    private record Op(byte code, List<byte[]> args) {
+
+        Path path(int i) {
+            return Paths.get(new String(args.get(i), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Privileged operations run in order with one round trip to the helper.
+     * run() throws when a file operation fails, like the Files call it
+     * stands for; VALIDATE and RELOAD report their exit status instead.
+     */
+    static final class Batch {
+        private final List<Op> ops = new ArrayList<>();
+
+        Batch write(Path file, byte[] content) {
+            return add(OP_WRITE, file.toString().getBytes(StandardCharsets.UTF_8), content);
+        }
+
+        Batch write(Path file, String content) {
+            return write(file, content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Batch symlink(Path link, Path target) {
+            return add(OP_SYMLINK, link.toString().getBytes(StandardCharsets.UTF_8),
+                    target.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        Batch unlink(Path path) {
+            return add(OP_UNLINK, path.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        Batch mkdir(Path dir) {
+            return add(OP_MKDIR, dir.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        Batch validate() {
+            return add(OP_VALIDATE);
+        }
+
+        Batch reload() {
+            return add(OP_RELOAD);
+        }
+
+        boolean isEmpty() {
+            return ops.isEmpty();
+        }
+
+        private Batch add(byte code, byte[]... args) {
+            ops.add(new Op(code, List.of(args)));
+            return this;
+        }
+
+        List<Result> run() throws IOException {
+            if (ops.isEmpty()) {
+                return List.of();
+            }
+            List<Result> results = null;
+            Path socket = socket();
+            if (Files.exists(socket) && ops.stream().allMatch(PrivilegedHelper::allowed)) {
+                results = send(socket, ops);
+            }
+            if (results == null) {
+                results = new ArrayList<>(ops.size());
+                for (Op op : ops) {
+                    if (!results.isEmpty() && !results.get(results.size() - 1).ok()) {
+                        results.add(SKIPPED);
+                        continue;
+                    }
+                    try {
+                        results.add(execute(op, false));
+                    } catch (IOException e) {
+                        throw fileError(op, e.getMessage());
+                    }
+                }
+            }
+            for (int i = 0; i < results.size(); i++) {
+                Op op = ops.get(i);
+                Result result = results.get(i);
+                boolean command = op.code() == OP_VALIDATE || op.code() == OP_RELOAD;
+                if (!result.ok() && !command && result != SKIPPED) {
+                    throw fileError(op, result.output());
+                }
+            }
+            return results;
+        }
+    }
+
+    static void write(Path file, byte[] content) throws IOException {
+        new Batch().write(file, content).run();
+    }
+
+    static void write(Path file, String content) throws IOException {
+        new Batch().write(file, content).run();
+    }
+
+    static void symlink(Path link, Path target) throws IOException {
+        new Batch().symlink(link, target).run();
+    }
+
+    static void unlink(Path path) throws IOException {
+        new Batch().unlink(path).run();
+    }
+
+    static void mkdir(Path dir) throws IOException {
+        new Batch().mkdir(dir).run();
+    }
+
+    /** nginx -t on the live configuration */
+    static Result validate() throws IOException {
+        return new Batch().validate().run().get(0);
+    }
+
+    static Result reload() throws IOException {
+        return new Batch().reload().run().get(0);
+    }
+
+    private static IOException fileError(Op op, String message) {
+        String path = op.args().isEmpty() ? "" : new String(op.args().get(0), StandardCharsets.UTF_8);
+        return new IOException(path + ": " + message);
+    }
+
+    private static Path socket() {
+        Settings settings;
+        try {
+            settings = Settings.load();
+        } catch (IOException e) {
+            settings = Settings.defaults();
+        }
+        return Paths.get(settings.get("helper.socket", DEFAULT_SOCKET));
+    }
+
+    // ---- allow-list ----
+
+    /** Whether the helper would carry out op; everything else stays in-process */
+    private static boolean allowed(Op op) {
+        return switch (op.code()) {
+            case OP_VALIDATE, OP_RELOAD -> true;
+            case OP_WRITE, OP_UNLINK -> allowedPath(op.path(0));
+            case OP_SYMLINK -> allowedPath(op.path(0)) && allowedTarget(op.path(0), op.path(1));
+            case OP_MKDIR -> op.path(0).equals(FastNginx.SITES_AVAILABLE) || op.path(0).equals(DenseLayout.OUTPUT)
+                    || op.path(0).equals(DenseLayout.LINKS) || op.path(0).equals(SharedConfig.PATH.getParent());
+            default -> false;
+        };
+    }
+
+    private static boolean allowedPath(Path path) {
+        if (!path.isAbsolute() || !path.equals(path.normalize()) || path.getParent() == null) {
+            return false;
+        }
+        if (path.equals(HostsFile.DEFAULT_PATH) || path.equals(SharedConfig.PATH)) {
+            return true;
+        }
+        Path dir = path.getParent();
+        return dir.equals(FastNginx.SITES_AVAILABLE) || dir.equals(DenseLayout.OUTPUT) || dir.equals(DenseLayout.LINKS);
+    }
+
+    private static boolean allowedTarget(Path link, Path target) {
+        Path resolved = link.getParent().resolve(target).normalize();
+        return FastNginx.SITES_AVAILABLE.equals(resolved.getParent());
+    }
+
+    // ---- operations ----
+
+    private static Result execute(Op op, boolean privileged) throws IOException {
+        switch (op.code()) {
+            case OP_WRITE -> writeAtomically(op.path(0), op.args().get(1));
+            case OP_SYMLINK -> {
+                Path link = op.path(0);
+                if (Files.exists(link, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(link)) {
+                    throw new IOException("Not a symbolic link");
+                }
+                Files.deleteIfExists(link);
+                Files.createSymbolicLink(link, op.path(1));
+            }
+            case OP_UNLINK -> Files.deleteIfExists(op.path(0));
+            case OP_MKDIR -> Files.createDirectories(op.path(0));
+            case OP_VALIDATE -> {
+                return command(privileged ? List.of("nginx", "-t") : List.of("sudo", "nginx", "-t"));
+            }
+            case OP_RELOAD -> {
+                return command(privileged ? List.of("systemctl", "reload", "nginx")
+                        : List.of("sudo", "systemctl", "reload", "nginx"));
+            }
+            default -> throw new IOException("Unknown operation " + op.code());
+        }
+        return new Result(0, "");
+    }
+
+    /**
+     * Replaces file through a uniquely named temp file in the same directory,
+     * keeping its permissions. Only /etc/hosts is written in place when the
+     * rename fails: in containers it is a bind mount nothing can be renamed over.
+     */
+    private static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path tmp = Files.createTempFile(file.getParent(), "." + file.getFileName() + ".", ".fastnginx.tmp");
+        try {
+            Files.write(tmp, content);
+            PosixFileAttributeView view = Files.getFileAttributeView(tmp, PosixFileAttributeView.class);
+            if (view != null) {
+                view.setPermissions(Files.exists(file) ? Files.getPosixFilePermissions(file)
+                        : PosixFilePermissions.fromString("rw-r--r--"));
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileSystemException e) {
+                if (!file.equals(HostsFile.DEFAULT_PATH)) {
+                    throw e;
+                }
+                Files.write(file, content);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static Result command(List<String> command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        try {
+            return new Result(process.waitFor(), output);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + command.get(0));
+        }
+    }
+
+    // ---- client ----
+
+    /** Sends ops to the helper; null when it is not listening, so the caller runs them itself */
+    private static List<Result> send(Path socket, List<Op> ops) throws IOException {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            // A socket file left behind by a helper that is gone
+            return null;
+        }
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(ops.size());
+            for (Op op : ops) {
+                out.writeByte(op.code());
+                out.writeInt(op.args().size());
+                for (byte[] arg : op.args()) {
+                    out.writeInt(arg.length);
+                    out.write(arg);
+                }
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            List<Result> results = new ArrayList<>(ops.size());
+            for (int i = 0; i < ops.size(); i++) {
+                int exitCode = in.readInt();
+                results.add(exitCode == SKIPPED.exitCode() ? SKIPPED
+                        : new Result(exitCode, new String(readArgument(in), StandardCharsets.UTF_8)));
+            }
+            return results;
+        }
+    }
+
+    private static byte[] readArgument(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_ARGUMENT) {
+            throw new IOException("Invalid frame");
+        }
+        return in.readNBytes(length);
+    }
+
+    // ---- server ----
+
+    static int run(String[] args) {
+        Path socket = socket();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--socket") && i + 1 < args.length) {
+                socket = Paths.get(args[++i]);
+            } else {
+                System.err.println(USAGE);
+                return 2;
+            }
+        }
+        if (!"root".equals(System.getProperty("user.name"))) {
+            FastNginx.printStatus("The helper is meant to run as root; operations may fail", "warning");
+        }
+        try {
+            serve(socket);
+            return 0;
+        } catch (IOException e) {
+            FastNginx.printStatus("Helper failed: " + e.getMessage(), "error");
+            return 1;
+        }
+    }
+
+    private static void serve(Path socket) throws IOException {
+        Files.createDirectories(socket.getParent());
+        Files.deleteIfExists(socket);
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-rw----"));
+        String group = Settings.load().get("helper.group", "");
+        if (!group.isEmpty()) {
+            GroupPrincipal principal = socket.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByGroupName(group);
+            Files.getFileAttributeView(socket, PosixFileAttributeView.class).setGroup(principal);
+        }
+        Path bound = socket;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                Files.deleteIfExists(bound);
+            } catch (IOException e) {
+                // Exiting anyway
+            }
+        }));
+        FastNginx.printStatus("Helper listening on " + socket, "success");
+
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (server.isOpen()) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    if (!server.isOpen()) {
+                        break;
+                    }
+                    throw e;
+                }
+                clients.execute(() -> handle(client));
+            }
+        }
+    }
+
+    /** Answers batches on one connection until the client closes it */
+    private static void handle(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                int count = in.readInt();
+                if (magic != MAGIC || count < 0 || count > MAX_OPS) {
+                    return;
+                }
+                // The whole batch is read before any of it runs
+                List<Op> ops = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte code = in.readByte();
+                    int n = in.readInt();
+                    if (n < 0 || n > 2) {
+                        return;
+                    }
+                    List<byte[]> args = new ArrayList<>(n);
+                    for (int a = 0; a < n; a++) {
+                        args.add(readArgument(in));
+                    }
+                    ops.add(new Op(code, args));
+                }
+
+                boolean failed = false;
+                for (Op op : ops) {
+                    Result result = failed ? SKIPPED : perform(op);
+                    failed |= !result.ok();
+                    out.writeInt(result.exitCode());
+                    if (result != SKIPPED) {
+                        byte[] output = result.output().getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(output.length);
+                        out.write(output);
+                    }
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away mid-batch; whatever ran has run
+        }
+    }
+
+    private static Result perform(Op op) {
+        if (!hasArguments(op) || !allowed(op)) {
+            return new Result(1, "Not allowed");
+        }
+        try {
+            return execute(op, true);
+        } catch (IOException | RuntimeException e) {
+            return new Result(1, e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+    }
+
+    private static boolean hasArguments(Op op) {
+        int expected = switch (op.code()) {
+            case OP_WRITE, OP_SYMLINK -> 2;
+            case OP_UNLINK, OP_MKDIR -> 1;
+            default -> 0;
+        };
+        return op.args().size() == expected;
+    }
+}
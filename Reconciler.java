@@ -0,0 +1,436 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Non-interactive bulk apply: brings sites-available, sites-enabled and
+ * the configuration index in line with a desired-state manifest, then validates and
+ * reloads nginx exactly once.
+ *
+ * Manifest format is the same as config_index, one site per line:
+ * domain=example.com,port=3000[,ip=127.0.0.1][,status=active|inactive]
+ * Proxied sites may list several backends: backends=10.0.0.5:3000|10.0.0.6:3000[,lb=least_conn]
+ * and enable a proxy cache: cache=micro|standard|aggressive[,cache_keys=N][,cache_max_size=2g]
+ * Static sites: domain=docs.example.com,type=static,root=/var/www/docs
+ */
+public class Reconciler {
+
+    private static final String USAGE = "Usage: java FastNginx reconcile <manifest> [--dry-run] [--prune]";
+
+    /** A site whose rendered config differs from what is on disk */
+    private record Change(String domain, Path path, byte[] content, String hash, byte[] previous) {
+    }
+
+    public static int run(String[] args) {
+        Path manifest = null;
+        boolean dryRun = false;
+        boolean prune = false;
+
+        for (String arg : args) {
+            switch (arg) {
+                case "--dry-run" -> dryRun = true;
+                case "--prune" -> prune = true;
+                default -> {
+                    if (arg.startsWith("--") || manifest != null) {
+                        System.err.println(USAGE);
+                        return 2;
+                    }
+                    manifest = Paths.get(arg);
+                }
+            }
+        }
+
+        if (manifest == null) {
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        try (ConfigJournal store = ConfigJournal.open(FastNginx.dataDirPath())) {
+            return reconcile(manifest, store, dryRun, prune);
+        } catch (IOException e) {
+            FastNginx.printStatus("Reconcile failed: " + e.getMessage(), "error");
+            return 1;
+        }
+    }
+
+    static int reconcile(Path manifest, ConfigJournal store, boolean dryRun, boolean prune) throws IOException {
+        Timer timer = new Timer();
+
+        // Load current and desired state
+        Map<String, String> currentPaths = new LinkedHashMap<>();
+        Map<String, String> currentHashes = new HashMap<>();
+        store.forEach(row -> {
+            String domain = row.domain();
+            currentPaths.put(domain, row.get("path"));
+            currentHashes.put(domain, row.get("hash"));
+        });
+        Map<String, Map<String, String>> desired = loadManifest(manifest);
+        timer.lap("load");
+
+        for (Map.Entry<String, Map<String, String>> e : desired.entrySet()) {
+            Map<String, String> site = e.getValue();
+            for (String key : site.keySet()) {
+                if (!Cli.isKnownField(key)) {
+                    FastNginx.printStatus("Unknown field " + key + " for " + e.getKey() + " in manifest", "error");
+                    return 1;
+                }
+            }
+            // Same type/template rules as Cli.normalize
+            String type = site.getOrDefault("type", "proxy");
+            if (!type.equals("proxy") && !type.equals("static")) {
+                FastNginx.printStatus("Unknown service type for " + e.getKey() + ": " + type, "error");
+                return 1;
+            }
+            String template = site.getOrDefault("template", type.equals("static") ? "static" : Templates.DEFAULT);
+            if (!Templates.names().contains(template)) {
+                FastNginx.printStatus("Unknown template for " + e.getKey() + ": " + template, "error");
+                return 1;
+            }
+            if (type.equals("proxy") && template.equals("static")) {
+                FastNginx.printStatus("Template static needs type=static (" + e.getKey() + ")", "error");
+                return 1;
+            }
+            String upstreamError = Upstream.validate(site);
+            if (upstreamError != null) {
+                FastNginx.printStatus(upstreamError + " (" + e.getKey() + ")", "error");
+                return 1;
+            }
+            String backends = site.get("backends");
+            if (backends != null) {
+                site.putIfAbsent("port", Upstream.primaryPort(backends));
+            }
+            if (TrafficProfile.OFF.equals(site.get("traffic"))) {
+                site.remove("traffic");
+            }
+            String trafficError = TrafficProfile.validate(site);
+            if (trafficError != null) {
+                FastNginx.printStatus(trafficError + " (" + e.getKey() + ")", "error");
+                return 1;
+            }
+            if ("static".equals(site.get("type"))) {
+                site.putIfAbsent("template", "static");
+                if (site.get("root") == null || !Templates.isPlainArgument(site.get("root"))) {
+                    FastNginx.printStatus("Missing or invalid root for static site " + e.getKey() + " in manifest", "error");
+                    return 1;
+                }
+                continue;
+            }
+            String port = site.get("port");
+            if (!Upstream.validPort(port)) {
+                FastNginx.printStatus("Invalid port for " + e.getKey() + " in manifest", "error");
+                return 1;
+            }
+            String cacheError = CacheProfile.validate(site);
+            if (cacheError != null) {
+                FastNginx.printStatus(cacheError + " (" + e.getKey() + ")", "error");
+                return 1;
+            }
+            String lb = site.get("lb");
+            if (lb != null && !Upstream.BALANCERS.contains(lb)) {
+                FastNginx.printStatus("Unknown load balancing method for " + e.getKey() + ": " + lb, "error");
+                return 1;
+            }
+        }
+
+        // Render every desired site and diff by content hash against disk
+        for (Map<String, String> site : desired.values()) {
+            site.putIfAbsent("template", Templates.DEFAULT);
+        }
+        List<Change> changes;
+        try {
+            changes = desired.values().parallelStream()
+                    .map(site -> diff(site, currentHashes.get(site.get("domain")),
+                            availablePath(site.get("domain"), currentPaths)))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        } catch (IllegalArgumentException e) {
+            // e.g. a custom template that needs a variable the site does not have
+            FastNginx.printStatus("Cannot render manifest: " + e.getMessage(), "error");
+            return 1;
+        }
+        timer.lap("render");
+
+        // Validate changed sites in isolation, in parallel; failures are left untouched
+        Map<String, String> toValidate = new LinkedHashMap<>();
+        for (Change c : changes) {
+            toValidate.put(c.domain(), new String(c.content(), StandardCharsets.UTF_8));
+        }
+        List<String> removed = new ArrayList<>();
+        if (prune) {
+            for (String domain : currentPaths.keySet()) {
+                if (!desired.containsKey(domain)) {
+                    removed.add(domain);
+                }
+            }
+        }
+
+        Set<String> rejected = new LinkedHashSet<>();
+        if (!dryRun) {
+            // Shared http file first: new sites may reference cache zones declared there
+            Map<String, Map<String, String>> pending = new HashMap<>(desired);
+            removed.forEach(domain -> pending.put(domain, null));
+            FastNginx.syncSharedConfig(store, pending);
+            SiteValidator.validateAll(toValidate).forEach((domain, outcome) -> {
+                if (!outcome.passed()) {
+                    rejected.add(domain);
+                    FastNginx.printStatus("Site validation FAILED: " + domain, "error");
+                    outcome.output().lines()
+                            .forEach(line -> System.out.println(FastNginx.RED + "  " + line + FastNginx.RESET));
+                }
+            });
+            changes.removeIf(c -> rejected.contains(c.domain()));
+            if (!rejected.isEmpty()) {
+                // Rejected sites keep their indexed state, including the zones they declare
+                pending.keySet().removeAll(rejected);
+                FastNginx.syncSharedConfig(store, pending);
+            }
+            timer.lap("validate-sites");
+        }
+
+        Map<Path, Path> linksToCreate = new LinkedHashMap<>();
+        List<Path> linksToRemove = new ArrayList<>();
+        for (Map<String, String> site : desired.values()) {
+            String domain = site.get("domain");
+            if (rejected.contains(domain)) {
+                continue;
+            }
+            Path available = availablePath(domain, currentPaths);
+            Path enabled = FastNginx.SITES_ENABLED.resolve(available.getFileName().toString());
+            boolean active = !"inactive".equals(site.get("status"));
+            if (active && !Files.exists(enabled, LinkOption.NOFOLLOW_LINKS)) {
+                linksToCreate.put(enabled, available);
+            } else if (!active && Files.exists(enabled, LinkOption.NOFOLLOW_LINKS)) {
+                linksToRemove.add(enabled);
+            }
+        }
+        timer.lap("plan");
+
+        int unchanged = desired.size() - changes.size();
+        FastNginx.printStatus(String.format("%d desired, %d changed, %d unchanged, links +%d/-%d, %d pruned",
+                desired.size(), changes.size(), unchanged, linksToCreate.size(), linksToRemove.size(),
+                removed.size()), "info");
+
+        boolean nginxTouched = !changes.isEmpty() || !linksToCreate.isEmpty() || !linksToRemove.isEmpty()
+                || !removed.isEmpty();
+
+        if (dryRun) {
+            changes.forEach(c -> System.out.println(FastNginx.CYAN + "  ~ " + c.domain() + FastNginx.RESET));
+            removed.forEach(d -> System.out.println(FastNginx.RED + "  - " + d + FastNginx.RESET));
+            timer.report();
+            return 0;
+        }
+
+        // Apply file changes as one batch for the privileged helper; nothing is reloaded yet
+        Map<Path, Path> removedLinks = new LinkedHashMap<>();
+        Map<Path, byte[]> removedFiles = new LinkedHashMap<>();
+        PrivilegedHelper.Batch batch = new PrivilegedHelper.Batch();
+        for (Change c : changes) {
+            batch.write(c.path(), c.content());
+        }
+        for (Map.Entry<Path, Path> link : linksToCreate.entrySet()) {
+            batch.symlink(link.getKey(), link.getValue());
+        }
+        for (Path link : linksToRemove) {
+            removedLinks.put(link, Files.readSymbolicLink(link));
+            batch.unlink(link);
+        }
+        for (String domain : removed) {
+            Path available = availablePath(domain, currentPaths);
+            Path enabled = FastNginx.SITES_ENABLED.resolve(available.getFileName().toString());
+            if (Files.isSymbolicLink(enabled)) {
+                removedLinks.put(enabled, Files.readSymbolicLink(enabled));
+                batch.unlink(enabled);
+            }
+            if (Files.exists(available)) {
+                removedFiles.put(available, Files.readAllBytes(available));
+                batch.unlink(available);
+            }
+        }
+        try {
+            batch.run();
+        } catch (IOException e) {
+            // Ops are idempotent, so rolling back the whole plan also covers the part never applied
+            FastNginx.printStatus("Applying changes failed - rolling back: " + e.getMessage(), "error");
+            rollback(changes, linksToCreate.keySet(), removedLinks, removedFiles);
+            FastNginx.syncSharedConfig(store, Map.of());
+            timer.lap("rollback");
+            timer.report(false);
+            return 1;
+        }
+        timer.lap("write");
+
+        // One full-tree validation and one reload for the whole batch
+        if (nginxTouched) {
+            ReloadScheduler.Result reload = ReloadScheduler.shared().request().join();
+            timer.lap("reload");
+
+            if (!reload.validated()) {
+                FastNginx.printStatus("Configuration validation FAILED - rolling back", "error");
+                reload.output().lines()
+                        .forEach(line -> System.out.println(FastNginx.RED + "  " + line + FastNginx.RESET));
+                rollback(changes, linksToCreate.keySet(), removedLinks, removedFiles);
+                FastNginx.syncSharedConfig(store, Map.of());
+                timer.lap("rollback");
+                timer.report(false);
+                return 1;
+            }
+            FastNginx.printStatus("Configuration validation PASSED", "success");
+
+            if (reload.exitCode() != 0) {
+                FastNginx.printStatus("Nginx reload failed with exit code: " + reload.exitCode(), "error");
+                timer.report(false);
+                return 1;
+            }
+            FastNginx.printStatus("Nginx service reloaded", "success");
+        }
+
+        // Update the index, preserving created timestamps of known sites
+        for (String domain : removed) {
+            store.remove(domain);
+        }
+        if (!removed.isEmpty()) {
+            HostsFile hosts = HostsFile.load();
+            removed.forEach(hosts::remove);
+            hosts.save();
+        }
+        String now = String.valueOf(System.currentTimeMillis());
+        List<Map<String, String>> updated = new ArrayList<>();
+        for (Map<String, String> site : desired.values()) {
+            String domain = site.get("domain");
+            if (rejected.contains(domain)) {
+                continue;
+            }
+            Map<String, String> previous = store.get(domain);
+            Map<String, String> entry = new LinkedHashMap<>(site);
+            entry.putIfAbsent("type", "proxy");
+            entry.putIfAbsent("ip", "127.0.0.1");
+            entry.put("path", availablePath(domain, currentPaths).toString());
+            entry.putIfAbsent("status", "active");
+            entry.put("created", previous != null ? previous.getOrDefault("created", now) : now);
+            entry.put("hash", Templates.render(site).hash());
+            if (!entry.equals(previous)) {
+                updated.add(entry);
+            }
+        }
+        store.putAll(updated);
+        timer.lap("index");
+
+        if (!rejected.isEmpty()) {
+            FastNginx.printStatus("Reconcile applied with " + rejected.size() + " rejected site(s)", "warning");
+            timer.report(false);
+            return 1;
+        }
+        FastNginx.printStatus("Reconcile complete", "success");
+        timer.report(true);
+        return 0;
+    }
+
+    /**
+     * Renders a site and compares it with what is deployed. When the index
+     * already records the same hash and the file has the expected size, the
+     * file is not read at all.
+     */
+    private static Change diff(Map<String, String> site, String storedHash, Path path) {
+        String domain = site.get("domain");
+        SiteTemplate.Rendered rendered = Templates.render(site);
+        byte[] content = rendered.content().getBytes(StandardCharsets.UTF_8);
+
+        try {
+            if (!Files.exists(path)) {
+                return new Change(domain, path, content, rendered.hash(), null);
+            }
+            if (rendered.hash().equals(storedHash) && Files.size(path) == content.length) {
+                return null;
+            }
+            byte[] existing = Files.readAllBytes(path);
+            if (SiteTemplate.sha256Hex(existing).equals(rendered.hash())) {
+                return null;
+            }
+            return new Change(domain, path, content, rendered.hash(), existing);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** The indexed file of a site, which keeps its own name when it was adopted by import */
+    private static Path availablePath(String domain, Map<String, String> currentPaths) {
+        String path = currentPaths.get(domain);
+        return path != null ? Paths.get(path) : FastNginx.SITES_AVAILABLE.resolve(domain);
+    }
+
+    private static void rollback(List<Change> changes, Set<Path> createdLinks, Map<Path, Path> removedLinks,
+            Map<Path, byte[]> removedFiles) throws IOException {
+        PrivilegedHelper.Batch batch = new PrivilegedHelper.Batch();
+        for (Change c : changes) {
+            if (c.previous() == null) {
+                batch.unlink(c.path());
+            } else {
+                batch.write(c.path(), c.previous());
+            }
+        }
+        for (Path link : createdLinks) {
+            batch.unlink(link);
+        }
+        for (Map.Entry<Path, byte[]> file : removedFiles.entrySet()) {
+            batch.write(file.getKey(), file.getValue());
+        }
+        for (Map.Entry<Path, Path> link : removedLinks.entrySet()) {
+            batch.symlink(link.getKey(), link.getValue());
+        }
+        batch.run();
+    }
+
+    private static Map<String, Map<String, String>> loadManifest(Path file) throws IOException {
+        Map<String, Map<String, String>> entries = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            Map<String, String> entry = FastNginx.parseConfigLine(trimmed);
+            String domain = entry.get("domain");
+            if (domain == null || domain.isEmpty()) {
+                continue;
+            }
+            if (!Cli.isValidDomain(domain)) {
+                throw new IOException("Invalid domain in manifest: " + domain);
+            }
+            entries.put(domain, entry);
+        }
+        return entries;
+    }
+
+    /** Wall-clock timings per reconcile phase, also recorded in Metrics unless it was a dry run */
+    private static class Timer {
+        private final long start = System.nanoTime();
+        private long last = start;
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+        private final Metrics.Operation op = Metrics.operation("reconcile");
+
+        void lap(String phase) {
+            long now = System.nanoTime();
+            phases.merge(phase, now - last, Long::sum);
+            last = now;
+            op.lap(phase);
+        }
+
+        void report(boolean ok) {
+            if (ok) {
+                op.succeeded();
+            }
+            op.close();
+            report();
+        }
+
+        void report() {
+            System.out.println(FastNginx.BRIGHT_GREEN + "┌─── RECONCILE TIMINGS ───┐" + FastNginx.RESET);
+            phases.forEach((phase, nanos) -> System.out.printf(FastNginx.GREEN + "  %-10s" + FastNginx.RESET
+                    + "%9.1f ms%n", phase, nanos / 1_000_000.0));
+            System.out.printf(FastNginx.CYAN + "  %-10s" + FastNginx.RESET + "%9.1f ms%n", "total",
+                    (last - start) / 1_000_000.0);
+            System.out.println(FastNginx.BRIGHT_GREEN + "└─────────────────────────┘" + FastNginx.RESET);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces reload requests into a single validate-and-reload cycle.
+ *
+ * A request starts (or extends) a debounce window; when no further request
+ * arrives within the window, or once the oldest queued request has waited
+ * the maximum delay, one "nginx -t" and one reload run for the whole batch
+ * and every request's future completes with the same result.
+ *
+ * Tuned from .fastnginx_config:
+ *   reload.debounce_ms=250
+ *   reload.max_delay_ms=2000
+ *
+ * In the dense layout each cycle first rebuilds the shard files (see
+ * DenseLayout) and puts them back when the test fails.
+ *
+ * Each cycle is timed for Metrics. After a successful reload the workers
+ * that were running before it are watched in /proc until they have
+ * finished their open connections and exited, which is the drain time.
+ */
+public class ReloadScheduler {
+
+    static final long DEFAULT_DEBOUNCE_MS = 250;
+    static final long DEFAULT_MAX_DELAY_MS = 2000;
+    static final long DEFAULT_DRAIN_TIMEOUT_MS = 600_000;
+
+    /** Outcome of one validate-and-reload cycle, shared by all requests it covered */
+    public record Result(boolean validated, int exitCode, String output, int coalesced) {
+        public boolean ok() {
+            return validated && exitCode == 0;
+        }
+    }
+
+    private static ReloadScheduler shared;
+
+    private final long debounceNanos;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fastnginx-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<CompletableFuture<Result>> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduled;
+    private long firstRequestAt;
+    private long drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MS;
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong performed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public ReloadScheduler(long debounceMillis, long maxDelayMillis) {
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMillis, maxDelayMillis));
+    }
+
+    /** Process-wide scheduler configured from .fastnginx_config */
+    public static synchronized ReloadScheduler shared() {
+        if (shared == null) {
+            Settings settings;
+            try {
+                settings = Settings.load();
+            } catch (IOException e) {
+                settings = Settings.defaults();
+            }
+            shared = new ReloadScheduler(settings.getLong("reload.debounce_ms", DEFAULT_DEBOUNCE_MS),
+                    settings.getLong("reload.max_delay_ms", DEFAULT_MAX_DELAY_MS));
+            shared.drainTimeoutMillis = settings.getLong("metrics.drain_timeout_ms", DEFAULT_DRAIN_TIMEOUT_MS);
+        }
+        return shared;
+    }
+
+    /** Queues a reload; the future completes when the covering cycle finishes */
+    public synchronized CompletableFuture<Result> request() {
+        requested.incrementAndGet();
+        CompletableFuture<Result> future = new CompletableFuture<>();
+
+        long now = System.nanoTime();
+        if (pending.isEmpty()) {
+            firstRequestAt = now;
+        }
+        pending.add(future);
+
+        long fireAt = Math.min(now + debounceNanos, firstRequestAt + maxDelayNanos);
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = executor.schedule(this::flush, Math.max(0, fireAt - now), TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    /** Runs any queued cycle immediately and waits for it, e.g. before exit */
+    public void drain() {
+        List<CompletableFuture<Result>> waiting;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            waiting = new ArrayList<>(pending);
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            scheduled = executor.schedule(this::flush, 0, TimeUnit.NANOSECONDS);
+        }
+        CompletableFuture.allOf(waiting.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void flush() {
+        List<CompletableFuture<Result>> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            scheduled = null;
+        }
+
+        Result result;
+        try {
+            result = runCycle(batch.size());
+        } catch (IOException | RuntimeException e) {
+            // Every waiter must get an answer; a cycle that blew up counts as not validated
+            result = new Result(false, -1, String.valueOf(e), batch.size());
+        }
+
+        if (!result.ok()) {
+            failed.incrementAndGet();
+        }
+        for (CompletableFuture<Result> future : batch) {
+            future.complete(result);
+        }
+    }
+
+    private Result runCycle(int coalesced) throws IOException {
+        Metrics.count("fastnginx_reload_requests_total", "", coalesced);
+
+        // Dense layout: the shards nginx includes are rebuilt from the per-site links first
+        DenseLayout.Snapshot shards = null;
+        if (DenseLayout.enabled()) {
+            long syncStart = System.nanoTime();
+            shards = DenseLayout.sync();
+            Metrics.observe("fastnginx_phase_duration_seconds",
+                    Metrics.labels("operation", "reload", "phase", "shards"), System.nanoTime() - syncStart);
+        }
+
+        String phase = Metrics.labels("operation", "reload", "phase", "nginx_test");
+        long start = System.nanoTime();
+        PrivilegedHelper.Result test = PrivilegedHelper.validate();
+        String output = test.output();
+        int tested = test.exitCode();
+        Metrics.observe("fastnginx_phase_duration_seconds", phase, System.nanoTime() - start);
+        if (tested != 0) {
+            if (shards != null) {
+                // The caller reverts its site files; the shards on disk stay the last good ones
+                shards.restore();
+            }
+            Metrics.count("fastnginx_reloads_total", Metrics.labels("result", "test_failed"), 1);
+            return new Result(false, tested, output, coalesced);
+        }
+
+        performed.incrementAndGet();
+        Set<Integer> workers = Metrics.measuresDrains() ? workerPids() : Set.of();
+        long reloadStart = System.nanoTime();
+        PrivilegedHelper.Result reload = PrivilegedHelper.reload();
+        String reloadOutput = reload.output();
+        int exitCode = reload.exitCode();
+        Metrics.observe("fastnginx_phase_duration_seconds", Metrics.labels("operation", "reload", "phase", "reload"),
+                System.nanoTime() - reloadStart);
+        Metrics.count("fastnginx_reloads_total", Metrics.labels("result", exitCode == 0 ? "ok" : "reload_failed"), 1);
+        if (exitCode == 0) {
+            Metrics.set("fastnginx_last_reload_timestamp_seconds", System.currentTimeMillis() / 1000.0);
+            if (!workers.isEmpty()) {
+                Metrics.background(() -> trackDrain(workers, reloadStart));
+            }
+        }
+        return new Result(true, exitCode, reloadOutput, coalesced);
+    }
+
+    /** Current nginx workers; ones already shutting down belong to an earlier reload */
+    static Set<Integer> workerPids() {
+        Set<Integer> pids = new HashSet<>();
+        try {
+            for (Diagnostics.Proc p : Diagnostics.processes()) {
+                if (p.comm().equals("nginx") && p.cmdline().startsWith("nginx: worker process")
+                        && !p.cmdline().contains("shutting down")) {
+                    pids.add(p.pid());
+                }
+            }
+        } catch (IOException e) {
+            // No /proc: drain time is not measured
+        }
+        return pids;
+    }
+
+    /** Whether a process exists and has not exited; a zombie only waits to be reaped */
+    private static boolean running(int pid) {
+        try {
+            String stat = Files.readString(Paths.get("/proc", String.valueOf(pid), "stat"));
+            // The state follows the parenthesised command name
+            return stat.charAt(stat.lastIndexOf(')') + 2) != 'Z';
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /** Polls until every old worker has exited, backing off from 10 ms to 500 ms between checks */
+    private void trackDrain(Set<Integer> workers, long since) {
+        Set<Integer> left = new HashSet<>(workers);
+        long deadline = since + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        long pause = 10;
+        while (true) {
+            left.removeIf(pid -> !running(pid));
+            long now = System.nanoTime();
+            if (left.isEmpty()) {
+                Metrics.observe("fastnginx_reload_drain_seconds", "", now - since);
+                return;
+            }
+            if (now > deadline) {
+                Metrics.count("fastnginx_reload_drain_timeouts_total", "", 1);
+                return;
+            }
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                return;
+            }
+            pause = Math.min(pause * 2, 500);
+        }
+    }
+
+    public long requested() {
+        return requested.get();
+    }
+
+    public long performed() {
+        return performed.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+}
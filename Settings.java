@@ -0,0 +1,76 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Reads .fastnginx_config. The first line is the system path written by
+ * initializeSystem(); any following "key=value" lines are optional tuning
+ * settings. Blank lines and lines starting with '#' are ignored.
+ */
+public final class Settings {
+
+    private final String basePath;
+    private final Map<String, String> values;
+
+    private Settings(String basePath, Map<String, String> values) {
+        this.basePath = basePath;
+        this.values = values;
+    }
+
+    public static Settings load() throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(FastNginx.CONFIG_FILE));
+        if (lines.isEmpty()) {
+            throw new IOException("Configuration file corrupted");
+        }
+
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] kv = trimmed.split("=", 2);
+            if (kv.length == 2) {
+                values.put(kv[0].trim(), kv[1].trim());
+            }
+        }
+        return new Settings(lines.get(0).trim(), values);
+    }
+
+    /** Settings with every key at its default, for when the config file is unreadable */
+    public static Settings defaults() {
+        return new Settings("", Map.of());
+    }
+
+    public String basePath() {
+        return basePath;
+    }
+
+    public String get(String key, String defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    /** Every "prefix.rest=value" setting as rest -> value, in file order */
+    public Map<String, String> section(String prefix) {
+        Map<String, String> section = new LinkedHashMap<>();
+        values.forEach((key, value) -> {
+            if (key.startsWith(prefix + ".")) {
+                section.put(key.substring(prefix.length() + 1), value);
+            }
+        });
+        return section;
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            FastNginx.printStatus("Ignoring invalid value for " + key + ": " + value, "warning");
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * http-level directives shared by all FastNginx sites, kept in
+ * /etc/nginx/conf.d/fastnginx.conf (included by the stock nginx.conf and by
+ * SiteValidator's isolated harness). Site files may only reference what is
+ * defined here, never define it themselves, so definitions exist once.
+ */
+public final class SharedConfig {
+
+    static final Path PATH = Paths.get("/etc/nginx/conf.d/fastnginx.conf");
+    static final Path NGINX_CONF = Paths.get("/etc/nginx/nginx.conf");
+
+    // What nginx uses when nothing is set; the bucket defaults to one cache line
+    private static final int SERVER_NAMES_MAX = 512;
+    private static final int MAP_MAX = 2048;
+    private static final int CACHE_LINE = 64;
+    private static final int POINTER = 8;
+    private static final String SIZING_FILE = "hash_sizing";
+
+    // Last fit of the exact-name hash; a new set of names with the same shape re-checks it in one pass
+    private static Sizing lastSizing;
+
+    private SharedConfig() {
+    }
+
+    /** max_size and bucket_size of one nginx hash */
+    record HashSize(int maxSize, int bucketSize) {
+    }
+
+    /** A fitted size, the table size nginx's search stops at, and the name count and longest element */
+    private record Sizing(int count, int longest, int table, HashSize size) {
+    }
+
+    /** Names as ngx_hash_init sees them: key, element size, and the largest element */
+    private record Keys(long[] keys, int[] sizes, int longest) {
+
+        static Keys of(List<String> names) {
+            long[] keys = new long[names.size()];
+            int[] sizes = new int[names.size()];
+            int longest = 0;
+            for (int i = 0; i < keys.length; i++) {
+                String name = names.get(i);
+                long key = 0;
+                for (int c = 0; c < name.length(); c++) {
+                    key = key * 31 + (name.charAt(c) & 0xff);
+                }
+                keys[i] = key;
+                sizes[i] = elementSize(name.length());
+                longest = Math.max(longest, sizes[i]);
+            }
+            return new Keys(keys, sizes, longest);
+        }
+    }
+
+    static String render(Collection<CacheProfile.Zone> zones, Collection<TrafficProfile.Zone> limits,
+                         String statusListen, List<String> tuning) {
+        StringBuilder conf = new StringBuilder();
+        conf.append("# FastNginx shared http context - generated, do not edit\n\n");
+
+        // map_hash_* only applies to maps parsed after it, so this comes first
+        if (!tuning.isEmpty()) {
+            conf.append("# Hash sizes computed from the indexed domains\n");
+            tuning.forEach(line -> conf.append(line).append('\n'));
+            conf.append('\n');
+        }
+
+        // Only ask the backend to upgrade when the client did; plain requests
+        // send an empty Connection header and reuse pooled keepalive connections
+        conf.append("map $http_upgrade $fastnginx_connection_upgrade {\n");
+        conf.append("    default upgrade;\n");
+        conf.append("    ''      '';\n");
+        conf.append("}\n");
+
+        // combined plus timings, so the live monitor and the analyzer read the same lines
+        conf.append("\nlog_format fastnginx '$remote_addr - $remote_user [$time_local] \"$request\" '\n");
+        conf.append("                     '$status $body_bytes_sent \"$http_referer\" \"$http_user_agent\" '\n");
+        conf.append("                     'rt=$request_time urt=\"$upstream_response_time\" ua=\"$upstream_addr\" host=$host';\n");
+
+        // Local-only counters for the live monitor
+        conf.append("\nserver {\n");
+        conf.append("    listen ").append(statusListen).append(";\n");
+        conf.append("    access_log off;\n");
+        conf.append("    location = ").append(LiveMonitor.STATUS_PATH).append(" {\n");
+        conf.append("        stub_status;\n");
+        conf.append("        allow 127.0.0.1;\n");
+        conf.append("        allow ::1;\n");
+        conf.append("        deny all;\n");
+        conf.append("    }\n");
+        conf.append("}\n");
+
+        if (!zones.isEmpty()) {
+            conf.append("\n# Proxy cache zones, one per cached site\n");
+            for (CacheProfile.Zone zone : zones) {
+                conf.append(CacheProfile.directive(zone)).append('\n');
+            }
+        }
+
+        if (!limits.isEmpty()) {
+            conf.append("\n# Rate and connection limit zones, shared by the sites of each traffic profile\n");
+            for (TrafficProfile.Zone zone : limits) {
+                conf.append(TrafficProfile.directive(zone)).append('\n');
+            }
+        }
+        return conf.toString();
+    }
+
+    /**
+     * Cache zones of every indexed site, with pending changes applied on top:
+     * a pending record replaces the stored one, a null value drops the domain.
+     */
+    static List<CacheProfile.Zone> zones(ConfigJournal store, Map<String, Map<String, String>> pending)
+            throws IOException {
+        String root = Settings.load().get("cache.root", CacheProfile.DEFAULT_ROOT);
+        Map<String, CacheProfile.Zone> zones = new TreeMap<>();
+        store.forEach(row -> {
+            if (row.get("cache") != null && !pending.containsKey(row.domain())) {
+                CacheProfile.Zone zone = CacheProfile.zone(row.toMap(), root);
+                if (zone != null) {
+                    zones.put(row.domain(), zone);
+                }
+            }
+        });
+        pending.forEach((domain, record) -> {
+            CacheProfile.Zone zone = record == null ? null : CacheProfile.zone(record, root);
+            if (zone != null) {
+                zones.put(domain, zone);
+            }
+        });
+        return new ArrayList<>(zones.values());
+    }
+
+    /** Limit zones for the sites of the index with a traffic profile, pending changes applied like {@link #zones} */
+    static List<TrafficProfile.Zone> limits(ConfigJournal store, Map<String, Map<String, String>> pending) {
+        List<Map<String, String>> records = new ArrayList<>();
+        store.forEach(row -> {
+            if (row.get("traffic") != null && !pending.containsKey(row.domain())) {
+                records.add(row.toMap());
+            }
+        });
+        pending.values().stream().filter(Objects::nonNull).forEach(records::add);
+        return TrafficProfile.zones(records);
+    }
+
+    /** Names nginx will load: active sites of the index, with pending changes applied like {@link #zones} */
+    static List<String> domains(ConfigJournal store, Map<String, Map<String, String>> pending) {
+        List<String> domains = new ArrayList<>();
+        store.forEach(row -> {
+            if (row.status().equals("active") && !pending.containsKey(row.domain())) {
+                domains.add(row.domain());
+            }
+        });
+        pending.forEach((domain, record) -> {
+            if (record != null && !"inactive".equals(record.get("status"))) {
+                domains.add(domain);
+            }
+        });
+        return domains;
+    }
+
+    /**
+     * server_names_hash_* (and map_hash_* for the dense layout's $host maps)
+     * for the given domains. Only values above nginx's defaults are returned,
+     * so small installs keep a file without them.
+     */
+    static List<String> hashTuning(Collection<String> domains, boolean maps) {
+        HashSize size = cachedFit(Keys.of(exactNames(domains)));
+        List<String> lines = new ArrayList<>();
+        addTuning(lines, "server_names_hash", size, SERVER_NAMES_MAX);
+        if (maps) {
+            // Every $host map holds a subset of the names, and what builds for all of them builds for a subset
+            addTuning(lines, "map_hash", size, MAP_MAX);
+        }
+        return lines;
+    }
+
+    private static void addTuning(List<String> lines, String hash, HashSize size, int defaultMax) {
+        if (size.maxSize() > defaultMax) {
+            lines.add(hash + "_max_size " + size.maxSize() + ";");
+        }
+        if (size.bucketSize() > CACHE_LINE) {
+            lines.add(hash + "_bucket_size " + size.bucketSize() + ";");
+        }
+    }
+
+    /** Names that go into nginx's exact-match hash; wildcards get their own, much smaller hashes */
+    private static List<String> exactNames(Collection<String> domains) {
+        Set<String> names = new LinkedHashSet<>();
+        for (String domain : domains) {
+            String name = domain.toLowerCase(Locale.ROOT);
+            if (name.startsWith(".")) {
+                name = name.substring(1);
+            }
+            if (!name.startsWith("*.") && !name.endsWith(".*")) {
+                names.add(name);
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Smallest sizes with which nginx can build a hash of these names: the
+     * bucket must hold the longest name (two of them for more than a few
+     * dozen names), then max_size doubles until nginx's own search (see
+     * {@link #builds}) finds a table size; past 8 slots per name a bigger
+     * bucket is cheaper than a bigger table.
+     */
+    static HashSize fit(List<String> names, int defaultMax) {
+        return fit(Keys.of(names), defaultMax).size();
+    }
+
+    private static Sizing fit(Keys names, int defaultMax) {
+        long[] keys = names.keys();
+        int[] sizes = names.sizes();
+        int longest = names.longest();
+
+        // One name per bucket needs a collision-free table, hopeless beyond a few dozen names
+        int bucket = CACHE_LINE;
+        while (bucket - POINTER < (keys.length > 64 ? 2 * longest : longest)) {
+            bucket *= 2;
+        }
+        long limit = Math.max(defaultMax, 8L * keys.length);
+        while (true) {
+            for (long max = defaultMax; max <= limit; max *= 2) {
+                int table = builds(keys, sizes, (int) max, bucket);
+                if (table > 0) {
+                    return new Sizing(keys.length, longest, table, new HashSize((int) max, bucket));
+                }
+            }
+            bucket *= 2;
+        }
+    }
+
+    /**
+     * The server_names hash fit, reusing the last one (kept in memory and
+     * in nginx_data) while the name count and longest name are unchanged.
+     * The search costs O(max_size * names); checking that the table size
+     * the last search stopped at still has no overflowing bucket costs one
+     * pass over the names, and nginx's own search then stops at or before it.
+     */
+    private static synchronized HashSize cachedFit(Keys names) {
+        if (lastSizing == null) {
+            lastSizing = loadSizing();
+        }
+        Sizing last = lastSizing;
+        if (last != null && last.count() == names.keys().length && last.longest() == names.longest()
+                && fitsAt(names.keys(), names.sizes(), new int[last.table()], last.table(),
+                        last.size().bucketSize() - POINTER)) {
+            return last.size();
+        }
+        lastSizing = fit(names, SERVER_NAMES_MAX);
+        saveSizing(lastSizing);
+        return lastSizing.size();
+    }
+
+    private static Sizing loadSizing() {
+        try {
+            String[] f = Files.readString(FastNginx.dataDirPath().resolve(SIZING_FILE)).trim().split(" ");
+            return new Sizing(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]),
+                    new HashSize(Integer.parseInt(f[3]), Integer.parseInt(f[4])));
+        } catch (IOException | RuntimeException e) {
+            // Missing or unreadable: the next fit writes it again
+            return null;
+        }
+    }
+
+    private static void saveSizing(Sizing sizing) {
+        try {
+            Path file = FastNginx.dataDirPath().resolve(SIZING_FILE);
+            if (Files.isDirectory(file.getParent())) {
+                Path tmp = Files.createTempFile(file.getParent(), SIZING_FILE, ".tmp");
+                Files.writeString(tmp, sizing.count() + " " + sizing.longest() + " " + sizing.table() + " "
+                        + sizing.size().maxSize() + " " + sizing.size().bucketSize() + "\n");
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            // Only a cache: the search runs again next time
+        }
+    }
+
+    /** NGX_HASH_ELT_SIZE: value pointer, length and the name padded to a pointer */
+    private static int elementSize(int length) {
+        return POINTER + (length + 2 + POINTER - 1) / POINTER * POINTER;
+    }
+
+    /** ngx_hash_init's search for a table size in which no bucket overflows; 0 when none up to maxSize */
+    private static int builds(long[] keys, int[] sizes, int maxSize, int bucketSize) {
+        int capacity = bucketSize - POINTER;
+        int start = Math.max(1, keys.length / (capacity / (2 * POINTER)));
+        if (maxSize > 10000 && keys.length > 0 && maxSize / keys.length < 100) {
+            start = maxSize - 1000;
+        }
+        int[] used = new int[maxSize];
+        for (int size = start; size <= maxSize; size++) {
+            if (fitsAt(keys, sizes, used, size, capacity)) {
+                return size;
+            }
+        }
+        return 0;
+    }
+
+    /** Whether a table of exactly this many slots has no overflowing bucket; used is scratch space */
+    private static boolean fitsAt(long[] keys, int[] sizes, int[] used, int size, int capacity) {
+        Arrays.fill(used, 0, size, 0);
+        for (int i = 0; i < keys.length; i++) {
+            int slot = (int) Long.remainderUnsigned(keys[i], size);
+            used[slot] += sizes[i];
+            if (used[slot] > capacity) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Rewrites the shared file for the index with pending changes applied; returns whether it changed */
+    static boolean sync(ConfigJournal store, Map<String, Map<String, String>> pending) throws IOException {
+        return sync(zones(store, pending), limits(store, pending), domains(store, pending));
+    }
+
+    /** Writes the shared file if its content changed; returns whether it did */
+    static synchronized boolean sync(List<CacheProfile.Zone> zones, List<TrafficProfile.Zone> limits,
+                                     Collection<String> domains) throws IOException {
+        List<String> tuning = new ArrayList<>(hashTuning(domains, DenseLayout.enabled()));
+        // nginx rejects a directive set twice; a value in nginx.conf wins and "dense" reports it
+        Set<String> preset = presetInNginxConf();
+        tuning.removeIf(line -> preset.contains(line.substring(0, line.indexOf(' '))));
+        String content = render(zones, limits,
+                Settings.load().get("status.listen", LiveMonitor.DEFAULT_STATUS_LISTEN), tuning);
+        if (Files.exists(PATH) && Files.readString(PATH).equals(content)) {
+            return false;
+        }
+        PrivilegedHelper.Batch batch = new PrivilegedHelper.Batch();
+        if (!Files.isDirectory(PATH.getParent())) {
+            batch.mkdir(PATH.getParent());
+        }
+        batch.write(PATH, content).run();
+        return true;
+    }
+
+    /** Hash directives nginx.conf sets itself; FastNginx must not set them again */
+    static Set<String> presetInNginxConf() {
+        return presetIn(NGINX_CONF);
+    }
+
+    /** Hash size directives an nginx.conf already sets, which the shared file must leave out */
+    static Set<String> presetIn(Path nginxConf) {
+        Set<String> preset = new HashSet<>();
+        try {
+            for (String line : Files.readAllLines(nginxConf)) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith("server_names_hash_") || trimmed.startsWith("map_hash_")) {
+                    preset.add(trimmed.split("[\\s;]+")[0]);
+                }
+            }
+        } catch (IOException e) {
+            // No readable nginx.conf: nothing to collide with
+        }
+        return preset;
+    }
+
+    /** One-line total of what the cache zones need, for sizing the host */
+    static String cacheSummary(List<CacheProfile.Zone> zones) {
+        long shm = 0;
+        long disk = 0;
+        for (CacheProfile.Zone zone : zones) {
+            shm += zone.keysZoneBytes();
+            disk += zone.maxSizeBytes();
+        }
+        return String.format("%d cache zone(s): %.0f MB shared memory, %.2f GB disk",
+                zones.size(), shm / (1024.0 * 1024), disk / (1024.0 * 1024 * 1024));
+    }
+
+    /** One-line total of what the limit zones need */
+    static String limitSummary(List<TrafficProfile.Zone> limits) {
+        long shm = 0;
+        StringJoiner detail = new StringJoiner(", ");
+        for (TrafficProfile.Zone zone : limits) {
+            shm += zone.bytes();
+            detail.add(String.format("%s %d MB for %d clients x %d B", zone.name(), zone.bytes() / (1024 * 1024),
+                    zone.states(), zone.stateBytes()));
+        }
+        return String.format("%d limit zone(s): %.0f MB shared memory (%s)",
+                limits.size(), shm / (1024.0 * 1024), detail);
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Adopts hand-written site files from sites-available into the index.
+ *
+ * Files are read and tokenized in parallel on the common fork/join pool,
+ * whose work stealing keeps every core busy when file sizes vary. Each
+ * file becomes one index record named after its first server_name:
+ * proxy_pass (directly or through an upstream block in the same file) makes
+ * it a proxied site, otherwise a root makes it a static one. A file is
+ * active when a symlink in sites-enabled points at it.
+ *
+ * Files already in the index are left alone; everything else that cannot be
+ * mapped to a record is reported with the reason instead of guessed at.
+ */
+final class SiteImporter {
+
+    /** What one file yielded: a record, or the reason there is none */
+    record Outcome(Path file, Map<String, String> entry, String problem) {
+    }
+
+    /** Result of a scan; nothing is written until the records are stored */
+    record Report(List<Map<String, String>> imported, List<Outcome> failed, int files, int alreadyIndexed,
+                  long nanos) {
+
+        String summary() {
+            return String.format("Scanned %d file(s) in %.0f ms: %d importable, %d already indexed, %d not understood",
+                    files, nanos / 1_000_000.0, imported.size(), alreadyIndexed, failed.size());
+        }
+    }
+
+    private SiteImporter() {
+    }
+
+    static Report scan(ConfigJournal store) throws IOException {
+        return scan(store, FastNginx.SITES_AVAILABLE, FastNginx.SITES_ENABLED);
+    }
+
+    static Report scan(ConfigJournal store, Path availableDir, Path enabledDir) throws IOException {
+        long start = System.nanoTime();
+
+        Set<String> knownPaths = new HashSet<>();
+        Map<String, String> knownDomains = new HashMap<>();
+        store.forEach(row -> {
+            knownDomains.put(row.domain(), row.get("path"));
+            if (row.get("path") != null) {
+                knownPaths.add(row.get("path"));
+            }
+        });
+
+        // Which files are enabled: real path of every symlink target in sites-enabled
+        List<Outcome> failed = new ArrayList<>();
+        Set<Path> enabled = new HashSet<>();
+        try (DirectoryStream<Path> links = Files.newDirectoryStream(enabledDir)) {
+            for (Path link : links) {
+                if (ignored(link)) {
+                    continue;
+                }
+                if (!Files.isSymbolicLink(link)) {
+                    if (!knownPaths.contains(link.toString())) {
+                        failed.add(new Outcome(link, null,
+                                "regular file in sites-enabled; move it to sites-available and link it to import"));
+                    }
+                    continue;
+                }
+                try {
+                    enabled.add(link.toRealPath());
+                } catch (IOException e) {
+                    failed.add(new Outcome(link, null, "dangling symlink"));
+                }
+            }
+        }
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(availableDir)) {
+            files = list.filter(f -> !ignored(f) && Files.isRegularFile(f)).sorted().toList();
+        }
+        int alreadyIndexed = 0;
+        List<Path> candidates = new ArrayList<>(files.size());
+        for (Path file : files) {
+            if (knownPaths.contains(file.toString())) {
+                alreadyIndexed++;
+            } else {
+                candidates.add(file);
+            }
+        }
+
+        List<Outcome> outcomes = candidates.parallelStream().map(file -> read(file, enabled)).toList();
+
+        // Sequential pass in path order so duplicate domains resolve the same way every run
+        List<Map<String, String>> imported = new ArrayList<>();
+        Map<String, Path> claimed = new HashMap<>();
+        for (Outcome o : outcomes) {
+            if (o.entry() == null) {
+                failed.add(o);
+                continue;
+            }
+            String domain = o.entry().get("domain");
+            if (knownDomains.containsKey(domain)) {
+                failed.add(new Outcome(o.file(), null, domain + " is already indexed from " + knownDomains.get(domain)));
+            } else if (claimed.containsKey(domain)) {
+                failed.add(new Outcome(o.file(), null, domain + " is also defined in " + claimed.get(domain)));
+            } else {
+                claimed.put(domain, o.file());
+                imported.add(o.entry());
+            }
+        }
+        return new Report(imported, failed, files.size(), alreadyIndexed, System.nanoTime() - start);
+    }
+
+    /** Editor backups, package manager leftovers and hidden files */
+    static boolean ignored(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(".") || name.endsWith("~") || name.endsWith(".bak")
+                || name.endsWith(".swp") || name.contains(".dpkg-");
+    }
+
+    static Outcome read(Path file, Set<Path> enabled) {
+        try {
+            return read(file, Files.readAllBytes(file), enabled);
+        } catch (IOException e) {
+            return new Outcome(file, null, "unreadable: " + e.getMessage());
+        }
+    }
+
+    /** Maps already-read file content to a record; a file that breaks the mapping only fails itself */
+    static Outcome read(Path file, byte[] bytes, Set<Path> enabled) {
+        try {
+            return map(file, bytes, enabled);
+        } catch (RuntimeException e) {
+            return new Outcome(file, null, "unsupported config: " + e);
+        }
+    }
+
+    private static Outcome map(Path file, byte[] bytes, Set<Path> enabled) {
+        List<NginxConfig.Directive> top;
+        try {
+            top = NginxConfig.parse(new String(bytes, StandardCharsets.UTF_8));
+        } catch (NginxConfig.ParseException e) {
+            return new Outcome(file, null, e.getMessage());
+        }
+
+        Map<String, NginxConfig.Directive> upstreams = new HashMap<>();
+        List<NginxConfig.Directive> servers = new ArrayList<>();
+        for (NginxConfig.Directive d : top) {
+            switch (d.name()) {
+                case "upstream" -> upstreams.put(d.arg(0), d);
+                case "server" -> servers.add(d);
+                default -> {
+                }
+            }
+        }
+        if (servers.isEmpty()) {
+            return new Outcome(file, null, "no server block");
+        }
+
+        String domain = null;
+        for (NginxConfig.Directive server : servers) {
+            for (NginxConfig.Directive names : server.children("server_name")) {
+                for (String name : names.args()) {
+                    if (domain == null && !name.equals("_") && Cli.isValidDomain(name)) {
+                        domain = name;
+                    }
+                }
+            }
+        }
+        if (domain == null) {
+            return new Outcome(file, null, "no usable server_name");
+        }
+
+        // Every server block for the domain counts: a redirect on :80 plus the real site on :443 is common
+        Set<Integer> ports = new TreeSet<>();
+        String proxyPass = null;
+        String root = null;
+        for (NginxConfig.Directive server : servers) {
+            for (NginxConfig.Directive listen : server.children("listen")) {
+                int port = listenPort(listen.arg(0));
+                if (port > 0) {
+                    ports.add(port);
+                }
+            }
+            if (server.children("listen").isEmpty()) {
+                ports.add(80);
+            }
+            if (root == null && server.first("root") != null) {
+                root = server.first("root").arg(0);
+            }
+            for (NginxConfig.Directive location : server.children("location")) {
+                NginxConfig.Directive pass = location.first("proxy_pass");
+                List<String> args = location.args();
+                boolean slash = !args.isEmpty() && "/".equals(args.get(args.size() - 1));
+                if (pass != null && (proxyPass == null || slash)) {
+                    proxyPass = pass.arg(0);
+                }
+                if (location.first("root") != null && (root == null || slash)) {
+                    root = location.first("root").arg(0);
+                }
+            }
+            if (proxyPass == null && server.first("proxy_pass") != null) {
+                proxyPass = server.first("proxy_pass").arg(0);
+            }
+        }
+
+        Map<String, String> entry = new LinkedHashMap<>();
+        entry.put("domain", domain);
+        if (proxyPass != null) {
+            String problem = addBackends(proxyPass, upstreams, entry);
+            if (problem != null) {
+                return new Outcome(file, null, problem);
+            }
+        } else if (root != null && !root.contains("$")) {
+            entry.put("type", "static");
+            entry.put("template", "static");
+            entry.put("root", root);
+        } else {
+            return new Outcome(file, null, "neither proxy_pass nor a usable root");
+        }
+
+        boolean active;
+        try {
+            active = enabled.contains(file.toRealPath());
+        } catch (IOException e) {
+            active = false;
+        }
+        entry.put("ip", "127.0.0.1");
+        entry.put("path", file.toString());
+        entry.put("status", active ? "active" : "inactive");
+        if (!ports.isEmpty()) {
+            entry.put("listen", String.join("|", ports.stream().map(String::valueOf).toList()));
+        }
+        try {
+            entry.put("created", String.valueOf(Files.getLastModifiedTime(file).toMillis()));
+        } catch (IOException e) {
+            entry.put("created", String.valueOf(System.currentTimeMillis()));
+        }
+        // Hash of the file as found: it differs from any rendered template, so the first edit rewrites it
+        entry.put("hash", SiteTemplate.sha256Hex(bytes));
+        return new Outcome(file, entry, null);
+    }
+
+    /** Fills port, backends and lb from a proxy_pass target; returns a problem or null */
+    private static String addBackends(String target, Map<String, NginxConfig.Directive> upstreams,
+                                      Map<String, String> entry) {
+        if (target.contains("$")) {
+            return "proxy_pass uses variables: " + target;
+        }
+        int scheme = target.indexOf("://");
+        if (scheme < 0) {
+            return "proxy_pass target not understood: " + target;
+        }
+        boolean https = target.startsWith("https");
+        String hostPort = target.substring(scheme + 3);
+        if (hostPort.startsWith("unix:")) {
+            return "proxy_pass to a unix socket: " + target;
+        }
+        int slash = hostPort.indexOf('/');
+        if (slash >= 0) {
+            hostPort = hostPort.substring(0, slash);
+        }
+
+        List<String> backends = new ArrayList<>();
+        String lb = "round_robin";
+        NginxConfig.Directive upstream = upstreams.get(hostPort);
+        if (upstream != null) {
+            for (NginxConfig.Directive server : upstream.children("server")) {
+                String address = server.arg(0);
+                if (address != null && !address.startsWith("unix:") && !server.args().contains("down")) {
+                    backends.add(withPort(address, https));
+                }
+            }
+            for (String method : List.of("least_conn", "ip_hash", "hash")) {
+                if (upstream.first(method) != null) {
+                    lb = method;
+                }
+            }
+            if (backends.isEmpty()) {
+                return "upstream " + hostPort + " has no usable servers";
+            }
+        } else {
+            backends.add(withPort(hostPort, https));
+        }
+
+        String joined = String.join("|", backends);
+        String error = Upstream.validate(joined);
+        if (error != null) {
+            return error;
+        }
+        String port = Upstream.primaryPort(joined);
+        entry.put("type", "proxy");
+        entry.put("template", Templates.DEFAULT);
+        entry.put("port", port);
+        if (!joined.equals("127.0.0.1:" + port)) {
+            entry.put("backends", joined);
+        }
+        if (!lb.equals("round_robin")) {
+            entry.put("lb", lb);
+        }
+        return null;
+    }
+
+    private static String withPort(String address, boolean https) {
+        int colon = address.lastIndexOf(':');
+        boolean hasPort = colon > 0 && !address.endsWith("]") && (address.startsWith("[") || address.indexOf(':') == colon);
+        return hasPort ? address : address + (https ? ":443" : ":80");
+    }
+
+    /** Port of a listen argument: "80", "127.0.0.1:8080", "[::]:443"; 0 for unix sockets */
+    static int listenPort(String listen) {
+        if (listen == null || listen.startsWith("unix:")) {
+            return 0;
+        }
+        String port = listen;
+        int colon = listen.lastIndexOf(':');
+        if (colon >= 0 && !listen.endsWith("]")) {
+            port = listen.substring(colon + 1);
+        }
+        if (port.matches("\\d{1,5}")) {
+            return Integer.parseInt(port);
+        }
+        // An address without a port listens on 80
+        return colon >= 0 || listen.contains(".") || listen.equals("localhost") ? 80 : 0;
+    }
+}
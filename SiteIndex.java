@@ -0,0 +1,363 @@
+import java.util.*;
+
+/**
+ * In-memory search over the registry for the configuration manager.
+ *
+ * Domains are kept sorted by their labels in reverse (com.example.tenant.a),
+ * which lays a reversed-label trie out flat: every node's subtree is one
+ * contiguous range found with two binary searches, so "*.tenant.example.com"
+ * costs the same on 500 sites as on 500k. A second ordering by domain serves
+ * prefixes ("shop*"). Port, status and type sit in parallel arrays and are
+ * checked while a page fills, so a query only touches the rows it pages
+ * through. The index is a snapshot: rebuild it when version() falls behind
+ * the journal's.
+ *
+ * Query syntax, space separated, all terms must match:
+ *   shop          domains starting with shop (same as shop*)
+ *   *.example.com subdomains of example.com
+ *   .example.com  example.com and its subdomains, as in server_name
+ *   shop*.eu      prefix and suffix together; one * at most
+ *   port:3000  status:active|inactive  type:proxy|static
+ */
+final class SiteIndex {
+
+    /** One page of matches and where the next one starts, or -1 after the last */
+    record Page(List<String> domains, int next) {
+    }
+
+    /** A parsed query; see the class comment for the syntax */
+    record Query(String head, String tail, boolean zone, int port, String status, String type) {
+
+        static final Query ALL = new Query("", "", false, -1, null, null);
+
+        static Query parse(String text) {
+            String pattern = null;
+            int port = -1;
+            String status = null;
+            String type = null;
+            for (String term : text.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+                if (term.isEmpty()) {
+                    continue;
+                }
+                int colon = term.indexOf(':');
+                String key = colon < 0 ? "" : term.substring(0, colon);
+                String value = term.substring(colon + 1);
+                switch (key) {
+                    case "port" -> {
+                        try {
+                            port = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Invalid port: " + value);
+                        }
+                    }
+                    case "status" -> {
+                        if (!value.equals("active") && !value.equals("inactive")) {
+                            throw new IllegalArgumentException("Status must be active or inactive");
+                        }
+                        status = value;
+                    }
+                    case "type" -> type = value;
+                    case "" -> {
+                        if (pattern != null) {
+                            throw new IllegalArgumentException("Only one domain pattern per query");
+                        }
+                        pattern = term;
+                    }
+                    default -> throw new IllegalArgumentException("Unknown filter: " + key);
+                }
+            }
+            if (pattern == null || pattern.equals("*")) {
+                return new Query("", "", false, port, status, type);
+            }
+            int star = pattern.indexOf('*');
+            if (star != pattern.lastIndexOf('*')) {
+                throw new IllegalArgumentException("Only one * per pattern");
+            }
+            if (star >= 0) {
+                return new Query(pattern.substring(0, star), pattern.substring(star + 1), false, port, status, type);
+            }
+            if (pattern.startsWith(".")) {
+                return new Query("", pattern.substring(1), true, port, status, type);
+            }
+            return new Query(pattern, "", false, port, status, type);
+        }
+
+        private boolean filtered() {
+            return port >= 0 || status != null || type != null;
+        }
+    }
+
+    private static final char SEPARATOR = '\u0001';
+    private static final int MAX_PORT = 65535;
+
+    private final long version;
+    // Indexed by position in reversed-label order
+    private final String[] domains;
+    private final String[] names;
+    private final String[] keys;
+    private final int[] ports;
+    private final boolean[] active;
+    private final String[] types;
+    // Positions sorted by domain
+    private final int[] byName;
+    // Positions grouped by port, in domain order within each; the rows for
+    // port p are [portStarts[p + 1], portStarts[p + 2]), rows without one come first
+    private final int[] byPort;
+    private final int[] portStarts;
+
+    private static final class Entry {
+        final String domain;
+        final String name;
+        final String key;
+        final int port;
+        final boolean active;
+        final String type;
+        int position;
+
+        Entry(String domain, String name, String key, int port, boolean active, String type) {
+            this.domain = domain;
+            this.name = name;
+            this.key = key;
+            this.port = port;
+            this.active = active;
+            this.type = type;
+        }
+    }
+
+    private SiteIndex(long version, Entry[] sortedByName) {
+        this.version = version;
+        Entry[] entries = sortedByName.clone();
+        Arrays.sort(entries, Comparator.comparing(e -> e.key));
+        int n = entries.length;
+        domains = new String[n];
+        names = new String[n];
+        keys = new String[n];
+        ports = new int[n];
+        active = new boolean[n];
+        types = new String[n];
+        // A handful of distinct types; rows share one instance each
+        Map<String, String> typeNames = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            Entry e = entries[i];
+            e.position = i;
+            domains[i] = e.domain;
+            names[i] = e.name;
+            keys[i] = e.key;
+            ports[i] = e.port;
+            active[i] = e.active;
+            types[i] = typeNames.computeIfAbsent(e.type, t -> t);
+        }
+        byName = new int[n];
+        for (int i = 0; i < n; i++) {
+            byName[i] = sortedByName[i].position;
+        }
+
+        portStarts = new int[MAX_PORT + 3];
+        for (int port : ports) {
+            portStarts[port + 2]++;
+        }
+        for (int b = 1; b < portStarts.length; b++) {
+            portStarts[b] += portStarts[b - 1];
+        }
+        byPort = new int[n];
+        int[] next = portStarts.clone();
+        for (int i : byName) {
+            byPort[next[ports[i] + 1]++] = i;
+        }
+    }
+
+    /** Snapshot of every record in the journal */
+    static SiteIndex build(ConfigJournal store) {
+        List<Entry> entries = new ArrayList<>(store.size());
+        long version = store.version();
+        store.forEach(record -> {
+            String domain = record.domain();
+            String name = domain.toLowerCase(Locale.ROOT);
+            entries.add(new Entry(domain, name.equals(domain) ? domain : name, reverseLabels(name),
+                    parsePort(record.get("port")), "active".equals(record.status()),
+                    Objects.requireNonNullElse(record.get("type"), "").toLowerCase(Locale.ROOT)));
+        });
+        Entry[] sorted = entries.toArray(new Entry[0]);
+        Arrays.sort(sorted, Comparator.comparing(e -> e.name));
+        return new SiteIndex(version, sorted);
+    }
+
+    /** Journal version the snapshot was taken at */
+    long version() {
+        return version;
+    }
+
+    int size() {
+        return domains.length;
+    }
+
+    /** Registered spelling of domain, compared case-insensitively, or null */
+    String find(String domain) {
+        String key = reverseLabels(domain.trim().toLowerCase(Locale.ROOT));
+        int i = Arrays.binarySearch(keys, key);
+        return i >= 0 ? domains[i] : null;
+    }
+
+    /** Up to limit matches starting at cursor (0 for the first page) */
+    Page page(Query query, int cursor, int limit) {
+        Scan scan = new Scan(query);
+        List<String> page = new ArrayList<>(limit);
+        int pos = scan.from + Math.max(cursor, 0);
+        for (; pos < scan.to && page.size() < limit; pos++) {
+            int i = scan.at(pos);
+            if (scan.matches(i)) {
+                page.add(domains[i]);
+            }
+        }
+        while (pos < scan.to && !scan.matches(scan.at(pos))) {
+            pos++;
+        }
+        return new Page(page, pos < scan.to ? pos - scan.from : -1);
+    }
+
+    /** Number of matches; free when the query is a bare prefix or zone, a scan of the candidate range otherwise */
+    int count(Query query) {
+        Scan scan = new Scan(query);
+        if (scan.exact) {
+            return scan.to - scan.from;
+        }
+        int count = 0;
+        for (int pos = scan.from; pos < scan.to; pos++) {
+            if (scan.matches(scan.at(pos))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Candidate range for a query in whichever ordering gives the narrowest one, plus the row test */
+    private final class Scan {
+        private final Query query;
+        // Maps positions to rows; null for reversed-label order, where they are the same
+        private final int[] order;
+        private final int from;
+        private final int to;
+        // Every row in the range matches
+        private final boolean exact;
+
+        Scan(Query query) {
+            this.query = query;
+            String head = query.head();
+            String tail = query.tail();
+
+            // Domains starting with the head
+            int[] bestOrder = byName;
+            int bestFrom = 0;
+            int bestTo = names.length;
+            boolean bestExact = tail.isEmpty() && !query.filtered();
+            if (!head.isEmpty()) {
+                bestFrom = lowerBound(names, byName, head);
+                bestTo = lowerBound(names, byName, head + Character.MAX_VALUE);
+            }
+
+            // The subtree of the longest whole-label suffix of the tail
+            int dot = query.zone() ? -1 : tail.indexOf('.');
+            if (query.zone() || dot >= 0) {
+                String zone = reverseLabels(tail.substring(dot + 1));
+                int zoneFrom = lowerBound(keys, null, query.zone() ? zone : zone + SEPARATOR);
+                int zoneTo = lowerBound(keys, null, zone + (char) (SEPARATOR + 1));
+                if (zoneTo - zoneFrom < bestTo - bestFrom) {
+                    bestOrder = null;
+                    bestFrom = zoneFrom;
+                    bestTo = zoneTo;
+                    bestExact = dot <= 0 && head.isEmpty() && !query.filtered();
+                }
+            }
+
+            // Rows with the port
+            if (query.port() >= 0) {
+                int bucket = query.port() + 1;
+                int portFrom = query.port() > MAX_PORT ? 0 : portStarts[bucket];
+                int portTo = query.port() > MAX_PORT ? 0 : portStarts[bucket + 1];
+                if (portTo - portFrom < bestTo - bestFrom) {
+                    bestOrder = byPort;
+                    bestFrom = portFrom;
+                    bestTo = portTo;
+                    bestExact = head.isEmpty() && tail.isEmpty() && query.status() == null && query.type() == null;
+                }
+            }
+
+            order = bestOrder;
+            from = bestFrom;
+            to = bestTo;
+            exact = bestExact;
+        }
+
+        int at(int pos) {
+            return order == null ? pos : order[pos];
+        }
+
+        boolean matches(int i) {
+            Query q = query;
+            if (q.port() >= 0 && ports[i] != q.port()) {
+                return false;
+            }
+            if (q.status() != null && active[i] != q.status().equals("active")) {
+                return false;
+            }
+            if (q.type() != null && !types[i].equals(q.type())) {
+                return false;
+            }
+            String name = names[i];
+            if (q.zone()) {
+                int start = name.length() - q.tail().length();
+                return name.endsWith(q.tail()) && (start == 0 || name.charAt(start - 1) == '.');
+            }
+            return name.length() >= q.head().length() + q.tail().length()
+                    && name.startsWith(q.head()) && name.endsWith(q.tail());
+        }
+    }
+
+    /** First position whose string is not less than key; order maps positions to rows, or null for identity */
+    private static int lowerBound(String[] values, int[] order, String key) {
+        int lo = 0;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[order == null ? mid : order[mid]].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * a.tenant.example.com becomes com.example.tenant.a, joined with SEPARATOR
+     * rather than dots: it sorts below every character a domain can hold, so
+     * a name is followed directly by its whole subtree (example.com,
+     * a.example.com, then example-x.com).
+     */
+    static String reverseLabels(String domain) {
+        StringBuilder reversed = new StringBuilder(domain.length());
+        int end = domain.length();
+        for (int dot = domain.lastIndexOf('.'); ; dot = domain.lastIndexOf('.', end - 1)) {
+            if (!reversed.isEmpty()) {
+                reversed.append(SEPARATOR);
+            }
+            reversed.append(domain, dot + 1, end);
+            if (dot < 0) {
+                return reversed.toString();
+            }
+            end = dot;
+        }
+    }
+
+    private static int parsePort(String port) {
+        if (port == null) {
+            return -1;
+        }
+        try {
+            int value = Integer.parseInt(port.trim());
+            return value >= 0 && value <= MAX_PORT ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
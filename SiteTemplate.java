@@ -0,0 +1,201 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A site template compiled once into a node list and rendered many times.
+ *
+ * Syntax (chosen so it never collides with nginx's own $var / ${var}):
+ *   {{name}}              value of a variable; rendering fails if it is missing
+ *   {{#name}}...{{/name}} section rendered only when the variable is non-empty
+ *   {{^name}}...{{/name}} section rendered only when the variable is empty
+ *
+ * Output is a pure function of the referenced variables, so identical inputs
+ * always produce identical bytes and the same content hash.
+ */
+public final class SiteTemplate {
+
+    /** Rendered config plus its SHA-256 in hex */
+    public record Rendered(String content, String hash) {
+    }
+
+    private sealed interface Node permits Text, Var, Section {
+    }
+
+    private record Text(String text) implements Node {
+    }
+
+    private record Var(String name) implements Node {
+    }
+
+    private record Section(String name, boolean inverted, List<Node> children) implements Node {
+    }
+
+    private final String name;
+    private final List<Node> nodes;
+    private final List<String> variables;
+    private final int sizeHint;
+
+    private SiteTemplate(String name, List<Node> nodes, int sizeHint) {
+        this.name = name;
+        this.nodes = nodes;
+        this.sizeHint = sizeHint;
+        Set<String> names = new LinkedHashSet<>();
+        collectVariables(nodes, names);
+        this.variables = List.copyOf(names);
+    }
+
+    public static SiteTemplate compile(String name, String source) {
+        Deque<Section> open = new ArrayDeque<>();
+        Deque<List<Node>> stack = new ArrayDeque<>();
+        List<Node> root = new ArrayList<>();
+        stack.push(root);
+
+        int pos = 0;
+        while (pos < source.length()) {
+            int start = source.indexOf("{{", pos);
+            if (start < 0) {
+                stack.peek().add(new Text(source.substring(pos)));
+                break;
+            }
+            if (start > pos) {
+                stack.peek().add(new Text(source.substring(pos, start)));
+            }
+            int end = source.indexOf("}}", start + 2);
+            if (end < 0) {
+                throw new IllegalArgumentException(name + ": unclosed tag at offset " + start);
+            }
+            String tag = source.substring(start + 2, end).trim();
+            pos = end + 2;
+
+            boolean sectionTag = tag.startsWith("#") || tag.startsWith("^") || tag.startsWith("/");
+            if (sectionTag && startsLine(source, start) && (pos == source.length() || source.charAt(pos) == '\n')) {
+                // A section tag alone on its line leaves no blank line or indentation behind
+                stripIndent(stack.peek());
+                pos = Math.min(pos + 1, source.length());
+            }
+
+            if (tag.startsWith("#") || tag.startsWith("^")) {
+                Section section = new Section(tag.substring(1).trim(), tag.startsWith("^"), new ArrayList<>());
+                stack.peek().add(section);
+                open.push(section);
+                stack.push(section.children());
+            } else if (tag.startsWith("/")) {
+                String closing = tag.substring(1).trim();
+                if (open.isEmpty() || !open.peek().name().equals(closing)) {
+                    throw new IllegalArgumentException(name + ": unexpected {{/" + closing + "}}");
+                }
+                open.pop();
+                stack.pop();
+            } else if (tag.isEmpty()) {
+                throw new IllegalArgumentException(name + ": empty tag at offset " + start);
+            } else {
+                stack.peek().add(new Var(tag));
+            }
+        }
+        if (!open.isEmpty()) {
+            throw new IllegalArgumentException(name + ": unclosed section {{#" + open.peek().name() + "}}");
+        }
+        return new SiteTemplate(name, merge(root), source.length() + 256);
+    }
+
+    /** True when only whitespace precedes the tag on its line */
+    private static boolean startsLine(String source, int tagStart) {
+        for (int i = tagStart - 1; i >= 0; i--) {
+            char c = source.charAt(i);
+            if (c == '\n') {
+                return true;
+            }
+            if (c != ' ' && c != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void stripIndent(List<Node> nodes) {
+        if (!nodes.isEmpty() && nodes.get(nodes.size() - 1) instanceof Text t) {
+            String text = t.text();
+            int cut = text.length();
+            while (cut > 0 && (text.charAt(cut - 1) == ' ' || text.charAt(cut - 1) == '\t')) {
+                cut--;
+            }
+            nodes.set(nodes.size() - 1, new Text(text.substring(0, cut)));
+        }
+    }
+
+    /** Joins adjacent text nodes so rendering appends as few pieces as possible */
+    private static List<Node> merge(List<Node> nodes) {
+        List<Node> merged = new ArrayList<>(nodes.size());
+        for (Node node : nodes) {
+            if (node instanceof Section s) {
+                node = new Section(s.name(), s.inverted(), merge(s.children()));
+            }
+            if (node instanceof Text t && t.text().isEmpty()) {
+                continue;
+            }
+            if (node instanceof Text t && !merged.isEmpty() && merged.get(merged.size() - 1) instanceof Text prev) {
+                merged.set(merged.size() - 1, new Text(prev.text() + t.text()));
+            } else {
+                merged.add(node);
+            }
+        }
+        return merged;
+    }
+
+    private static void collectVariables(List<Node> nodes, Set<String> names) {
+        for (Node node : nodes) {
+            if (node instanceof Var v) {
+                names.add(v.name());
+            } else if (node instanceof Section s) {
+                names.add(s.name());
+                collectVariables(s.children(), names);
+            }
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /** Every variable and section name the template reads */
+    public List<String> variables() {
+        return variables;
+    }
+
+    public Rendered render(Map<String, String> vars) {
+        StringBuilder out = new StringBuilder(sizeHint);
+        render(nodes, vars, out);
+        String content = out.toString();
+        return new Rendered(content, sha256Hex(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void render(List<Node> nodes, Map<String, String> vars, StringBuilder out) {
+        for (Node node : nodes) {
+            if (node instanceof Text t) {
+                out.append(t.text());
+            } else if (node instanceof Var v) {
+                String value = vars.get(v.name());
+                if (value == null) {
+                    throw new IllegalArgumentException("Template " + name + " requires variable '" + v.name() + "'");
+                }
+                out.append(value);
+            } else if (node instanceof Section s) {
+                String value = vars.get(s.name());
+                boolean present = value != null && !value.isEmpty() && !value.equals("off");
+                if (present != s.inverted()) {
+                    render(s.children(), vars, out);
+                }
+            }
+        }
+    }
+
+    static String sha256Hex(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Validates individual site configs without parsing the whole /etc/nginx tree.
+ *
+ * Each site is written into a throwaway prefix with a minimal nginx.conf that
+ * holds only the shared http context (mime types and FastNginx's own shared
+ * snippets) plus that one server block, and checked with
+ * "nginx -t -p <tmp> -c <tmp>/nginx.conf". Batches run on a worker pool sized
+ * to the machine, so N new sites cost roughly N / cores small parses.
+ *
+ * Cross-site problems such as duplicate server_name or listen conflicts are
+ * still caught by the single full-tree test that runs before reload.
+ */
+public class SiteValidator {
+
+    private static final Path MIME_TYPES = Paths.get("/etc/nginx/mime.types");
+    private static final String SHARED_INCLUDE = "/etc/nginx/conf.d/fastnginx*.conf";
+
+    /** Result of validating one site in isolation */
+    public record Outcome(String domain, boolean passed, String output, long nanos) {
+    }
+
+    public static Outcome validate(String domain, String config) {
+        long start = System.nanoTime();
+        Path prefix = null;
+        try {
+            prefix = Files.createTempDirectory("fastnginx-validate-");
+            Path site = prefix.resolve("site.conf");
+            Files.writeString(site, config);
+            Files.writeString(prefix.resolve("nginx.conf"), harness(prefix, SHARED_INCLUDE, site.toString()));
+
+            Process test = new ProcessBuilder("sudo", "nginx", "-t", "-q",
+                    "-p", prefix.toString(), "-c", prefix.resolve("nginx.conf").toString())
+                    .redirectErrorStream(true)
+                    .start();
+            String output = new String(test.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            boolean passed = test.waitFor() == 0;
+            return new Outcome(domain, passed, output.replace(site.toString(), domain),
+                    System.nanoTime() - start);
+
+        } catch (IOException e) {
+            return new Outcome(domain, false, e.getMessage(), System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Outcome(domain, false, "interrupted", System.nanoTime() - start);
+        } finally {
+            deleteRecursively(prefix);
+        }
+    }
+
+    /** Validates many sites concurrently; results keep the input order */
+    public static Map<String, Outcome> validateAll(Map<String, String> configs) {
+        Map<String, Outcome> results = new LinkedHashMap<>();
+        if (configs.isEmpty()) {
+            return results;
+        }
+
+        int threads = Math.min(configs.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "fastnginx-validate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Map<String, Future<Outcome>> futures = new LinkedHashMap<>();
+            configs.forEach((domain, config) -> futures.put(domain, pool.submit(() -> validate(domain, config))));
+            for (Map.Entry<String, Future<Outcome>> e : futures.entrySet()) {
+                try {
+                    results.put(e.getKey(), e.getValue().get());
+                } catch (ExecutionException ex) {
+                    results.put(e.getKey(), new Outcome(e.getKey(), false, String.valueOf(ex.getCause()), 0));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    results.put(e.getKey(), new Outcome(e.getKey(), false, "interrupted", 0));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    /** Minimal nginx.conf under prefix whose http block holds only the shared snippets and the given sites */
+    static String harness(Path prefix, String shared, String sites) {
+        StringBuilder conf = new StringBuilder();
+        conf.append("pid ").append(prefix.resolve("nginx.pid")).append(";\n");
+        conf.append("error_log ").append(prefix.resolve("error.log")).append(";\n");
+        conf.append("events { worker_connections 64; }\n");
+        conf.append("http {\n");
+        if (Files.exists(MIME_TYPES)) {
+            conf.append("    include ").append(MIME_TYPES).append(";\n");
+        }
+        conf.append("    include ").append(shared).append(";\n");
+        conf.append("    include ").append(sites).append(";\n");
+        conf.append("}\n");
+        return conf.toString();
+    }
+
+    static void deleteRecursively(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            // Leftover temp files are harmless
+        }
+    }
+}
@@ -0,0 +1,422 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Registry of site templates and a render cache.
+ *
+ * Built-in templates: proxy, static, websocket, api. Files named
+ * <name>.conf in nginx_data/templates/ are compiled on first use and
+ * override or extend the built-ins. A site's template comes from the
+ * "template" field of its index record and defaults to proxy.
+ */
+public final class Templates {
+
+    static final String DEFAULT = "proxy";
+    static final String DIR_NAME = "templates";
+
+    private static final int CACHE_LIMIT = 10_000;
+
+    private static final String PROXY = """
+            # FastNginx Generated Configuration
+            # Domain: {{domain}} | Port: {{port}}
+
+            upstream {{upstream_name}} {
+            {{#lb_directive}}
+                {{lb_directive}};
+            {{/lb_directive}}
+            {{upstream_servers}}
+
+                # Idle connections to the backends reused across requests
+                keepalive {{keepalive}};
+                keepalive_timeout 60s;
+            }
+
+            server {
+                listen 80;
+                server_name {{domain}};
+                access_log {{access_log}} fastnginx buffer=64k flush=1s;
+
+                # Security headers
+                add_header X-Frame-Options "SAMEORIGIN" always;
+                add_header X-Content-Type-Options "nosniff" always;
+                add_header X-XSS-Protection "1; mode=block" always;
+                {{#cache_zone}}
+                add_header X-Cache-Status $upstream_cache_status always;
+                {{/cache_zone}}
+                {{#traffic_profile}}
+
+                # Traffic profile: {{traffic_profile}}, {{traffic_rate}} per client and site
+                limit_req zone={{traffic_req_zone}} {{traffic_burst}};
+                limit_conn {{traffic_conn_zone}} {{traffic_connections}};
+                limit_req_status 429;
+                limit_conn_status 429;
+                client_header_timeout {{traffic_client_timeout}};
+                client_body_timeout {{traffic_client_timeout}};
+                send_timeout {{traffic_client_timeout}};
+                {{/traffic_profile}}
+
+                # Proxy configuration
+                location / {
+                    proxy_pass http://{{upstream_name}};
+                    proxy_http_version 1.1;
+
+                    # WebSocket support; Connection is empty for plain requests so they stay pooled
+                    proxy_set_header Upgrade $http_upgrade;
+                    proxy_set_header Connection $fastnginx_connection_upgrade;
+                    proxy_cache_bypass $http_upgrade;
+                    {{#cache_zone}}
+
+                    # Cache profile: {{cache_profile}}
+                    proxy_cache {{cache_zone}};
+                    proxy_cache_valid 200 301 302 {{cache_valid_ok}};
+                    proxy_cache_valid 404 {{cache_valid_not_found}};
+                    proxy_cache_lock on;
+                    proxy_cache_lock_timeout 5s;
+                    proxy_cache_use_stale updating error timeout http_500 http_502 http_503 http_504;
+                    proxy_cache_background_update on;
+                    proxy_cache_bypass $http_authorization;
+                    proxy_no_cache $http_authorization;
+                    {{/cache_zone}}
+
+                    # Standard proxy headers
+                    proxy_set_header Host $host;
+                    proxy_set_header X-Real-IP $remote_addr;
+                    proxy_set_header X-Forwarded-For $proxy_add_x_forwarded_for;
+                    proxy_set_header X-Forwarded-Proto $scheme;
+
+                    # Timeouts
+                    {{#traffic_profile}}
+                    proxy_connect_timeout {{traffic_connect_timeout}};
+                    proxy_send_timeout {{traffic_read_timeout}};
+                    proxy_read_timeout {{traffic_read_timeout}};
+                    {{/traffic_profile}}
+                    {{^traffic_profile}}
+                    proxy_connect_timeout 60s;
+                    proxy_send_timeout 60s;
+                    proxy_read_timeout 60s;
+                    {{/traffic_profile}}
+                }
+
+                # Health check endpoint
+                location /nginx-health {
+                    access_log off;
+                    return 200 "healthy\\n";
+                    add_header Content-Type text/plain;
+                }
+            }
+            """;
+
+    private static final String STATIC = """
+            # FastNginx Generated Configuration
+            # Domain: {{domain}} | Root: {{root}}
+
+            server {
+                listen 80;
+                server_name {{domain}};
+                access_log {{access_log}} fastnginx buffer=64k flush=1s;
+                root {{root}};
+                index index.html;
+
+                # Send files from the page cache without copying through userspace,
+                # with headers and the first bytes in one packet
+                sendfile on;
+                tcp_nopush on;
+
+                # Keep descriptors and metadata of hot files open
+                open_file_cache max=10000 inactive=60s;
+                open_file_cache_valid 120s;
+                open_file_cache_min_uses 2;
+                open_file_cache_errors on;
+
+                # Serve the .gz files written by FastNginx; nothing is compressed per request
+                gzip_static on;
+                gzip_vary on;
+
+                # Security headers
+                add_header X-Frame-Options "SAMEORIGIN" always;
+                add_header X-Content-Type-Options "nosniff" always;
+                {{#traffic_profile}}
+
+                # Traffic profile: {{traffic_profile}}, {{traffic_rate}} per client and site
+                limit_req zone={{traffic_req_zone}} {{traffic_burst}};
+                limit_conn {{traffic_conn_zone}} {{traffic_connections}};
+                limit_req_status 429;
+                limit_conn_status 429;
+                client_header_timeout {{traffic_client_timeout}};
+                client_body_timeout {{traffic_client_timeout}};
+                send_timeout {{traffic_client_timeout}};
+                {{/traffic_profile}}
+
+                location / {
+                    try_files $uri $uri/ =404;
+                }
+
+                # Fingerprinted assets (app.3f9c2b1e.js, index-B4x9kQ2m.css) never change under the same name
+                location ~* "[.-](?=[A-Za-z0-9_]*[0-9])[A-Za-z0-9_]{8,}\\.(?:css|js|mjs|map|json|png|jpe?g|gif|svg|webp|avif|ico|woff2?|ttf|otf|wasm)$" {
+                    add_header Cache-Control "public, max-age=31536000, immutable" always;
+                    add_header X-Content-Type-Options "nosniff" always;
+                    access_log off;
+                    try_files $uri =404;
+                }
+
+                # Health check endpoint
+                location /nginx-health {
+                    access_log off;
+                    return 200 "healthy\\n";
+                    add_header Content-Type text/plain;
+                }
+            }
+            """;
+
+    private static final String WEBSOCKET = """
+            # FastNginx Generated Configuration
+            # Domain: {{domain}} | Port: {{port}} | WebSocket
+
+            upstream {{upstream_name}} {
+            {{#lb_directive}}
+                {{lb_directive}};
+            {{/lb_directive}}
+            {{upstream_servers}}
+
+                # Idle connections to the backends reused across requests
+                keepalive {{keepalive}};
+                keepalive_timeout 60s;
+            }
+
+            server {
+                listen 80;
+                server_name {{domain}};
+                access_log {{access_log}} fastnginx buffer=64k flush=1s;
+                {{#traffic_profile}}
+
+                # Traffic profile: {{traffic_profile}}, {{traffic_rate}} per client and site
+                limit_req zone={{traffic_req_zone}} {{traffic_burst}};
+                limit_conn {{traffic_conn_zone}} {{traffic_connections}};
+                limit_req_status 429;
+                limit_conn_status 429;
+                client_header_timeout {{traffic_client_timeout}};
+                {{/traffic_profile}}
+
+                location / {
+                    proxy_pass http://{{upstream_name}};
+                    proxy_http_version 1.1;
+                    proxy_set_header Upgrade $http_upgrade;
+                    proxy_set_header Connection $fastnginx_connection_upgrade;
+                    proxy_set_header Host $host;
+                    proxy_set_header X-Real-IP $remote_addr;
+                    proxy_set_header X-Forwarded-For $proxy_add_x_forwarded_for;
+                    proxy_set_header X-Forwarded-Proto $scheme;
+
+                    # Long-lived connections, no buffering of frames
+                    proxy_buffering off;
+                    proxy_connect_timeout 10s;
+                    proxy_send_timeout 3600s;
+                    proxy_read_timeout 3600s;
+                }
+
+                # Health check endpoint
+                location /nginx-health {
+                    access_log off;
+                    return 200 "healthy\\n";
+                    add_header Content-Type text/plain;
+                }
+            }
+            """;
+
+    private static final String API = """
+            # FastNginx Generated Configuration
+            # Domain: {{domain}} | Port: {{port}} | API gateway
+
+            upstream {{upstream_name}} {
+            {{#lb_directive}}
+                {{lb_directive}};
+            {{/lb_directive}}
+            {{upstream_servers}}
+
+                # Idle connections to the backends reused across requests
+                keepalive {{keepalive}};
+                keepalive_timeout 60s;
+            }
+
+            server {
+                listen 80;
+                server_name {{domain}};
+                access_log {{access_log}} fastnginx buffer=64k flush=1s;
+
+                client_max_body_size 10m;
+
+                add_header X-Content-Type-Options "nosniff" always;
+                add_header X-Request-ID $request_id always;
+                {{#cache_zone}}
+                add_header X-Cache-Status $upstream_cache_status always;
+                {{/cache_zone}}
+                {{#traffic_profile}}
+
+                # Traffic profile: {{traffic_profile}}, {{traffic_rate}} per client and site
+                limit_req zone={{traffic_req_zone}} {{traffic_burst}};
+                limit_conn {{traffic_conn_zone}} {{traffic_connections}};
+                limit_req_status 429;
+                limit_conn_status 429;
+                client_header_timeout {{traffic_client_timeout}};
+                client_body_timeout {{traffic_client_timeout}};
+                send_timeout {{traffic_client_timeout}};
+                {{/traffic_profile}}
+
+                location / {
+                    proxy_pass http://{{upstream_name}};
+                    proxy_http_version 1.1;
+                    proxy_set_header Connection "";
+                    proxy_set_header Host $host;
+                    proxy_set_header X-Request-ID $request_id;
+                    proxy_set_header X-Real-IP $remote_addr;
+                    proxy_set_header X-Forwarded-For $proxy_add_x_forwarded_for;
+                    proxy_set_header X-Forwarded-Proto $scheme;
+
+                    # Retry idempotent requests on a failed connect only
+                    proxy_next_upstream error timeout;
+                    proxy_next_upstream_tries 2;
+                    {{#cache_zone}}
+
+                    # Cache profile: {{cache_profile}}
+                    proxy_cache {{cache_zone}};
+                    proxy_cache_valid 200 301 302 {{cache_valid_ok}};
+                    proxy_cache_valid 404 {{cache_valid_not_found}};
+                    proxy_cache_lock on;
+                    proxy_cache_lock_timeout 5s;
+                    proxy_cache_use_stale updating error timeout http_500 http_502 http_503 http_504;
+                    proxy_cache_background_update on;
+                    proxy_cache_bypass $http_authorization;
+                    proxy_no_cache $http_authorization;
+                    {{/cache_zone}}
+
+                    {{#traffic_profile}}
+                    proxy_connect_timeout {{traffic_connect_timeout}};
+                    proxy_send_timeout {{traffic_read_timeout}};
+                    proxy_read_timeout {{traffic_read_timeout}};
+                    {{/traffic_profile}}
+                    {{^traffic_profile}}
+                    proxy_connect_timeout 5s;
+                    proxy_send_timeout 30s;
+                    proxy_read_timeout 30s;
+                    {{/traffic_profile}}
+                }
+
+                error_page 502 503 504 = @backend_down;
+                location @backend_down {
+                    default_type application/json;
+                    return 503 '{"error":"backend unavailable"}';
+                }
+
+                # Health check endpoint
+                location /nginx-health {
+                    access_log off;
+                    return 200 "healthy\\n";
+                    add_header Content-Type text/plain;
+                }
+            }
+            """;
+
+    private static final Map<String, String> BUILTIN = Map.of(
+            "proxy", PROXY,
+            "static", STATIC,
+            "websocket", WEBSOCKET,
+            "api", API);
+
+    private static final Map<String, SiteTemplate> compiled = new ConcurrentHashMap<>();
+    private static final Map<List<String>, SiteTemplate.Rendered> cache = new ConcurrentHashMap<>();
+    private static volatile Path templateDir;
+
+    private Templates() {
+    }
+
+    private static Path templateDir() {
+        if (templateDir == null) {
+            try {
+                templateDir = FastNginx.dataDirPath().resolve(DIR_NAME);
+            } catch (IOException e) {
+                templateDir = Paths.get(DIR_NAME);
+            }
+        }
+        return templateDir;
+    }
+
+    /** Names of all available templates, built-in and user-supplied */
+    public static Set<String> names() {
+        Set<String> names = new TreeSet<>(BUILTIN.keySet());
+        Path dir = templateDir();
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                files.map(p -> p.getFileName().toString())
+                        .filter(n -> n.endsWith(".conf"))
+                        .forEach(n -> names.add(n.substring(0, n.length() - ".conf".length())));
+            } catch (IOException e) {
+                FastNginx.printStatus("Cannot list templates: " + e.getMessage(), "warning");
+            }
+        }
+        return names;
+    }
+
+    /** Whether name is a built-in template that no file in the template directory overrides */
+    static boolean isBuiltin(String name) {
+        return BUILTIN.containsKey(name) && !Files.exists(templateDir().resolve(name + ".conf"));
+    }
+
+    public static SiteTemplate get(String name) {
+        return compiled.computeIfAbsent(name, n -> {
+            Path file = templateDir().resolve(n + ".conf");
+            try {
+                if (Files.exists(file)) {
+                    return SiteTemplate.compile(n, Files.readString(file));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            String source = BUILTIN.get(n);
+            if (source == null) {
+                throw new IllegalArgumentException("Unknown template: " + n);
+            }
+            return SiteTemplate.compile(n, source);
+        });
+    }
+
+    /** Template variables for an index record, with defaults filled in */
+    static Map<String, String> variables(Map<String, String> record) {
+        Map<String, String> vars = new HashMap<>(record);
+        vars.putIfAbsent("backend_host", "127.0.0.1");
+        vars.put("access_log", AccessLog.path(record.get("domain")).toString());
+        Upstream.addVariables(vars, vars);
+        CacheProfile.addVariables(vars, vars);
+        TrafficProfile.addVariables(vars, vars);
+        return vars;
+    }
+
+    /** True when the value can be emitted as a single bare nginx argument, e.g. a document root */
+    static boolean isPlainArgument(String value) {
+        return !value.isEmpty() && value.chars().noneMatch(c -> c <= ' ' || ";{}\"'\\$#".indexOf(c) >= 0);
+    }
+
+    /** Renders the site described by an index record, reusing a cached result for identical inputs */
+    public static SiteTemplate.Rendered render(Map<String, String> record) {
+        SiteTemplate template = get(record.getOrDefault("template", DEFAULT));
+        Map<String, String> vars = variables(record);
+
+        List<String> key = new ArrayList<>(template.variables().size() + 1);
+        key.add(template.name());
+        for (String name : template.variables()) {
+            key.add(vars.get(name));
+        }
+
+        SiteTemplate.Rendered rendered = cache.get(key);
+        if (rendered == null) {
+            rendered = template.render(vars);
+            if (cache.size() >= CACHE_LIMIT) {
+                cache.clear();
+            }
+            cache.put(key, rendered);
+        }
+        return rendered;
+    }
+}
@@ -0,0 +1,152 @@
+import java.util.*;
+
+/**
+ * Per-site traffic shaping profiles.
+ *
+ * Index fields:
+ *   traffic=off|relaxed|standard|strict
+ *   traffic_clients=2000   distinct clients the site sees within a minute, sizes the zones
+ *
+ * A profile sets a request rate per client with a burst, a cap on
+ * concurrent connections per client and shorter timeouts. Zones are
+ * shared and declared once in the shared http file: one limit_req_zone per
+ * profile in use and one limit_conn_zone for all of them, keyed by client
+ * address plus $server_name so tenants in the same zone are still limited
+ * separately. A zone is sized for the clients of all its sites at the
+ * slab size nginx stores one state in.
+ */
+public final class TrafficProfile {
+
+    static final String OFF = "off";
+    static final String CONN_ZONE = "fastnginx_conn";
+    static final String KEY = "$binary_remote_addr$server_name";
+
+    private static final long MB = 1024 * 1024;
+    // What one state holds besides its key on 64-bit: the rbtree node up to
+    // its color field, then ngx_http_limit_req_node_t / limit_conn_node_t up to data
+    private static final int REQ_STATE = 32 + 48;
+    private static final int CONN_STATE = 32 + 4;
+    // $binary_remote_addr of an IPv6 client
+    private static final int ADDRESS = 16;
+
+    /** Limits and timeouts of one profile plus the client estimate a site starts from */
+    record Profile(String name, String rate, int burst, boolean nodelay, int connections,
+                   String connectTimeout, String readTimeout, String clientTimeout, long clients) {
+    }
+
+    /** A limit_req_zone (with a rate) or limit_conn_zone declaration and what it was sized for */
+    record Zone(String name, String rate, long states, int stateBytes, long bytes) {
+    }
+
+    static final Map<String, Profile> PROFILES = new LinkedHashMap<>();
+
+    static {
+        PROFILES.put("relaxed", new Profile("relaxed", "50r/s", 100, true, 100, "10s", "60s", "60s", 5_000));
+        PROFILES.put("standard", new Profile("standard", "10r/s", 20, true, 20, "5s", "30s", "15s", 2_000));
+        // strict: excess requests wait their turn instead of going through at once
+        PROFILES.put("strict", new Profile("strict", "2r/s", 10, false, 5, "3s", "15s", "10s", 1_000));
+    }
+
+    private TrafficProfile() {
+    }
+
+    static Set<String> names() {
+        Set<String> names = new LinkedHashSet<>();
+        names.add(OFF);
+        names.addAll(PROFILES.keySet());
+        return names;
+    }
+
+    /** Profile of a record, or null when traffic shaping is off */
+    static Profile of(Map<String, String> record) {
+        String name = record.get("traffic");
+        return name == null ? null : PROFILES.get(name);
+    }
+
+    static String reqZoneName(String profile) {
+        return "fastnginx_req_" + profile;
+    }
+
+    /**
+     * Zones for the given records: the connection zone and one request zone
+     * per profile in use, sorted by name; empty when no record has a profile.
+     */
+    static List<Zone> zones(Collection<Map<String, String>> records) {
+        // Per profile: clients and longest domain
+        Map<String, long[]> perProfile = new TreeMap<>();
+        long clients = 0;
+        long longest = 0;
+        for (Map<String, String> record : records) {
+            Profile profile = of(record);
+            if (profile == null) {
+                continue;
+            }
+            String estimate = record.get("traffic_clients");
+            long siteClients = estimate != null ? Long.parseLong(estimate) : profile.clients();
+            int length = record.get("domain").length();
+            long[] totals = perProfile.computeIfAbsent(profile.name(), n -> new long[2]);
+            totals[0] += siteClients;
+            totals[1] = Math.max(totals[1], length);
+            clients += siteClients;
+            longest = Math.max(longest, length);
+        }
+        List<Zone> zones = new ArrayList<>();
+        if (perProfile.isEmpty()) {
+            return zones;
+        }
+        zones.add(zone(CONN_ZONE, null, clients, CONN_STATE + ADDRESS + longest));
+        perProfile.forEach((name, totals) -> zones.add(
+                zone(reqZoneName(name), PROFILES.get(name).rate(), totals[0], REQ_STATE + ADDRESS + totals[1])));
+        return zones;
+    }
+
+    /**
+     * nginx's slab allocator rounds every state up to a power of two. A
+     * full request zone drops its oldest states, but a full connection zone
+     * turns clients away, so both get a quarter on top for page headers and
+     * estimates that run short.
+     */
+    private static Zone zone(String name, String rate, long states, long stateSize) {
+        int stateBytes = Integer.highestOneBit((int) stateSize - 1) << 1;
+        long zoneMb = Math.max(1, (states * stateBytes * 5 / 4 + MB - 1) / MB);
+        return new Zone(name, rate, states, stateBytes, zoneMb * MB);
+    }
+
+    static String directive(Zone zone) {
+        String size = zone.bytes() / MB + "m";
+        if (zone.rate() == null) {
+            return "limit_conn_zone " + KEY + " zone=" + zone.name() + ":" + size + ";";
+        }
+        return "limit_req_zone " + KEY + " zone=" + zone.name() + ":" + size + " rate=" + zone.rate() + ";";
+    }
+
+    /** Returns an error message, or null when the record's traffic fields are usable */
+    static String validate(Map<String, String> record) {
+        String name = record.get("traffic");
+        if (name != null && !name.equals(OFF) && !PROFILES.containsKey(name)) {
+            return "Unknown traffic profile: " + name;
+        }
+        String clients = record.get("traffic_clients");
+        if (clients != null && !clients.matches("[1-9]\\d{0,8}")) {
+            return "traffic_clients must be a positive number: " + clients;
+        }
+        return null;
+    }
+
+    /** Adds traffic_* template variables; none are set when traffic shaping is off */
+    static void addVariables(Map<String, String> record, Map<String, String> vars) {
+        Profile profile = of(record);
+        if (profile == null) {
+            return;
+        }
+        vars.put("traffic_profile", profile.name());
+        vars.put("traffic_rate", profile.rate());
+        vars.put("traffic_req_zone", reqZoneName(profile.name()));
+        vars.put("traffic_burst", "burst=" + profile.burst() + (profile.nodelay() ? " nodelay" : ""));
+        vars.put("traffic_conn_zone", CONN_ZONE);
+        vars.put("traffic_connections", String.valueOf(profile.connections()));
+        vars.put("traffic_connect_timeout", profile.connectTimeout());
+        vars.put("traffic_read_timeout", profile.readTimeout());
+        vars.put("traffic_client_timeout", profile.clientTimeout());
+    }
+}
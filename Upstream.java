@@ -0,0 +1,142 @@
+import java.util.*;
+
+/**
+ * Backend pool settings of a proxied site, rendered as an nginx upstream block.
+ *
+ * Index fields:
+ *   backends=10.0.0.5:8080|10.0.0.6:8080   (default backend_host:port)
+ *   lb=round_robin|least_conn|ip_hash|hash (default round_robin)
+ *   keepalive=32                           idle connections kept per worker
+ *   max_fails=3, fail_timeout=10s          passive health checking
+ */
+public final class Upstream {
+
+    static final String DEFAULT_KEEPALIVE = "32";
+    static final String DEFAULT_MAX_FAILS = "3";
+    static final String DEFAULT_FAIL_TIMEOUT = "10s";
+    static final Set<String> BALANCERS = Set.of("round_robin", "least_conn", "ip_hash", "hash");
+
+    private Upstream() {
+    }
+
+    /** Upstream block name for a domain; dots and dashes are legal in nginx upstream names */
+    static String name(String domain) {
+        return "fastnginx_" + domain.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /** Backends from the record, falling back to backend_host:port */
+    static List<String> backends(Map<String, String> record) {
+        String list = record.get("backends");
+        if (list != null && !list.isBlank()) {
+            List<String> backends = new ArrayList<>();
+            for (String backend : list.split("[|,\\s]+")) {
+                if (!backend.isEmpty()) {
+                    backends.add(backend);
+                }
+            }
+            return backends;
+        }
+        String port = record.get("port");
+        if (port == null) {
+            return List.of();
+        }
+        return List.of(record.getOrDefault("backend_host", "127.0.0.1") + ":" + port);
+    }
+
+    /** Returns an error message, or null when every backend is host:port */
+    static String validate(String backends) {
+        for (String backend : backends.split("[|,\\s]+")) {
+            if (backend.isEmpty()) {
+                continue;
+            }
+            int colon = backend.lastIndexOf(':');
+            if (colon <= 0 || !validHost(backend.substring(0, colon)) || !validPort(backend.substring(colon + 1))) {
+                return "Backend must be host:port with a port from 1 to 65535: " + backend;
+            }
+        }
+        return null;
+    }
+
+    /** Checks every upstream field that ends up in the rendered server lines; returns an error or null */
+    static String validate(Map<String, String> record) {
+        String backends = record.get("backends");
+        if (backends != null) {
+            String error = validate(backends);
+            if (error != null) {
+                return error;
+            }
+        }
+        String host = record.get("backend_host");
+        if (host != null && !validHost(host)) {
+            return "backend_host must be a hostname or IP address: " + host;
+        }
+        for (String field : List.of("keepalive", "max_fails")) {
+            String value = record.get(field);
+            if (value != null && !value.matches("\\d{1,6}")) {
+                return field + " must be a number: " + value;
+            }
+        }
+        String failTimeout = record.get("fail_timeout");
+        if (failTimeout != null && !failTimeout.matches("\\d{1,6}(ms|s|m|h)?")) {
+            return "fail_timeout must look like 10s: " + failTimeout;
+        }
+        return null;
+    }
+
+    /** A hostname, an IPv4 address or a bracketed IPv6 address */
+    static boolean validHost(String host) {
+        return host.matches("[A-Za-z0-9]([A-Za-z0-9-]*[A-Za-z0-9])?(\\.[A-Za-z0-9]([A-Za-z0-9-]*[A-Za-z0-9])?)*")
+                || host.matches("\\[[0-9A-Fa-f:.]+\\]");
+    }
+
+    /** True for a decimal TCP port from 1 to 65535 */
+    static boolean validPort(String port) {
+        if (port == null || !port.matches("\\d{1,5}")) {
+            return false;
+        }
+        int value = Integer.parseInt(port);
+        return value >= 1 && value <= 65535;
+    }
+
+    /** Port of the first backend, used as the site's primary port */
+    static String primaryPort(String backends) {
+        String first = backends.split("[|,\\s]+")[0];
+        return first.substring(first.lastIndexOf(':') + 1);
+    }
+
+    static String lbDirective(String lb) {
+        return switch (lb == null ? "round_robin" : lb) {
+            case "least_conn" -> "least_conn";
+            case "ip_hash" -> "ip_hash";
+            case "hash" -> "hash $request_uri consistent";
+            default -> "";
+        };
+    }
+
+    /** Adds upstream_* template variables derived from the record */
+    static void addVariables(Map<String, String> record, Map<String, String> vars) {
+        List<String> backends = backends(record);
+        if (backends.isEmpty()) {
+            return;
+        }
+        String maxFails = record.getOrDefault("max_fails", DEFAULT_MAX_FAILS);
+        String failTimeout = record.getOrDefault("fail_timeout", DEFAULT_FAIL_TIMEOUT);
+
+        StringBuilder servers = new StringBuilder();
+        for (String backend : backends) {
+            if (servers.length() > 0) {
+                servers.append('\n');
+            }
+            servers.append("    server ").append(backend)
+                    .append(" max_fails=").append(maxFails)
+                    .append(" fail_timeout=").append(failTimeout).append(';');
+        }
+
+        String port = backends.get(0).substring(backends.get(0).lastIndexOf(':') + 1);
+        vars.putIfAbsent("port", port);
+        vars.put("upstream_name", name(record.get("domain")));
+        vars.put("upstream_servers", servers.toString());
+        vars.put("lb_directive", lbDirective(record.get("lb")));
+        vars.putIfAbsent("keepalive", DEFAULT_KEEPALIVE);
+    }
+}
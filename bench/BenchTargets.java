@@ -0,0 +1,117 @@
+import fastnginx.bench.Targets;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Bridge from the JMH benchmarks in fastnginx.bench to the code under test;
+ * see Targets. It sits in the unnamed package so it can reach the
+ * package-private members the benchmarks exercise.
+ */
+public final class BenchTargets implements Targets.Api {
+
+    @Override
+    public Targets.Index openIndex(Path dataDir) throws IOException {
+        ConfigJournal journal = ConfigJournal.open(dataDir);
+        return new Targets.Index() {
+            @Override
+            public int size() {
+                return journal.size();
+            }
+
+            @Override
+            public Map<String, String> get(String domain) {
+                return journal.get(domain);
+            }
+
+            @Override
+            public void putAll(Collection<Map<String, String>> entries) throws IOException {
+                journal.putAll(entries);
+            }
+
+            @Override
+            public boolean setStatus(String domain, String status) throws IOException {
+                return journal.setStatus(domain, status);
+            }
+
+            @Override
+            public void compact() throws IOException {
+                journal.compact();
+            }
+
+            @Override
+            public int scan() {
+                int[] active = new int[1];
+                journal.forEach(record -> {
+                    if ("active".equals(record.status())) {
+                        active[0]++;
+                    }
+                });
+                return active[0];
+            }
+
+            @Override
+            public Targets.Search search() {
+                SiteIndex index = SiteIndex.build(journal);
+                return new Targets.Search() {
+                    @Override
+                    public int page(String query, int limit) {
+                        return index.page(SiteIndex.Query.parse(query), 0, limit).domains().size();
+                    }
+
+                    @Override
+                    public int count(String query) {
+                        return index.count(SiteIndex.Query.parse(query));
+                    }
+
+                    @Override
+                    public String find(String domain) {
+                        return index.find(domain);
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws IOException {
+                journal.close();
+            }
+        };
+    }
+
+    @Override
+    public Map<String, String> parseLegacyLine(String line) {
+        return FastNginx.parseConfigLine(line);
+    }
+
+    @Override
+    public String render(Map<String, String> record) {
+        return Templates.render(record).hash();
+    }
+
+    @Override
+    public String renderUncached(Map<String, String> record) {
+        SiteTemplate template = Templates.get(record.getOrDefault("template", Templates.DEFAULT));
+        return template.render(Templates.variables(record)).hash();
+    }
+
+    @Override
+    public int loadHosts(Path file) throws IOException {
+        return HostsFile.load(file).entries().size();
+    }
+
+    @Override
+    public boolean updateHosts(Path file, String domain, String ip) throws IOException {
+        HostsFile hosts = HostsFile.load(file);
+        hosts.put(domain, ip);
+        return hosts.save();
+    }
+
+    @Override
+    public void putHosts(Path file, Map<String, String> entries) throws IOException {
+        HostsFile hosts = HostsFile.load(file);
+        entries.forEach(hosts::put);
+        hosts.save();
+    }
+}
@@ -0,0 +1,137 @@
+package fastnginx.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Generated site records shaped like the ones deploy writes. Site i is a
+ * pure function of i, so every run and every benchmark sees the same data:
+ * 70% single-backend proxies, 15% pools with least_conn, 5% cached
+ * proxies, 10% static sites; one in ten is inactive.
+ */
+final class Datasets {
+
+    private Datasets() {
+    }
+
+    static String domain(int i) {
+        return "site" + i + ".team" + (i % 97) + ".example.com";
+    }
+
+    static Map<String, String> site(int i) {
+        String domain = domain(i);
+        Map<String, String> site = new HashMap<>(16);
+        site.put("domain", domain);
+        site.put("ip", "127.0.0.1");
+        site.put("status", i % 10 == 9 ? "inactive" : "active");
+        site.put("path", "/etc/nginx/sites-available/" + domain);
+        site.put("created", String.valueOf(1_700_000_000_000L + i * 1000L));
+        site.put("hash", hash(i));
+
+        int kind = i % 20;
+        if (kind < 2) {
+            site.put("type", "static");
+            site.put("template", "static");
+            site.put("root", "/var/www/" + domain);
+            return Map.copyOf(site);
+        }
+        String port = String.valueOf(3000 + i % 1000);
+        site.put("type", "proxy");
+        site.put("template", "proxy");
+        site.put("port", port);
+        if (kind < 5) {
+            int subnet = i % 250;
+            site.put("backends", "10.0." + subnet + ".11:" + port + "|10.0." + subnet + ".12:" + port
+                    + "|10.0." + subnet + ".13:" + port);
+            site.put("lb", "least_conn");
+        } else if (kind == 5) {
+            site.put("cache", "micro");
+        }
+        return Map.copyOf(site);
+    }
+
+    /** Sites [0, n) */
+    static List<Map<String, String>> sites(int n) {
+        List<Map<String, String>> sites = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            sites.add(site(i));
+        }
+        return sites;
+    }
+
+    /** A record in the legacy config_index text format */
+    static String legacyLine(Map<String, String> site) {
+        StringJoiner line = new StringJoiner(",");
+        site.forEach((key, value) -> line.add(key + "=" + value));
+        return line.toString();
+    }
+
+    /** Writes n sites into a fresh index in dataDir, folded into config_index.db */
+    static void populateIndex(Path dataDir, int n) throws IOException {
+        try (Targets.Index index = Targets.API.openIndex(dataDir)) {
+            for (int from = 0; from < n; from += 10_000) {
+                List<Map<String, String>> chunk = new ArrayList<>(10_000);
+                for (int i = from; i < Math.min(n, from + 10_000); i++) {
+                    chunk.add(site(i));
+                }
+                index.putAll(chunk);
+            }
+            index.compact();
+        }
+    }
+
+    /** A hosts file with a few system lines and n managed entries */
+    static void populateHosts(Path file, int n) throws IOException {
+        Files.writeString(file, """
+                127.0.0.1\tlocalhost
+                ::1\tlocalhost ip6-localhost ip6-loopback
+                10.1.2.3\tbuildhost.internal buildhost
+                """);
+        Map<String, String> entries = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            entries.put(domain(i), "127.0.0.1");
+        }
+        Targets.API.putHosts(file, entries);
+    }
+
+    static void delete(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                    Files.delete(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String hash(int i) {
+        long x = i * 0x9E3779B97F4A7C15L;
+        StringBuilder hex = new StringBuilder(64);
+        for (int k = 0; k < 4; k++) {
+            x ^= x >>> 31;
+            x *= 0xBF58476D1CE4E5B9L;
+            hex.append(String.format("%016x", x));
+        }
+        return hex.toString();
+    }
+}
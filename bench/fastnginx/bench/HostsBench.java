@@ -0,0 +1,54 @@
+package fastnginx.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The managed /etc/hosts block with n entries: loading it, and the
+ * load-put-save round trip every deploy with --hosts makes, including the
+ * atomic replace. The IP alternates so every save really writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class HostsBench {
+
+    @Param({"100", "10000", "500000"})
+    int sites;
+
+    private Path dir;
+    private Path file;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("fastnginx-bench-hosts");
+        file = dir.resolve("hosts");
+        Datasets.populateHosts(file, sites);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Datasets.delete(dir);
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        return Targets.API.loadHosts(file);
+    }
+
+    @Benchmark
+    public boolean update() throws IOException {
+        if (++next >= sites) {
+            next = 0;
+        }
+        return Targets.API.updateHosts(file, Datasets.domain(next), (next & 1) == 0 ? "127.0.0.2" : "127.0.0.1");
+    }
+}
@@ -0,0 +1,152 @@
+package fastnginx.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The site index: lookups and scans against config_index.db, single
+ * mutations through the WAL (each one fsync'd), folding the WAL back into
+ * the checkpoint, reopening the index from disk, parsing the legacy text
+ * format it replaced, and the configuration manager's search over it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class IndexBench {
+
+    @Param({"100", "10000", "500000"})
+    int sites;
+
+    private Path dir;
+    private Targets.Index index;
+    private Targets.Search search;
+    private String[] domains;
+    private String[] legacyLines;
+    private List<Map<String, String>> updates;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("fastnginx-bench-index");
+        Datasets.populateIndex(dir, sites);
+        index = Targets.API.openIndex(dir);
+        search = index.search();
+
+        domains = new String[sites];
+        for (int i = 0; i < sites; i++) {
+            domains[i] = Datasets.domain(i);
+        }
+        legacyLines = new String[1024];
+        for (int i = 0; i < legacyLines.length; i++) {
+            legacyLines[i] = Datasets.legacyLine(Datasets.site(i));
+        }
+        updates = Datasets.sites(Math.min(sites, 1024));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        Datasets.delete(dir);
+    }
+
+    private int nextSite() {
+        if (++next >= sites) {
+            next = 0;
+        }
+        return next;
+    }
+
+    @Benchmark
+    public Map<String, String> lookup() {
+        return index.get(domains[nextSite()]);
+    }
+
+    @Benchmark
+    public Map<String, String> lookupMissing() {
+        return index.get("missing-" + domains[nextSite()]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int scan() {
+        return index.scan();
+    }
+
+    @Benchmark
+    public Map<String, String> parseLegacyLine() {
+        return Targets.API.parseLegacyLine(legacyLines[nextSite() & 1023]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean toggle() throws IOException {
+        int i = nextSite();
+        return index.setStatus(domains[i], (i & 1) == 0 ? "inactive" : "active");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void update() throws IOException {
+        index.putAll(List.of(updates.get(nextSite() % updates.size())));
+    }
+
+    /** One edit plus the config_index.db rewrite it eventually costs */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void updateAndCheckpoint() throws IOException {
+        index.putAll(List.of(updates.get(nextSite() % updates.size())));
+        index.compact();
+    }
+
+    /** Opening the configuration manager */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Targets.Search buildSearch() {
+        return index.search();
+    }
+
+    /** One team's sites: a reversed-label subtree */
+    @Benchmark
+    public int searchZone() {
+        return search.page("*.team" + (nextSite() % 97) + ".example.com", 20);
+    }
+
+    @Benchmark
+    public int searchPrefix() {
+        return search.page("site" + nextSite(), 20);
+    }
+
+    /** Zone narrowed by status and type, checked row by row while the page fills */
+    @Benchmark
+    public int searchFiltered() {
+        return search.page("*.team" + (nextSite() % 97) + ".example.com status:inactive type:static", 20);
+    }
+
+    @Benchmark
+    public int countZone() {
+        return search.count("*.team" + (nextSite() % 97) + ".example.com");
+    }
+
+    @Benchmark
+    public String searchExact() {
+        return search.find(domains[nextSite()]);
+    }
+
+    /** What every CLI invocation pays before it can answer */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int open() throws IOException {
+        try (Targets.Index reopened = Targets.API.openIndex(dir)) {
+            return reopened.size();
+        }
+    }
+}
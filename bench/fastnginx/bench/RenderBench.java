@@ -0,0 +1,50 @@
+package fastnginx.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering site configs from index records. render() goes through the
+ * output cache, so it mostly hits with 100 and 10k sites and mostly misses
+ * with 500k (the cache holds 10k); renderUncached() always compiles the
+ * variables and hashes the output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RenderBench {
+
+    @Param({"100", "10000", "500000"})
+    int sites;
+
+    private List<Map<String, String>> records;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        records = Datasets.sites(sites);
+    }
+
+    private Map<String, String> nextRecord() {
+        if (++next >= sites) {
+            next = 0;
+        }
+        return records.get(next);
+    }
+
+    @Benchmark
+    public String render() {
+        return Targets.API.render(nextRecord());
+    }
+
+    @Benchmark
+    public String renderUncached() {
+        return Targets.API.renderUncached(nextRecord());
+    }
+}
@@ -0,0 +1,86 @@
+package fastnginx.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The code under test lives in the unnamed package, which a named package
+ * cannot import, while JMH refuses benchmark classes in the unnamed package.
+ * BenchTargets (unnamed package, next to this directory) implements Api and
+ * is instantiated reflectively once; the measured calls are plain interface
+ * calls on a constant, which the JIT inlines.
+ */
+public final class Targets {
+
+    public static final Api API = load();
+
+    /** Entry points of the paths being measured */
+    public interface Api {
+
+        /** ConfigJournal.open over config_index.db and its WAL */
+        Index openIndex(Path dataDir) throws IOException;
+
+        /** FastNginx.parseConfigLine, the legacy comma-separated index format */
+        Map<String, String> parseLegacyLine(String line);
+
+        /** Templates.render: compiled template, rendered-output cache and content hash */
+        String render(Map<String, String> record);
+
+        /** The same render with the output cache bypassed */
+        String renderUncached(Map<String, String> record);
+
+        /** HostsFile.load; returns the number of managed entries */
+        int loadHosts(Path file) throws IOException;
+
+        /** HostsFile load, put and save: what one deploy does to /etc/hosts */
+        boolean updateHosts(Path file, String domain, String ip) throws IOException;
+
+        /** Adds all entries with one load and one save */
+        void putHosts(Path file, Map<String, String> entries) throws IOException;
+    }
+
+    /** ConfigJournal operations */
+    public interface Index extends Closeable {
+        int size();
+
+        Map<String, String> get(String domain);
+
+        void putAll(Collection<Map<String, String>> entries) throws IOException;
+
+        boolean setStatus(String domain, String status) throws IOException;
+
+        /** Folds the WAL into config_index.db */
+        void compact() throws IOException;
+
+        /** Visits every record, as the list views do */
+        int scan();
+
+        /** SiteIndex.build: the configuration manager's search snapshot */
+        Search search();
+    }
+
+    /** SiteIndex queries */
+    public interface Search {
+        /** Size of the first page of matches for query, at most limit */
+        int page(String query, int limit);
+
+        int count(String query);
+
+        /** Registered spelling of domain, or null */
+        String find(String domain);
+    }
+
+    private Targets() {
+    }
+
+    private static Api load() {
+        try {
+            return (Api) Class.forName("BenchTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchTargets is not on the benchmark classpath", e);
+        }
+    }
+}
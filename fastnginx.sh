@@ -0,0 +1,19 @@
+#!/bin/sh
+# Starts FastNginx with an AppCDS archive (JDK 19+): the first run dumps the
+# classes it loaded to .fastnginx.jsa, later runs map them from the archive
+# instead of parsing and verifying them again. CDS only archives classes from
+# jars, so the sources are packed into FastNginx.jar, rebuilt whenever a
+# .java file is newer. Arguments pass through: ./fastnginx.sh list
+DIR=$(cd "$(dirname "$0")" && pwd)
+JAR="$DIR/FastNginx.jar"
+
+if [ ! -f "$JAR" ] || [ -n "$(find "$DIR" -maxdepth 1 -name '*.java' -newer "$JAR")" ]; then
+    BUILD=$(mktemp -d) || exit 1
+    javac -encoding UTF-8 -d "$BUILD" "$DIR"/*.java \
+        && jar --create --file "$JAR" --main-class FastNginx -C "$BUILD" .
+    STATUS=$?
+    rm -rf "$BUILD"
+    [ $STATUS -eq 0 ] || exit $STATUS
+fi
+
+exec java -XX:+AutoCreateSharedArchive -XX:SharedArchiveFile="$DIR/.fastnginx.jsa" -jar "$JAR" "$@"